@@ -0,0 +1,121 @@
+import com.sun.management.ThreadMXBean;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Minimal benchmark harness
+ * Every benchmark has warmup iterations and measurement iterations of fixed time,
+ * results are ops/s with 99.9% error and allocated bytes per op of the benchmark thread
+ *
+ * @author xfy9326
+ */
+final class BenchmarkRunner {
+    // Student t value of 99.9% confidence is approximated by normal distribution
+    private static final double CONFIDENCE_Z = 3.29;
+    private static final int CHECK_TIME_OPS = 16;
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationNanos;
+    // Allocated memory of thread is only in HotSpot extension of ThreadMXBean
+    private final ThreadMXBean threadMXBean;
+    // Results are consumed here, so benchmark code will not be removed by JIT
+    private volatile int blackhole;
+
+    /**
+     * @param warmupIterations      Warmup iteration count
+     * @param measurementIterations Measurement iteration count
+     * @param iterationMillis       Time of each iteration
+     */
+    BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = iterationMillis * 1_000_000L;
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof ThreadMXBean && ((ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            this.threadMXBean = (ThreadMXBean) bean;
+            threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            this.threadMXBean = null;
+        }
+    }
+
+    Result run(Benchmark benchmark) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            runIteration(benchmark);
+        }
+        double[] opsPerSecond = new double[measurementIterations];
+        long totalOps = 0;
+        long totalBytes = 0;
+        long totalNanos = 0;
+        for (int i = 0; i < measurementIterations; i++) {
+            long[] iteration = runIteration(benchmark);
+            totalOps += iteration[0];
+            totalNanos += iteration[1];
+            totalBytes += iteration[2];
+            opsPerSecond[i] = iteration[0] * 1e9 / iteration[1];
+        }
+
+        double mean = 0;
+        for (double value : opsPerSecond) {
+            mean += value;
+        }
+        mean /= opsPerSecond.length;
+        double error = 0;
+        if (opsPerSecond.length > 1) {
+            double variance = 0;
+            for (double value : opsPerSecond) {
+                variance += (value - mean) * (value - mean);
+            }
+            error = CONFIDENCE_Z * Math.sqrt(variance / (opsPerSecond.length - 1) / opsPerSecond.length);
+        }
+        double bytesPerOp = threadMXBean == null ? Double.NaN : (double) totalBytes / totalOps;
+        double allocationRate = threadMXBean == null ? Double.NaN : totalBytes * 1e9 / totalNanos / (1 << 20);
+        return new Result(mean, error, bytesPerOp, allocationRate);
+    }
+
+    /**
+     * @return [ops, nanos, allocated bytes]
+     */
+    private long[] runIteration(Benchmark benchmark) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        long startBytes = threadMXBean == null ? 0 : threadMXBean.getThreadAllocatedBytes(threadId);
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + iterationNanos;
+        long ops = 0;
+        long nowNanos;
+        int sink = 0;
+        do {
+            for (int i = 0; i < CHECK_TIME_OPS; i++) {
+                sink += benchmark.run();
+            }
+            ops += CHECK_TIME_OPS;
+            nowNanos = System.nanoTime();
+        } while (nowNanos < endNanos);
+        long endBytes = threadMXBean == null ? 0 : threadMXBean.getThreadAllocatedBytes(threadId);
+        blackhole += sink;
+        return new long[]{ops, nowNanos - startNanos, endBytes - startBytes};
+    }
+
+    interface Benchmark {
+        /**
+         * @return Any value computed from the result, it is consumed by blackhole
+         */
+        int run() throws Exception;
+    }
+
+    static final class Result {
+        final double opsPerSecond;
+        final double error;
+        final double bytesPerOp;
+        // MB/s
+        final double allocationRate;
+
+        private Result(double opsPerSecond, double error, double bytesPerOp, double allocationRate) {
+            this.opsPerSecond = opsPerSecond;
+            this.error = error;
+            this.bytesPerOp = bytesPerOp;
+            this.allocationRate = allocationRate;
+        }
+    }
+}
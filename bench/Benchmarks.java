@@ -0,0 +1,222 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmarks of parsing, building, exporting and matching with parameterized expression corpora
+ * Usage: Benchmarks [--warmup N] [--iterations N] [--time MILLIS] [--sizes 100,1000] [--filter NAME,NAME]
+ * Scaling exponents between sizes are printed at the end, exponent near 1 means linear
+ *
+ * @author xfy9326
+ */
+public class Benchmarks {
+    // Growth exponent which is reported as superlinear
+    static final double SUPERLINEAR_EXPONENT = 1.5;
+    private static final String[] CORPORA = {"deepNesting", "wideAlternation", "longConcatenation", "nestedStars"};
+
+    public static void main(String[] args) throws Exception {
+        int warmupIterations = 3;
+        int measurementIterations = 5;
+        long iterationMillis = 500;
+        int[] sizes = {100, 1000, 10000};
+        String[] filters = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--warmup":
+                    warmupIterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--iterations":
+                    measurementIterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--time":
+                    iterationMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--sizes":
+                    String[] values = args[++i].split(",");
+                    sizes = new int[values.length];
+                    for (int j = 0; j < values.length; j++) {
+                        sizes[j] = Integer.parseInt(values[j].trim());
+                    }
+                    break;
+                case "--filter":
+                    filters = args[++i].split(",");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner(warmupIterations, measurementIterations, iterationMillis);
+        File outputDirectory = Files.createTempDirectory("REToNFA-bench").toFile();
+        // Benchmark name -> corpus -> size -> result
+        Map<String, Map<String, Map<Integer, BenchmarkRunner.Result>>> results = new LinkedHashMap<>();
+
+        System.out.println(String.format("%-22s %-18s %7s %14s %12s %12s %10s", "Benchmark", "Corpus", "Size", "ops/s", "error", "B/op", "MB/s"));
+        for (String corpus : CORPORA) {
+            for (int size : sizes) {
+                String expression = getExpression(corpus, size);
+                String input = getMatchingInput(corpus, size);
+                for (Map.Entry<String, BenchmarkRunner.Benchmark> entry : getBenchmarks(expression, input, outputDirectory).entrySet()) {
+                    String name = entry.getKey();
+                    if (!isSelected(name, filters)) {
+                        continue;
+                    }
+                    if (entry.getValue() == null) {
+                        System.out.println(String.format("%-22s %-18s %7d %14s", name, corpus, size, "n/a"));
+                        continue;
+                    }
+                    BenchmarkRunner.Result result = runner.run(entry.getValue());
+                    results.computeIfAbsent(name, k -> new LinkedHashMap<>()).computeIfAbsent(corpus, k -> new LinkedHashMap<>()).put(size, result);
+                    System.out.println(String.format("%-22s %-18s %7d %14.1f %12.1f %12.1f %10.1f",
+                            name, corpus, size, result.opsPerSecond, result.error, result.bytesPerOp, result.allocationRate));
+                }
+            }
+        }
+        deleteDirectory(outputDirectory);
+
+        System.out.println("\nScaling (time per op ~ size ^ exponent)");
+        for (Map.Entry<String, Map<String, Map<Integer, BenchmarkRunner.Result>>> benchmark : results.entrySet()) {
+            for (Map.Entry<String, Map<Integer, BenchmarkRunner.Result>> corpus : benchmark.getValue().entrySet()) {
+                List<Integer> measuredSizes = new ArrayList<>(corpus.getValue().keySet());
+                StringBuilder builder = new StringBuilder(String.format("%-22s %-18s", benchmark.getKey(), corpus.getKey()));
+                boolean isSuperlinear = false;
+                for (int i = 1; i < measuredSizes.size(); i++) {
+                    int lastSize = measuredSizes.get(i - 1);
+                    int size = measuredSizes.get(i);
+                    double exponent = Math.log(corpus.getValue().get(lastSize).opsPerSecond / corpus.getValue().get(size).opsPerSecond) / Math.log((double) size / lastSize);
+                    builder.append(String.format(" %d->%d: %.2f", lastSize, size, exponent));
+                    isSuperlinear |= exponent >= SUPERLINEAR_EXPONENT;
+                }
+                if (isSuperlinear) {
+                    builder.append("  SUPERLINEAR");
+                }
+                System.out.println(builder);
+            }
+        }
+    }
+
+    private static boolean isSelected(String name, String[] filters) {
+        if (filters == null) {
+            return true;
+        }
+        for (String filter : filters) {
+            if (name.startsWith(filter.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Benchmarks of one expression, value is null if the benchmark can't run with this expression
+     */
+    private static Map<String, BenchmarkRunner.Benchmark> getBenchmarks(String expression, String input, File outputDirectory) throws NormalFormException {
+        GrammarNode grammarNode = new GrammarNode(expression, true);
+        NFAMap thompsonMap = new NFAMap.Builder().setNode(grammarNode).build();
+        NFAMap glushkovMap = new NFAMap.Builder().setNode(grammarNode).setConstruction(NFAMap.Construction.GLUSHKOV).build();
+        NFAMatcher nfaMatcher = thompsonMap.matcher();
+        PikeVM pikeVM = new NFAMap.Builder().setNode(grammarNode).setCaptureGroups(true).build().pikeVM();
+        LazyDFA lazyDFA = new LazyDFA(thompsonMap);
+        MatchEngine glushkovEngine = glushkovMap.engine();
+        CompiledDFA compiledDFA;
+        try {
+            compiledDFA = CompiledDFA.compile(thompsonMap);
+        } catch (AutomatonTooLargeException e) {
+            compiledDFA = null;
+        }
+
+        Map<String, BenchmarkRunner.Benchmark> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("parse", () -> new GrammarNode(expression, true).getChildNodes().length);
+        benchmarks.put("build.thompson", () -> new NFAMap.Builder().setNode(grammarNode).build().getTransitionCount());
+        benchmarks.put("build.glushkov", () -> new NFAMap.Builder().setNode(grammarNode).setConstruction(NFAMap.Construction.GLUSHKOV).build().getTransitionCount());
+        benchmarks.put("export.json", () -> thompsonMap.getJSON().length());
+        benchmarks.put("export.html", () -> {
+            thompsonMap.outputAsHtml(outputDirectory);
+            return 0;
+        });
+        benchmarks.put("match.nfa", () -> nfaMatcher.matches(input) ? 1 : 0);
+        benchmarks.put("match.pikeVM", () -> pikeVM.matches(input) ? pikeVM.end(pikeVM.groupCount()) : -1);
+        benchmarks.put("match.lazyDFA", () -> lazyDFA.matches(input) ? 1 : 0);
+        CompiledDFA dfa = compiledDFA;
+        benchmarks.put("match.compiledDFA", dfa == null ? null : () -> dfa.matches(input) ? 1 : 0);
+        benchmarks.put("match.glushkovEngine", () -> glushkovEngine.matches(input) ? 1 : 0);
+        return benchmarks;
+    }
+
+    private static String getExpression(String corpus, int size) {
+        StringBuilder builder = new StringBuilder();
+        switch (corpus) {
+            case "deepNesting":
+                // ((((a))))
+                repeat(builder, "(", size).append('a');
+                return repeat(builder, ")", size).toString();
+            case "wideAlternation":
+                // a|b|c|...
+                for (int i = 0; i < size; i++) {
+                    if (i > 0) {
+                        builder.append(Symbol.OR);
+                    }
+                    builder.append(getLetter(i));
+                }
+                return builder.toString();
+            case "longConcatenation":
+                // abc...
+                for (int i = 0; i < size; i++) {
+                    builder.append(getLetter(i));
+                }
+                return builder.toString();
+            case "nestedStars":
+                // ((a)*b)*c)*...
+                repeat(builder, "(", size).append('a');
+                for (int i = 0; i < size; i++) {
+                    builder.append(")*").append(getLetter(i + 1));
+                }
+                return builder.toString();
+            default:
+                throw new IllegalArgumentException("Unknown corpus: " + corpus);
+        }
+    }
+
+    private static String getMatchingInput(String corpus, int size) {
+        switch (corpus) {
+            case "wideAlternation":
+                return String.valueOf(getLetter(size - 1));
+            case "longConcatenation":
+                return getExpression(corpus, size);
+            case "nestedStars":
+                // Every loop once
+                StringBuilder builder = new StringBuilder().append('a');
+                for (int i = 0; i < size; i++) {
+                    builder.append(getLetter(i + 1));
+                }
+                return builder.toString();
+            default:
+                return "a";
+        }
+    }
+
+    private static char getLetter(int index) {
+        return (char) ('a' + index % 26);
+    }
+
+    private static StringBuilder repeat(StringBuilder builder, String content, int count) {
+        for (int i = 0; i < count; i++) {
+            builder.append(content);
+        }
+        return builder;
+    }
+
+    private static void deleteDirectory(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDirectory(file);
+            }
+        }
+        Files.delete(directory.toPath());
+    }
+}
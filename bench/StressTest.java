@@ -0,0 +1,622 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stress test with random expressions of the Symbol grammar
+ * Scaling: parse and build random expressions of increasing sizes and depths, time and allocated bytes per op are fitted to size ^ exponent,
+ * it fails if an exponent reaches the superlinear exponent of benchmarks
+ * Differential: small random expressions are matched by every engine on random inputs and checked with java.util.regex,
+ * NFA and DFA loaded from snapshot are checked in the same way
+ * Usage: StressTest [--seed N] [--cases N] [--inputs N] [--sizes 500,1000] [--depths 250,500] [--warmup N] [--iterations N] [--time MILLIS]
+ * Exit code is 1 if any check fails
+ *
+ * @author xfy9326
+ */
+public class StressTest {
+    private static final char[] LETTERS = {'a', 'b', 'c', 'd'};
+    private static final String[] CHAR_SETS = {"[a-c]", "[^b]", "[bd]", "[-a]"};
+    // Inputs also contain a char which is not in any expression
+    private static final String INPUT_CHARS = "abcde";
+    private static final int MAX_INPUT_LENGTH = 10;
+    private static final int MAX_CASE_SIZE = 12;
+    private static final int MAX_CASE_DEPTH = 5;
+    private static final int MAX_SCALING_DEPTH = 12;
+    // Bounded repeats are expanded, so they are only applied to small subexpressions in scaling expressions
+    private static final int MAX_BOUNDED_REPEAT_SIZE = 2;
+    private static final int EXPRESSIONS_PER_SIZE = 8;
+    private static final int MAX_REPORTED_FAILURES = 20;
+
+    private final Random random;
+    private int failureCount = 0;
+    private long checkCount = 0;
+
+    private StressTest(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seed = 0;
+        int caseCount = 2000;
+        int inputCount = 20;
+        int[] sizes = {500, 1000, 2000, 4000, 8000, 16000};
+        int[] depths = {250, 500, 1000, 2000, 4000, 8000};
+        int warmupIterations = 2;
+        int measurementIterations = 3;
+        long iterationMillis = 300;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--cases":
+                    caseCount = Integer.parseInt(args[++i]);
+                    break;
+                case "--inputs":
+                    inputCount = Integer.parseInt(args[++i]);
+                    break;
+                case "--sizes":
+                    sizes = parseInts(args[++i]);
+                    break;
+                case "--depths":
+                    depths = parseInts(args[++i]);
+                    break;
+                case "--warmup":
+                    warmupIterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--iterations":
+                    measurementIterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--time":
+                    iterationMillis = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+
+        StressTest stressTest = new StressTest(seed);
+        BenchmarkRunner runner = new BenchmarkRunner(warmupIterations, measurementIterations, iterationMillis);
+        System.out.println("Seed " + seed);
+        stressTest.runDifferential(caseCount, inputCount);
+        System.out.println(String.format("\n%-8s %7s %14s %14s %14s", "Scaling", "Size", "us/op", "B/op", "NFA bytes"));
+        stressTest.runScaling(runner, "size", sizes, false);
+        stressTest.runScaling(runner, "depth", depths, true);
+
+        System.out.println("\n" + (stressTest.failureCount == 0 ? "PASSED" : "FAILED: " + stressTest.failureCount + " failures"));
+        if (stressTest.failureCount > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static int[] parseInts(String value) {
+        String[] values = value.split(",");
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = Integer.parseInt(values[i].trim());
+        }
+        return result;
+    }
+
+    /**
+     * Parse and build random expressions of each size, then fit the growth of time and allocated bytes per op
+     *
+     * @param isDeep Expressions are nested as deep as their size, otherwise nesting depth is limited
+     */
+    private void runScaling(BenchmarkRunner runner, String name, int[] sizes, boolean isDeep) throws Exception {
+        double[] nanosPerOp = new double[sizes.length];
+        double[] bytesPerOp = new double[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            String[] expressions = new String[EXPRESSIONS_PER_SIZE];
+            long nfaBytes = 0;
+            for (int j = 0; j < expressions.length; j++) {
+                expressions[j] = isDeep ? generateDeep(sizes[i]) : generate(sizes[i], MAX_SCALING_DEPTH, true);
+                nfaBytes += new NFAMap.Builder().setNode(new GrammarNode(expressions[j], true)).build().getEstimatedBytes();
+            }
+            int[] next = {0};
+            BenchmarkRunner.Result result = runner.run(() -> {
+                String expression = expressions[next[0]++ % expressions.length];
+                return new NFAMap.Builder().setNode(new GrammarNode(expression, true)).build().getTransitionCount();
+            });
+            nanosPerOp[i] = 1e9 / result.opsPerSecond;
+            bytesPerOp[i] = result.bytesPerOp;
+            System.out.println(String.format("%-8s %7d %14.1f %14.1f %14d", name, sizes[i], nanosPerOp[i] / 1000, bytesPerOp[i], nfaBytes / expressions.length));
+        }
+        checkExponent(name + " time", sizes, nanosPerOp);
+        if (!Double.isNaN(bytesPerOp[0])) {
+            checkExponent(name + " memory", sizes, bytesPerOp);
+        }
+    }
+
+    /**
+     * Least squares fit of log(value) = exponent * log(size) + c
+     */
+    private void checkExponent(String name, int[] sizes, double[] values) {
+        if (sizes.length < 2) {
+            return;
+        }
+        double meanX = 0;
+        double meanY = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            meanX += Math.log(sizes[i]);
+            meanY += Math.log(values[i]);
+        }
+        meanX /= sizes.length;
+        meanY /= sizes.length;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            double x = Math.log(sizes[i]) - meanX;
+            covariance += x * (Math.log(values[i]) - meanY);
+            variance += x * x;
+        }
+        double exponent = covariance / variance;
+        boolean isSuperlinear = exponent >= Benchmarks.SUPERLINEAR_EXPONENT;
+        System.out.println(String.format("%-14s ~ size ^ %.2f%s", name, exponent, isSuperlinear ? "  SUPERLINEAR" : ""));
+        if (isSuperlinear) {
+            failureCount++;
+        }
+    }
+
+    /**
+     * Every engine is checked with java.util.regex: whole input match, earliest end of search and start of leftmost match,
+     * matches of stream and parallel searchers, patterns matched by multi pattern DFA, and capture groups of Pike VM
+     */
+    private void runDifferential(int caseCount, int inputCount) throws Exception {
+        Path snapshotPath = Files.createTempFile("REToNFA-stress", ".snapshot");
+        for (int i = 0; i < caseCount; i++) {
+            String expression = generateCase();
+            String otherExpression = generateCase();
+            GrammarNode grammarNode;
+            GrammarNode otherNode;
+            try {
+                grammarNode = new GrammarNode(expression, true);
+                otherNode = new GrammarNode(otherExpression, true);
+            } catch (NormalFormException e) {
+                fail(expression + " " + otherExpression, "", "parse", "valid", e.getMessage());
+                continue;
+            }
+            Pattern pattern = toPattern(expression);
+            Pattern otherPattern = toPattern(otherExpression);
+            NFAMap thompsonMap = new NFAMap.Builder().setNode(grammarNode).build();
+            NFAMap glushkovMap = new NFAMap.Builder().setNode(grammarNode).setConstruction(NFAMap.Construction.GLUSHKOV).build();
+            List<String> names = new ArrayList<>();
+            List<MatchEngine> engines = new ArrayList<>();
+            names.add("nfa");
+            engines.add(thompsonMap.matcher());
+            names.add("thompsonEngine");
+            engines.add(thompsonMap.engine());
+            names.add("lazyDFA");
+            engines.add(new LazyDFA(thompsonMap));
+            CompiledDFA compiledDFA = null;
+            try {
+                compiledDFA = CompiledDFA.compile(thompsonMap);
+                names.add("compiledDFA");
+                engines.add(compiledDFA);
+            } catch (AutomatonTooLargeException ignored) {
+            }
+            AutomatonSnapshot snapshot = saveAndLoad(snapshotPath, thompsonMap, compiledDFA);
+            names.add("snapshot.nfa");
+            engines.add(snapshot.getNFAMap().matcher());
+            if (compiledDFA != null) {
+                names.add("snapshot.compiledDFA");
+                engines.add(snapshot.getCompiledDFA());
+            }
+            names.add("glushkovEngine");
+            engines.add(glushkovMap.engine());
+            names.add("simplified");
+            engines.add(new NFAMap.Builder().setNode(grammarNode).setSimplify(true).build().matcher());
+            PikeVM pikeVM = new NFAMap.Builder().setNode(grammarNode).setCaptureGroups(true).build().pikeVM();
+            names.add("pikeVM");
+            engines.add(pikeVM);
+            boolean isCaptureComparable = !hasNullableRepeat(grammarNode);
+            CompiledDFA patternsDFA = null;
+            try {
+                patternsDFA = CompiledDFA.compile(new NFAMap.Builder().setNodes(grammarNode, otherNode).build());
+            } catch (AutomatonTooLargeException ignored) {
+            }
+
+            for (int j = 0; j < inputCount; j++) {
+                String input = generateInput();
+                Matcher matcher = pattern.matcher(input);
+                boolean isMatched = matcher.matches();
+                int earliestEnd = getEarliestEnd(matcher, 0, 0, input.length());
+                // Search may start anywhere in input or after its end
+                int from = random.nextInt(input.length() + 2);
+                int earliestEndFrom = from > input.length() ? -1 : getEarliestEnd(matcher, from, from, input.length());
+                for (int k = 0; k < engines.size(); k++) {
+                    MatchEngine engine = engines.get(k);
+                    boolean actualMatched = engine.matches(input);
+                    if (actualMatched != isMatched) {
+                        fail(expression, input, names.get(k) + ".matches", isMatched, actualMatched);
+                    }
+                    int actualEnd = engine.search(input, 0);
+                    if (actualEnd != earliestEnd) {
+                        fail(expression, input, names.get(k) + ".search", earliestEnd, actualEnd);
+                    }
+                    int actualEndFrom = engine.search(input, from);
+                    if (actualEndFrom != earliestEndFrom) {
+                        fail(expression, input, names.get(k) + ".search from " + from, earliestEndFrom, actualEndFrom);
+                    }
+                    checkCount += 3;
+                }
+                checkPikeVM(expression, input, pikeVM, matcher, isCaptureComparable);
+                if (compiledDFA != null) {
+                    checkSearchers(expression, input, compiledDFA, matcher);
+                }
+                if (patternsDFA != null) {
+                    checkPatterns(expression + " " + otherExpression, input, patternsDFA, matcher, otherPattern.matcher(input));
+                }
+            }
+        }
+        Files.delete(snapshotPath);
+        System.out.println(String.format("Differential: %d expressions, %d checks, %d failures", caseCount, checkCount, failureCount));
+    }
+
+    private String generateCase() {
+        return generate(1 + random.nextInt(MAX_CASE_SIZE), 1 + random.nextInt(MAX_CASE_DEPTH), false);
+    }
+
+    private static Pattern toPattern(String expression) {
+        return Pattern.compile(expression.replace(String.valueOf(Symbol.AND), ""));
+    }
+
+    /**
+     * Group count and start of leftmost match are always checked
+     * Spans of all groups are checked if they are comparable, otherwise whole match must be a match of Java and contain every group
+     *
+     * @param isCaptureComparable Expression has no repeat of nullable subexpression, where backtracking engines stop a loop at an empty repeat
+     */
+    private void checkPikeVM(String expression, String input, PikeVM pikeVM, Matcher matcher, boolean isCaptureComparable) {
+        if (matcher.reset().matches() && pikeVM.matches(input)) {
+            checkGroups(expression, input, "pikeVM.matches", pikeVM, matcher, isCaptureComparable);
+        }
+        boolean isFound = matcher.reset().find();
+        int leftmostStart = isFound ? matcher.start() : -1;
+        int actualStart = pikeVM.find(input) ? pikeVM.start() : -1;
+        checkCount++;
+        if (actualStart != leftmostStart) {
+            fail(expression, input, "pikeVM.find", leftmostStart, actualStart);
+        } else if (isFound) {
+            checkGroups(expression, input, "pikeVM.find", pikeVM, matcher, isCaptureComparable);
+        }
+    }
+
+    /**
+     * @param isComparable Spans of groups are the same as Java
+     */
+    private void checkGroups(String expression, String input, String check, PikeVM pikeVM, Matcher matcher, boolean isComparable) {
+        checkCount++;
+        if (pikeVM.groupCount() != matcher.groupCount()) {
+            fail(expression, input, check + ".groupCount", matcher.groupCount(), pikeVM.groupCount());
+            return;
+        }
+        if (isComparable) {
+            for (int group = 0; group <= matcher.groupCount(); group++) {
+                if (pikeVM.start(group) != matcher.start(group) || pikeVM.end(group) != matcher.end(group)) {
+                    fail(expression, input, check + ".group" + group, getSpan(matcher.start(group), matcher.end(group)),
+                            getSpan(pikeVM.start(group), pikeVM.end(group)));
+                    return;
+                }
+            }
+            return;
+        }
+        int start = pikeVM.start();
+        int end = pikeVM.end();
+        if (!matcher.region(start, end).matches()) {
+            fail(expression, input, check + ".group0", "match of Java", getSpan(start, end));
+            return;
+        }
+        for (int group = 1; group <= matcher.groupCount(); group++) {
+            int groupStart = pikeVM.start(group);
+            int groupEnd = pikeVM.end(group);
+            if (groupStart >= 0 && (groupStart < start || groupEnd > end || groupStart > groupEnd)) {
+                fail(expression, input, check + ".group" + group, "in " + getSpan(start, end), getSpan(groupStart, groupEnd));
+                return;
+            }
+        }
+    }
+
+    private static String getSpan(int start, int end) {
+        return "[" + start + ", " + end + ")";
+    }
+
+    /**
+     * Stream searcher is fed in two chunks, parallel searcher uses tiny chunks, so matches across chunk boundaries are checked
+     */
+    private void checkSearchers(String expression, String input, CompiledDFA compiledDFA, Matcher matcher) {
+        List<Long> expected = getStreamMatchEnds(matcher, input.length());
+        byte[] bytes = input.getBytes(StandardCharsets.ISO_8859_1);
+
+        List<Long> streamEnds = new ArrayList<>();
+        StreamSearcher streamSearcher = new StreamSearcher(compiledDFA);
+        int split = random.nextInt(bytes.length + 1);
+        streamSearcher.feed(bytes, 0, split, streamEnds::add);
+        streamSearcher.feed(bytes, split, bytes.length, streamEnds::add);
+        streamSearcher.finish(streamEnds::add);
+        if (!streamEnds.equals(expected)) {
+            fail(expression, input, "streamSearcher", expected, streamEnds);
+        }
+
+        List<Long> parallelEnds = new ArrayList<>();
+        new ParallelSearcher(compiledDFA, ForkJoinPool.commonPool(), 1 + random.nextInt(4)).search(ByteBuffer.wrap(bytes), parallelEnds::add);
+        if (!parallelEnds.equals(expected)) {
+            fail(expression, input, "parallelSearcher", expected, parallelEnds);
+        }
+        checkCount += 2;
+    }
+
+    /**
+     * Patterns of DFA built from two expressions
+     */
+    private void checkPatterns(String expressions, String input, CompiledDFA patternsDFA, Matcher matcher, Matcher otherMatcher) {
+        Matcher[] matchers = {matcher, otherMatcher};
+        List<Integer> expectedMatched = new ArrayList<>();
+        BitSet expectedFound = new BitSet();
+        for (int pattern = 0; pattern < matchers.length; pattern++) {
+            if (matchers[pattern].reset().matches()) {
+                expectedMatched.add(pattern);
+            }
+            if (matchers[pattern].reset().find()) {
+                expectedFound.set(pattern);
+            }
+        }
+        List<Integer> actualMatched = new ArrayList<>();
+        for (int pattern : patternsDFA.matchPatterns(input)) {
+            actualMatched.add(pattern);
+        }
+        if (!actualMatched.equals(expectedMatched)) {
+            fail(expressions, input, "matchPatterns", expectedMatched, actualMatched);
+        }
+        BitSet actualFound = patternsDFA.searchPatterns(input);
+        if (!actualFound.equals(expectedFound)) {
+            fail(expressions, input, "searchPatterns", expectedFound, actualFound);
+        }
+        checkCount += 2;
+    }
+
+    /**
+     * Repeat of a subexpression which matches empty input, e.g. (a?)*, (a|b?){2}
+     */
+    private static boolean hasNullableRepeat(GrammarNode node) {
+        if (node.getRepeatMax() != 1 && isNullable(node, false)) {
+            return true;
+        }
+        for (GrammarNode childNode : node.getChildNodes()) {
+            if (hasNullableRepeat(childNode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param isWithRepeat Repeat of this node is counted
+     */
+    private static boolean isNullable(GrammarNode node, boolean isWithRepeat) {
+        if (isWithRepeat && node.getRepeatMin() == 0) {
+            return true;
+        }
+        if (node.isLeafNode()) {
+            return false;
+        }
+        GrammarNode[] childNodes = node.getChildNodes();
+        if (node.getCalculateSymbol() == Symbol.OR) {
+            for (GrammarNode childNode : childNodes) {
+                if (isNullable(childNode, true)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (GrammarNode childNode : childNodes) {
+            if (!isNullable(childNode, true)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Loaded NFA should have the same arrays and expressions as the saved one
+     *
+     * @return Loaded snapshot
+     */
+    private AutomatonSnapshot saveAndLoad(Path path, NFAMap nfaMap, CompiledDFA compiledDFA) throws IOException {
+        AutomatonSnapshot.write(path, Arrays.asList(new AutomatonSnapshot(nfaMap, compiledDFA)));
+        AutomatonSnapshot snapshot = AutomatonSnapshot.load(path).get(0);
+        NFAMap loaded = snapshot.getNFAMap();
+        String expression = nfaMap.getOriginalRegularExpression();
+        if (!loaded.getOriginalRegularExpression().equals(expression) || !loaded.getNormalizedExpression().equals(nfaMap.getNormalizedExpression()) ||
+                loaded.getConstruction() != nfaMap.getConstruction()) {
+            fail(expression, "", "snapshot.expression", nfaMap.getNormalizedExpression() + " " + nfaMap.getConstruction(),
+                    loaded.getNormalizedExpression() + " " + loaded.getConstruction());
+        }
+        if (loaded.getStatusCount() != nfaMap.getStatusCount() || !Arrays.equals(loaded.getTransitionOffsets(), nfaMap.getTransitionOffsets()) ||
+                !Arrays.equals(loaded.getTransitionSymbols(), nfaMap.getTransitionSymbols()) ||
+                !Arrays.equals(loaded.getTransitionTargets(), nfaMap.getTransitionTargets())) {
+            fail(expression, "", "snapshot.transitions", nfaMap.getTransitionCount(), loaded.getTransitionCount());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Matches don't overlap, the next match starts from the end of last match and ends after it
+     *
+     * @return End of every match which ends earliest, like {@link StreamSearcher}
+     */
+    private static List<Long> getStreamMatchEnds(Matcher matcher, int length) {
+        List<Long> ends = new ArrayList<>();
+        int end = getEarliestEnd(matcher, 0, 0, length);
+        while (end >= 0) {
+            ends.add((long) end);
+            end = getEarliestEnd(matcher, end, end + 1, length);
+        }
+        return ends;
+    }
+
+    /**
+     * @param from   Min start of match
+     * @param minEnd Min end of match
+     * @return End of the match which ends earliest, -1 if not found
+     */
+    private static int getEarliestEnd(Matcher matcher, int from, int minEnd, int length) {
+        for (int end = minEnd; end <= length; end++) {
+            for (int start = from; start <= end; start++) {
+                if (matcher.region(start, end).matches()) {
+                    return end;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void fail(String expression, String input, String check, Object expected, Object actual) {
+        failureCount++;
+        if (failureCount <= MAX_REPORTED_FAILURES) {
+            System.out.println(String.format("FAIL %s: expression \"%s\" input \"%s\" expected %s actual %s", check, expression, input, expected, actual));
+        }
+    }
+
+    private String generateInput() {
+        int length = random.nextInt(MAX_INPUT_LENGTH + 1);
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(INPUT_CHARS.charAt(random.nextInt(INPUT_CHARS.length())));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param size     Count of leaves
+     * @param maxDepth Max nesting depth of parenthesis, recursion is limited by it
+     * @param isLimitBoundedRepeat Bounded repeats are only applied to small subexpressions
+     */
+    private String generate(int size, int maxDepth, boolean isLimitBoundedRepeat) {
+        StringBuilder builder = new StringBuilder(size * 4);
+        generate(builder, size, maxDepth, isLimitBoundedRepeat);
+        return builder.toString();
+    }
+
+    private void generate(StringBuilder builder, int size, int depth, boolean isLimitBoundedRepeat) {
+        if (size == 1 || depth == 0) {
+            for (int i = 0; i < size; i++) {
+                appendSeparator(builder, i);
+                appendLeaf(builder);
+                appendRepeat(builder, 1, isLimitBoundedRepeat);
+            }
+            return;
+        }
+        // Concatenation or parenthesized alternation of 2 to 4 parts
+        int partCount = Math.min(size, 2 + random.nextInt(3));
+        boolean isAlternation = random.nextBoolean();
+        if (isAlternation) {
+            builder.append(Symbol.PARENTHESIS_LEFT);
+        }
+        int remaining = size;
+        for (int i = 0; i < partCount; i++) {
+            int partSize = i == partCount - 1 ? remaining : 1 + random.nextInt(remaining - (partCount - i) + 1);
+            remaining -= partSize;
+            if (isAlternation) {
+                if (i > 0) {
+                    builder.append(Symbol.OR);
+                }
+            } else {
+                appendSeparator(builder, i);
+            }
+            // Part is parenthesized if it gets a repeat, so repeats are never stacked
+            boolean isRepeated = partSize > 1 && random.nextInt(3) == 0;
+            if (isRepeated) {
+                builder.append(Symbol.PARENTHESIS_LEFT);
+            }
+            generate(builder, partSize, depth - 1, isLimitBoundedRepeat);
+            if (isRepeated) {
+                builder.append(Symbol.PARENTHESIS_RIGHT);
+                appendRepeat(builder, partSize, isLimitBoundedRepeat);
+            }
+        }
+        if (isAlternation) {
+            builder.append(Symbol.PARENTHESIS_RIGHT);
+        }
+    }
+
+    /**
+     * (((a|b)*|c)+|d)?...
+     *
+     * @param depth Nesting depth of parenthesis
+     */
+    private String generateDeep(int depth) {
+        StringBuilder builder = new StringBuilder(depth * 5);
+        for (int i = 0; i < depth; i++) {
+            builder.append(Symbol.PARENTHESIS_LEFT);
+        }
+        appendLeaf(builder);
+        for (int i = 0; i < depth; i++) {
+            builder.append(Symbol.OR);
+            appendLeaf(builder);
+            builder.append(Symbol.PARENTHESIS_RIGHT);
+            appendRepeat(builder, Integer.MAX_VALUE, true);
+        }
+        return builder.toString();
+    }
+
+    private void appendLeaf(StringBuilder builder) {
+        if (random.nextInt(4) == 0) {
+            builder.append(CHAR_SETS[random.nextInt(CHAR_SETS.length)]);
+        } else {
+            builder.append(LETTERS[random.nextInt(LETTERS.length)]);
+        }
+    }
+
+    /**
+     * Concatenation is implicit or uses AND symbol
+     */
+    private void appendSeparator(StringBuilder builder, int index) {
+        if (index > 0 && random.nextInt(4) == 0) {
+            builder.append(Symbol.AND);
+        }
+    }
+
+    /**
+     * Maybe append *, +, ?, {m}, {m,} or {m,n}
+     *
+     * @param size Count of leaves of the repeated subexpression
+     */
+    private void appendRepeat(StringBuilder builder, int size, boolean isLimitBoundedRepeat) {
+        int kind = random.nextInt(isLimitBoundedRepeat && size > MAX_BOUNDED_REPEAT_SIZE ? 5 : 8);
+        switch (kind) {
+            case 0:
+                builder.append(Symbol.SELF_LOOP);
+                break;
+            case 1:
+                builder.append(Symbol.PLUS);
+                break;
+            case 2:
+                builder.append(Symbol.OPTIONAL);
+                break;
+            case 5:
+                builder.append(Symbol.REPEAT_LEFT).append(1 + random.nextInt(3)).append(Symbol.REPEAT_RIGHT);
+                break;
+            case 6:
+                builder.append(Symbol.REPEAT_LEFT).append(random.nextInt(3)).append(Symbol.REPEAT_SEPARATOR).append(Symbol.REPEAT_RIGHT);
+                break;
+            case 7:
+                int min = random.nextInt(3);
+                builder.append(Symbol.REPEAT_LEFT).append(min).append(Symbol.REPEAT_SEPARATOR).append(min + 1 + random.nextInt(2)).append(Symbol.REPEAT_RIGHT);
+                break;
+            default:
+                // No repeat
+                break;
+        }
+    }
+}
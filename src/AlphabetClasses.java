@@ -0,0 +1,199 @@
+import java.util.Arrays;
+
+/**
+ * Alphabet equivalence classes
+ * Chars in the same class can't be distinguished by any edge of the NFA, so automata only need one transition for each class
+ * Char set symbol is a union of classes, so automata size depends on the count of classes instead of chars
+ * Class 0 contains all chars which are not used by the NFA
+ *
+ * @author xfy9326
+ */
+final class AlphabetClasses {
+    private static final int ASCII_SIZE = 128;
+    // Chars in [rangeStarts[i], rangeStarts[i + 1]) are in class rangeClasses[i]
+    private final char[] rangeStarts;
+    private final int[] rangeClasses;
+    private final int[] asciiClasses;
+    // A char of each class
+    private final char[] representatives;
+
+    AlphabetClasses(char[] rangeStarts, int[] rangeClasses, char[] representatives) {
+        this.rangeStarts = rangeStarts;
+        this.rangeClasses = rangeClasses;
+        this.representatives = representatives;
+        this.asciiClasses = new int[ASCII_SIZE];
+        for (int c = 0; c < ASCII_SIZE; c++) {
+            this.asciiClasses[c] = findClass((char) c);
+        }
+    }
+
+    /**
+     * Alphabet is cut into intervals at the bounds of every char and char set, and each symbol splits the classes it covers
+     * A class is only split if the symbol covers part of it, so class count is at most the interval count
+     *
+     * @param nfaMap NFA Map
+     * @return Classes of all symbols in NFA
+     */
+    static AlphabetClasses of(NFAMap nfaMap) {
+        int[] symbols = nfaMap.getTransitionSymbols();
+        int[] charSetOffsets = nfaMap.getCharSetOffsets();
+        char[] charSetRanges = nfaMap.getCharSetRanges();
+        int[] sortedSymbols = new int[symbols.length];
+        int size = 0;
+        for (int symbol : symbols) {
+            if (symbol != NFAMap.EPSILON_SYMBOL) {
+                sortedSymbols[size++] = symbol;
+            }
+        }
+        Arrays.sort(sortedSymbols, 0, size);
+        int symbolCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || sortedSymbols[i] != sortedSymbols[i - 1]) {
+                sortedSymbols[symbolCount++] = sortedSymbols[i];
+            }
+        }
+
+        // Ranges [low, high] of each symbol
+        int[] rangeOffsets = new int[symbolCount + 1];
+        for (int i = 0; i < symbolCount; i++) {
+            int symbol = sortedSymbols[i];
+            int rangeSize = 2;
+            if (symbol >= NFAMap.CHAR_SET_SYMBOL_BASE) {
+                int charSet = symbol - NFAMap.CHAR_SET_SYMBOL_BASE;
+                rangeSize = charSetOffsets[charSet + 1] - charSetOffsets[charSet];
+            }
+            rangeOffsets[i + 1] = rangeOffsets[i] + rangeSize;
+        }
+        char[] symbolRanges = new char[rangeOffsets[symbolCount]];
+        for (int i = 0; i < symbolCount; i++) {
+            int symbol = sortedSymbols[i];
+            if (symbol >= NFAMap.CHAR_SET_SYMBOL_BASE) {
+                int charSet = symbol - NFAMap.CHAR_SET_SYMBOL_BASE;
+                System.arraycopy(charSetRanges, charSetOffsets[charSet], symbolRanges, rangeOffsets[i], rangeOffsets[i + 1] - rangeOffsets[i]);
+            } else {
+                symbolRanges[rangeOffsets[i]] = (char) symbol;
+                symbolRanges[rangeOffsets[i] + 1] = (char) symbol;
+            }
+        }
+
+        // Interval i is [bounds[i], bounds[i + 1])
+        int[] bounds = new int[symbolRanges.length + 2];
+        int boundCount = 0;
+        bounds[boundCount++] = Character.MIN_VALUE;
+        for (int i = 0; i < symbolRanges.length; i += 2) {
+            bounds[boundCount++] = symbolRanges[i];
+            bounds[boundCount++] = symbolRanges[i + 1] + 1;
+        }
+        Arrays.sort(bounds, 0, boundCount);
+        int intervalCount = 0;
+        for (int i = 0; i < boundCount; i++) {
+            if (bounds[i] <= Character.MAX_VALUE && (i == 0 || bounds[i] != bounds[i - 1])) {
+                bounds[intervalCount++] = bounds[i];
+            }
+        }
+        bounds[intervalCount] = Character.MAX_VALUE + 1;
+
+        // All intervals start in class 0
+        int[] intervalClasses = new int[intervalCount];
+        int[] classSizes = new int[intervalCount + 1];
+        classSizes[0] = intervalCount;
+        int classCount = 1;
+        // Covered interval count and new class of each class split by current symbol
+        int[] coveredSizes = new int[intervalCount + 1];
+        int[] splitClasses = new int[intervalCount + 1];
+        for (int i = 0; i < symbolCount; i++) {
+            for (int step = 0; step < 2; step++) {
+                for (int j = rangeOffsets[i]; j < rangeOffsets[i + 1]; j += 2) {
+                    int high = symbolRanges[j + 1];
+                    for (int interval = Arrays.binarySearch(bounds, 0, intervalCount, symbolRanges[j]); interval < intervalCount && bounds[interval] <= high; interval++) {
+                        int oldClass = intervalClasses[interval];
+                        if (step == 0) {
+                            coveredSizes[oldClass]++;
+                        } else if (coveredSizes[oldClass] > 0) {
+                            // Class 0 only contains chars which are not used
+                            if (oldClass != 0 && coveredSizes[oldClass] == classSizes[oldClass]) {
+                                splitClasses[oldClass] = oldClass;
+                            } else {
+                                splitClasses[oldClass] = classCount++;
+                                classSizes[oldClass] -= coveredSizes[oldClass];
+                                classSizes[splitClasses[oldClass]] = coveredSizes[oldClass];
+                            }
+                            coveredSizes[oldClass] = 0;
+                            intervalClasses[interval] = splitClasses[oldClass];
+                        } else {
+                            intervalClasses[interval] = splitClasses[oldClass];
+                        }
+                    }
+                }
+            }
+        }
+
+        // Classes are renumbered in char order, class 0 is kept
+        int[] classIds = new int[classCount];
+        Arrays.fill(classIds, -1);
+        classIds[0] = 0;
+        int idCount = 1;
+        char[] rangeStarts = new char[intervalCount];
+        int[] rangeClasses = new int[intervalCount];
+        char[] representatives = new char[classCount];
+        // If all chars are used, class 0 is empty and its representative is never used
+        boolean hasUnusedChar = false;
+        int rangeSize = 0;
+        for (int interval = 0; interval < intervalCount; interval++) {
+            int oldClass = intervalClasses[interval];
+            if (oldClass == 0) {
+                if (!hasUnusedChar) {
+                    hasUnusedChar = true;
+                    representatives[0] = (char) bounds[interval];
+                }
+            } else if (classIds[oldClass] < 0) {
+                classIds[oldClass] = idCount++;
+                representatives[classIds[oldClass]] = (char) bounds[interval];
+            }
+            if (rangeSize == 0 || rangeClasses[rangeSize - 1] != classIds[oldClass]) {
+                rangeStarts[rangeSize] = (char) bounds[interval];
+                rangeClasses[rangeSize++] = classIds[oldClass];
+            }
+        }
+
+        return new AlphabetClasses(Arrays.copyOf(rangeStarts, rangeSize), Arrays.copyOf(rangeClasses, rangeSize), Arrays.copyOf(representatives, idCount));
+    }
+
+    private int findClass(char c) {
+        int low = 0;
+        int high = rangeStarts.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (rangeStarts[mid] <= c) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return rangeClasses[low];
+    }
+
+    int getClass(char c) {
+        return c < ASCII_SIZE ? asciiClasses[c] : findClass(c);
+    }
+
+    int getClassCount() {
+        return representatives.length;
+    }
+
+    char getRepresentative(int alphabetClass) {
+        return representatives[alphabetClass];
+    }
+
+    char[] getRangeStarts() {
+        return rangeStarts;
+    }
+
+    int[] getRangeClasses() {
+        return rangeClasses;
+    }
+
+    char[] getRepresentatives() {
+        return representatives;
+    }
+}
@@ -0,0 +1,440 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary snapshot of built NFA and its compiled DFA, so they can be loaded without parsing and building again
+ * File: header (magic, version, entry count), then entries of NFA CSR arrays, char sets (since version 2),
+ * optional capture slots, original expression, optional construction and normalized expression (since version 3),
+ * optional status names, and optional DFA with alphabet map, transition table and accepted patterns
+ * Snapshots of older versions can still be loaded
+ * All values are little endian ints, strings are UTF-16 chars padded to 4 bytes
+ * Loading copies arrays out of the mapped file in bulk, no object is created for each status
+ *
+ * @author xfy9326
+ */
+public final class AutomatonSnapshot {
+    public static final int VERSION = 3;
+    // Version which adds char sets
+    private static final int VERSION_CHAR_SETS = 2;
+    // Version which adds capture slots, construction and normalized expression
+    private static final int VERSION_CAPTURE_GROUPS = 3;
+    // "NFAS"
+    private static final int MAGIC = 0x5341464E;
+    private static final int FLAG_STATUS_NAMES = 1;
+    private static final int FLAG_COMPILED_DFA = 1 << 1;
+    private static final int FLAG_CAPTURE_GROUPS = 1 << 2;
+    private static final int FLAG_CONSTRUCTION = 1 << 3;
+    private static final int FLAG_NORMALIZED_EXPRESSION = 1 << 4;
+
+    private final NFAMap nfaMap;
+    private final CompiledDFA compiledDFA;
+
+    public AutomatonSnapshot(NFAMap nfaMap) {
+        this(nfaMap, null);
+    }
+
+    /**
+     * @param nfaMap      NFA Map
+     * @param compiledDFA DFA compiled from this NFA, null means no DFA
+     */
+    public AutomatonSnapshot(NFAMap nfaMap, CompiledDFA compiledDFA) {
+        if (nfaMap == null) {
+            throw new IllegalArgumentException("NFA Map can't be null!");
+        }
+        this.nfaMap = nfaMap;
+        this.compiledDFA = compiledDFA;
+    }
+
+    /**
+     * @param path      Output file, it will be replaced
+     * @param snapshots Snapshots
+     * @throws IOException Write failed, or snapshots are larger than 2 GB
+     */
+    public static void write(Path path, List<AutomatonSnapshot> snapshots) throws IOException {
+        long size = 3 * Integer.BYTES;
+        for (AutomatonSnapshot snapshot : snapshots) {
+            size += snapshot.getSize();
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot size " + size + " exceeds 2 GB!");
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(snapshots.size());
+            for (AutomatonSnapshot snapshot : snapshots) {
+                snapshot.writeTo(buffer);
+            }
+            buffer.force();
+        }
+    }
+
+    /**
+     * @param path Snapshot file
+     * @return Snapshots in the written order
+     * @throws IOException Read failed, or file is not a snapshot of this or older version
+     */
+    public static List<AutomatonSnapshot> load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot size " + size + " exceeds 2 GB!");
+            }
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    /**
+     * @param buffer Snapshot bytes from position
+     * @return Snapshots in the written order
+     * @throws IOException Bytes are not a snapshot of this or older version
+     */
+    static List<AutomatonSnapshot> read(ByteBuffer buffer) throws IOException {
+        buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot file!");
+            }
+            int version = buffer.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Snapshot version " + version + " is not supported!");
+            }
+            int count = readLength(buffer);
+            List<AutomatonSnapshot> result = new ArrayList<>(Math.min(count, buffer.remaining() / Integer.BYTES));
+            for (int i = 0; i < count; i++) {
+                result.add(readSnapshot(buffer, version));
+            }
+            return result;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Snapshot is broken!", e);
+        }
+    }
+
+    private static AutomatonSnapshot readSnapshot(ByteBuffer buffer, int version) throws IOException {
+        int flags = buffer.getInt();
+        int statusCount = readLength(buffer);
+        int startStatus = buffer.getInt();
+        int patternCount = readLength(buffer);
+        int[] endStatuses = readInts(buffer, readLength(buffer));
+        int[] acceptPatternOffsets = readOffsets(buffer, statusCount);
+        int[] acceptPatterns = readInts(buffer, acceptPatternOffsets[statusCount]);
+        int[] transitionOffsets = readOffsets(buffer, statusCount);
+        int edgeCount = transitionOffsets[statusCount];
+        int[] transitionSymbols = readInts(buffer, edgeCount);
+        int[] transitionTargets = readInts(buffer, edgeCount);
+        int charSetCount = 0;
+        int[] charSetOffsets = new int[1];
+        char[] charSetRanges = new char[0];
+        if (version >= VERSION_CHAR_SETS) {
+            charSetCount = readLength(buffer);
+            charSetOffsets = readOffsets(buffer, charSetCount);
+            charSetRanges = readChars(buffer, readLength(buffer));
+        }
+        int captureGroupCount = 0;
+        int[] captureSlots = null;
+        if (version >= VERSION_CAPTURE_GROUPS && (flags & FLAG_CAPTURE_GROUPS) != 0) {
+            captureGroupCount = readLength(buffer);
+            captureSlots = readInts(buffer, statusCount);
+        }
+        String originalRegularExpression = readString(buffer);
+        NFAMap.Construction construction = null;
+        String normalizedExpression = null;
+        if (version >= VERSION_CAPTURE_GROUPS) {
+            if ((flags & FLAG_CONSTRUCTION) != 0) {
+                int ordinal = buffer.getInt();
+                checkRange(ordinal, NFAMap.Construction.values().length);
+                construction = NFAMap.Construction.values()[ordinal];
+            }
+            if ((flags & FLAG_NORMALIZED_EXPRESSION) != 0) {
+                normalizedExpression = readString(buffer);
+            }
+        }
+        String[] statusNames = null;
+        if ((flags & FLAG_STATUS_NAMES) != 0) {
+            statusNames = new String[statusCount];
+            for (int i = 0; i < statusCount; i++) {
+                statusNames[i] = readString(buffer);
+            }
+        }
+
+        // Broken arrays would fail later in matching, so they are checked here
+        checkRange(startStatus, statusCount);
+        if (endStatuses.length == 0) {
+            throw new IOException("Snapshot is broken!");
+        }
+        for (int endStatus : endStatuses) {
+            checkRange(endStatus, statusCount);
+        }
+        for (int pattern : acceptPatterns) {
+            checkRange(pattern, patternCount);
+        }
+        for (int i = 0; i < edgeCount; i++) {
+            checkRange(transitionTargets[i], statusCount);
+            if (transitionSymbols[i] != NFAMap.EPSILON_SYMBOL) {
+                checkRange(transitionSymbols[i], NFAMap.CHAR_SET_SYMBOL_BASE + charSetCount);
+            }
+        }
+        // Ranges of char set are sorted and not overlapped
+        if (charSetOffsets[charSetCount] != charSetRanges.length) {
+            throw new IOException("Snapshot is broken!");
+        }
+        for (int charSet = 0; charSet < charSetCount; charSet++) {
+            int from = charSetOffsets[charSet];
+            int to = charSetOffsets[charSet + 1];
+            if ((to - from) % 2 != 0) {
+                throw new IOException("Snapshot is broken!");
+            }
+            for (int i = from; i < to; i += 2) {
+                if (charSetRanges[i] > charSetRanges[i + 1] || (i > from && charSetRanges[i] <= charSetRanges[i - 1])) {
+                    throw new IOException("Snapshot is broken!");
+                }
+            }
+        }
+        // Slot of group 0 is never saved by status
+        if (captureSlots != null) {
+            if (captureGroupCount == 0 || captureGroupCount > Integer.MAX_VALUE / 2 - 1) {
+                throw new IOException("Snapshot is broken!");
+            }
+            for (int slot : captureSlots) {
+                if (slot != -1) {
+                    checkRange(slot - 2, captureGroupCount * 2);
+                }
+            }
+        }
+        NFAMap nfaMap = new NFAMap(statusCount, startStatus, endStatuses, patternCount, acceptPatternOffsets, acceptPatterns,
+                transitionOffsets, transitionSymbols, transitionTargets, charSetOffsets, charSetRanges, captureGroupCount, captureSlots,
+                statusNames, originalRegularExpression, normalizedExpression, construction);
+
+        CompiledDFA compiledDFA = null;
+        if ((flags & FLAG_COMPILED_DFA) != 0) {
+            compiledDFA = readCompiledDFA(buffer, patternCount);
+        }
+        return new AutomatonSnapshot(nfaMap, compiledDFA);
+    }
+
+    private static CompiledDFA readCompiledDFA(ByteBuffer buffer, int patternCount) throws IOException {
+        char[] rangeStarts = readChars(buffer, readLength(buffer));
+        int[] rangeClasses = readInts(buffer, rangeStarts.length);
+        char[] representatives = readChars(buffer, readLength(buffer));
+        int classCount = representatives.length;
+        int statusCount = readLength(buffer);
+        int acceptingStart = buffer.getInt();
+        int anchoredStart = buffer.getInt();
+        int unanchoredStart = buffer.getInt();
+        if ((long) statusCount * classCount > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot is broken!");
+        }
+        int[] transitions = readInts(buffer, statusCount * classCount);
+        int[] statusPatternOffsets = readOffsets(buffer, statusCount);
+        int[] statusPatterns = readInts(buffer, statusPatternOffsets[statusCount]);
+
+        if (rangeStarts.length == 0 || rangeStarts[0] != 0 || classCount == 0) {
+            throw new IOException("Snapshot is broken!");
+        }
+        for (int rangeClass : rangeClasses) {
+            checkRange(rangeClass, classCount);
+        }
+        checkRange(acceptingStart, transitions.length + 1);
+        checkStatus(anchoredStart, transitions.length, classCount);
+        checkStatus(unanchoredStart, transitions.length, classCount);
+        for (int status : transitions) {
+            checkStatus(status, transitions.length, classCount);
+        }
+        for (int pattern : statusPatterns) {
+            checkRange(pattern, patternCount);
+        }
+        return new CompiledDFA(new AlphabetClasses(rangeStarts, rangeClasses, representatives), statusCount, transitions,
+                acceptingStart, anchoredStart, unanchoredStart, patternCount, statusPatternOffsets, statusPatterns);
+    }
+
+    private static int readLength(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0) {
+            throw new IOException("Snapshot is broken!");
+        }
+        return length;
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int length) throws IOException {
+        // Checked before allocation, broken length should not allocate a huge array
+        if (length > buffer.remaining() / Integer.BYTES) {
+            throw new IOException("Snapshot is broken!");
+        }
+        int[] result = new int[length];
+        buffer.asIntBuffer().get(result);
+        buffer.position(buffer.position() + length * Integer.BYTES);
+        return result;
+    }
+
+    private static char[] readChars(ByteBuffer buffer, int length) throws IOException {
+        if (length > buffer.remaining() / Character.BYTES) {
+            throw new IOException("Snapshot is broken!");
+        }
+        char[] result = new char[length];
+        buffer.asCharBuffer().get(result);
+        buffer.position(buffer.position() + getPaddedCharBytes(length));
+        return result;
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        return new String(readChars(buffer, readLength(buffer)));
+    }
+
+    private static void checkRange(int value, int limit) throws IOException {
+        if (value < 0 || value >= limit) {
+            throw new IOException("Snapshot is broken!");
+        }
+    }
+
+    /**
+     * @param status     Premultiplied DFA status
+     * @param tableSize  Transition table size
+     * @param classCount Alphabet class count
+     */
+    private static void checkStatus(int status, int tableSize, int classCount) throws IOException {
+        checkRange(status, tableSize);
+        if (status % classCount != 0) {
+            throw new IOException("Snapshot is broken!");
+        }
+    }
+
+    /**
+     * @param count Element count, offsets are one more than it
+     * @return CSR offsets, checked to be ascending from 0
+     */
+    private static int[] readOffsets(ByteBuffer buffer, int count) throws IOException {
+        if (count == Integer.MAX_VALUE) {
+            throw new IOException("Snapshot is broken!");
+        }
+        int[] offsets = readInts(buffer, count + 1);
+        if (offsets[0] != 0) {
+            throw new IOException("Snapshot is broken!");
+        }
+        for (int i = 1; i < offsets.length; i++) {
+            if (offsets[i] < offsets[i - 1]) {
+                throw new IOException("Snapshot is broken!");
+            }
+        }
+        return offsets;
+    }
+
+    private static int getPaddedCharBytes(int length) {
+        return (length * Character.BYTES + 3) & ~3;
+    }
+
+    private static long getStringSize(String value) {
+        return Integer.BYTES + getPaddedCharBytes(value.length());
+    }
+
+    private static void writeInts(ByteBuffer buffer, int[] values) {
+        buffer.asIntBuffer().put(values);
+        buffer.position(buffer.position() + values.length * Integer.BYTES);
+    }
+
+    private static void writeChars(ByteBuffer buffer, char[] values) {
+        buffer.putInt(values.length);
+        buffer.asCharBuffer().put(values);
+        buffer.position(buffer.position() + getPaddedCharBytes(values.length));
+    }
+
+    private static void writeString(ByteBuffer buffer, String value) {
+        writeChars(buffer, value.toCharArray());
+    }
+
+    private long getSize() {
+        long size = 5L * Integer.BYTES;
+        size += 4L * (nfaMap.getEndStatusArray().length + 2L * (nfaMap.getStatusCount() + 1) + nfaMap.getAcceptPatternArray().length + 2L * nfaMap.getTransitionCount());
+        size += Integer.BYTES + 4L * nfaMap.getCharSetOffsets().length + Integer.BYTES + getPaddedCharBytes(nfaMap.getCharSetRanges().length);
+        if (nfaMap.getCaptureSlots() != null) {
+            size += Integer.BYTES + 4L * nfaMap.getStatusCount();
+        }
+        size += getStringSize(nfaMap.getOriginalRegularExpression());
+        if (nfaMap.getConstruction() != null) {
+            size += Integer.BYTES;
+        }
+        if (nfaMap.getNormalizedExpression() != null) {
+            size += getStringSize(nfaMap.getNormalizedExpression());
+        }
+        String[] statusNames = nfaMap.getStatusNames();
+        if (statusNames != null) {
+            for (String statusName : statusNames) {
+                size += getStringSize(statusName);
+            }
+        }
+        if (compiledDFA != null) {
+            AlphabetClasses alphabetClasses = compiledDFA.getAlphabetClasses();
+            size += 6L * Integer.BYTES + getPaddedCharBytes(alphabetClasses.getRangeStarts().length) + getPaddedCharBytes(alphabetClasses.getClassCount());
+            size += 4L * (alphabetClasses.getRangeClasses().length + compiledDFA.getTransitions().length + compiledDFA.getStatusPatternOffsets().length + compiledDFA.getStatusPatterns().length);
+        }
+        return size;
+    }
+
+    private void writeTo(ByteBuffer buffer) {
+        String[] statusNames = nfaMap.getStatusNames();
+        int[] captureSlots = nfaMap.getCaptureSlots();
+        NFAMap.Construction construction = nfaMap.getConstruction();
+        String normalizedExpression = nfaMap.getNormalizedExpression();
+        int flags = (statusNames != null ? FLAG_STATUS_NAMES : 0) | (compiledDFA != null ? FLAG_COMPILED_DFA : 0) |
+                (captureSlots != null ? FLAG_CAPTURE_GROUPS : 0) | (construction != null ? FLAG_CONSTRUCTION : 0) |
+                (normalizedExpression != null ? FLAG_NORMALIZED_EXPRESSION : 0);
+        buffer.putInt(flags).putInt(nfaMap.getStatusCount()).putInt(nfaMap.getStartStatus()).putInt(nfaMap.getPatternCount());
+        buffer.putInt(nfaMap.getEndStatusArray().length);
+        writeInts(buffer, nfaMap.getEndStatusArray());
+        writeInts(buffer, nfaMap.getAcceptPatternOffsets());
+        writeInts(buffer, nfaMap.getAcceptPatternArray());
+        writeInts(buffer, nfaMap.getTransitionOffsets());
+        writeInts(buffer, nfaMap.getTransitionSymbols());
+        writeInts(buffer, nfaMap.getTransitionTargets());
+        buffer.putInt(nfaMap.getCharSetOffsets().length - 1);
+        writeInts(buffer, nfaMap.getCharSetOffsets());
+        writeChars(buffer, nfaMap.getCharSetRanges());
+        if (captureSlots != null) {
+            buffer.putInt(nfaMap.getCaptureGroupCount());
+            writeInts(buffer, captureSlots);
+        }
+        writeString(buffer, nfaMap.getOriginalRegularExpression());
+        if (construction != null) {
+            buffer.putInt(construction.ordinal());
+        }
+        if (normalizedExpression != null) {
+            writeString(buffer, normalizedExpression);
+        }
+        if (statusNames != null) {
+            for (String statusName : statusNames) {
+                writeString(buffer, statusName);
+            }
+        }
+
+        if (compiledDFA != null) {
+            AlphabetClasses alphabetClasses = compiledDFA.getAlphabetClasses();
+            writeChars(buffer, alphabetClasses.getRangeStarts());
+            writeInts(buffer, alphabetClasses.getRangeClasses());
+            writeChars(buffer, alphabetClasses.getRepresentatives());
+            buffer.putInt(compiledDFA.getStatusCount()).putInt(compiledDFA.getAcceptingStart())
+                    .putInt(compiledDFA.getAnchoredStart()).putInt(compiledDFA.getUnanchoredStart());
+            writeInts(buffer, compiledDFA.getTransitions());
+            writeInts(buffer, compiledDFA.getStatusPatternOffsets());
+            writeInts(buffer, compiledDFA.getStatusPatterns());
+        }
+    }
+
+    public NFAMap getNFAMap() {
+        return nfaMap;
+    }
+
+    /**
+     * @return Compiled DFA, null if it is not in the snapshot
+     */
+    public CompiledDFA getCompiledDFA() {
+        return compiledDFA;
+    }
+}
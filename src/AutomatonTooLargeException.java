@@ -0,0 +1,5 @@
+public class AutomatonTooLargeException extends Exception {
+    public AutomatonTooLargeException(String message) {
+        super(message);
+    }
+}
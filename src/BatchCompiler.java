@@ -0,0 +1,232 @@
+import com.alibaba.fastjson.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parse and build many expressions concurrently, one expression for each line
+ * Every expression can be output as HTML into one directory, where they share static assets and each has its own data file,
+ * and all of them can be output into one file, one JSON object for each line in input order
+ *
+ * @author xfy9326
+ */
+public final class BatchCompiler {
+    // Expressions submitted but not written for each thread, so input is not read far ahead of output
+    private static final int PENDING_PER_THREAD = 4;
+    private static final int MAX_FAILURE_MESSAGES = 20;
+
+    private final int threadCount;
+    private final NFAMap.Construction construction;
+    private boolean isSimplify = false;
+    private File outputDirectory;
+    private File outputFile;
+
+    /**
+     * @param threadCount  Worker thread count
+     * @param construction NFA construction algorithm
+     */
+    public BatchCompiler(int threadCount, NFAMap.Construction construction) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive!");
+        }
+        this.threadCount = threadCount;
+        this.construction = construction;
+    }
+
+    /**
+     * @param isSimplify Simplify grammar tree before construction
+     * @return This
+     */
+    public BatchCompiler setSimplify(boolean isSimplify) {
+        this.isSimplify = isSimplify;
+        return this;
+    }
+
+    /**
+     * @param outputDirectory Directory of HTML output, null means no HTML output
+     * @return This
+     */
+    public BatchCompiler setOutputDirectory(File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+        return this;
+    }
+
+    /**
+     * @param outputFile File of JSON lines output, null means no JSON output
+     * @return This
+     */
+    public BatchCompiler setOutputFile(File outputFile) {
+        this.outputFile = outputFile;
+        return this;
+    }
+
+    /**
+     * Blank lines are skipped
+     *
+     * @param reader Expressions
+     * @return Summary
+     * @throws IOException Read input or write output file failed
+     */
+    public Summary compile(BufferedReader reader) throws IOException {
+        long startMillis = System.currentTimeMillis();
+        Summary summary = new Summary();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        Writer writer = null;
+        try {
+            if (outputFile != null) {
+                writer = new OutputStreamWriter(new FileOutputStream(outputFile), StandardCharsets.UTF_8);
+            }
+            ArrayDeque<Future<Result>> pending = new ArrayDeque<>();
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                if (pending.size() == threadCount * PENDING_PER_THREAD) {
+                    finish(pending.poll(), summary, writer);
+                }
+                int currentLine = lineNumber;
+                String expression = line;
+                pending.add(executor.submit(() -> compile(currentLine, expression)));
+            }
+            while (!pending.isEmpty()) {
+                finish(pending.poll(), summary, writer);
+            }
+        } finally {
+            executor.shutdownNow();
+            if (writer != null) {
+                writer.close();
+            }
+        }
+        summary.elapsedMillis = System.currentTimeMillis() - startMillis;
+        return summary;
+    }
+
+    /**
+     * Expanded size of bounded repeats is limited by parser, so a line can't take all memory
+     */
+    private Result compile(int line, String expression) {
+        Result result = new Result(line, expression);
+        try {
+            GrammarNode grammarNode = new GrammarNode(expression, true);
+            NFAMap nfaMap = new NFAMap.Builder().setNode(grammarNode).setConstruction(construction).setSimplify(isSimplify).build();
+            if (outputDirectory != null) {
+                nfaMap.outputAsHtml(outputDirectory);
+            }
+            if (outputFile != null) {
+                result.json = nfaMap.getJSON();
+            }
+        } catch (NormalFormException | IOException e) {
+            result.error = e.getMessage();
+        } catch (RuntimeException e) {
+            // Failure of a line doesn't abort the batch
+            result.error = e.toString();
+        }
+        return result;
+    }
+
+    private void finish(Future<Result> future, Summary summary, Writer writer) throws IOException {
+        Result result;
+        try {
+            result = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Batch compile is interrupted!", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+
+        summary.total++;
+        if (result.error == null) {
+            summary.succeeded++;
+        } else {
+            summary.failed++;
+            if (summary.failureMessages.size() < MAX_FAILURE_MESSAGES) {
+                summary.failureMessages.add("Line " + result.line + ": " + result.error);
+            }
+        }
+        if (writer != null) {
+            if (result.error == null) {
+                // NFA JSON is already serialized
+                writer.write("{\"line\":" + result.line + ",\"nfa\":" + result.json + "}\n");
+            } else {
+                JSONObject object = new JSONObject();
+                object.put("line", result.line);
+                object.put("expression", result.expression);
+                object.put("error", result.error);
+                writer.write(object.toJSONString() + "\n");
+            }
+        }
+    }
+
+    private static final class Result {
+        private final int line;
+        private final String expression;
+        private String json;
+        private String error;
+
+        private Result(int line, String expression) {
+            this.line = line;
+            this.expression = expression;
+        }
+    }
+
+    public static final class Summary {
+        private final List<String> failureMessages = new ArrayList<>();
+        private long total = 0;
+        private long succeeded = 0;
+        private long failed = 0;
+        private long elapsedMillis = 0;
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getSucceeded() {
+            return succeeded;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * @return Expressions per second
+         */
+        public double getThroughput() {
+            return elapsedMillis == 0 ? total * 1000.0 : total * 1000.0 / elapsedMillis;
+        }
+
+        /**
+         * @return Messages of the first failures
+         */
+        public List<String> getFailureMessages() {
+            return Collections.unmodifiableList(failureMessages);
+        }
+
+        @Override
+        public String toString() {
+            return "Total: " + total + ", Succeeded: " + succeeded + ", Failed: " + failed +
+                    ", In " + elapsedMillis + " Millis (" + String.format("%.1f", getThroughput()) + " Expressions/Second)";
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import java.util.Arrays;
+
+/**
+ * Char set leaf, e.g. [a-z0-9_] or [^abc]
+ * Char set is stored as sorted and merged ranges [low0, high0, low1, high1, ...], both ends are included
+ * '-' is a normal char at the start or end of char set, ']' can't be used in char set
+ *
+ * @author xfy9326
+ */
+final class CharSets {
+    private CharSets() {
+    }
+
+    /**
+     * @param content Content
+     * @param start   Position of CHAR_SET_LEFT
+     * @return Position of CHAR_SET_RIGHT, -1 if char set is not closed
+     */
+    static int findEnd(char[] content, int start) {
+        for (int i = start + 1; i < content.length; i++) {
+            if (content[i] == Symbol.CHAR_SET_RIGHT) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param content Content
+     * @param start   Position of CHAR_SET_LEFT
+     * @param end     Position after CHAR_SET_RIGHT
+     * @return Sorted and merged ranges
+     * @throws NormalFormException Char set is empty or has reversed range
+     */
+    static char[] parse(char[] content, int start, int end) throws NormalFormException {
+        int from = start + 1;
+        int to = end - 1;
+        boolean isNegated = from < to && content[from] == Symbol.CHAR_SET_NEGATE;
+        if (isNegated) {
+            from++;
+        }
+        if (from >= to) {
+            throw NormalFormException.symbolUsedIncorrectly(Symbol.CHAR_SET_RIGHT, to);
+        }
+        char[] ranges = new char[(to - from) * 2];
+        int size = 0;
+        for (int i = from; i < to; i++) {
+            char low = content[i];
+            char high = low;
+            if (i + 2 < to && content[i + 1] == Symbol.CHAR_SET_RANGE) {
+                high = content[i + 2];
+                if (high < low) {
+                    throw NormalFormException.symbolUsedIncorrectly(Symbol.CHAR_SET_RANGE, i + 1);
+                }
+                i += 2;
+            }
+            ranges[size++] = low;
+            ranges[size++] = high;
+        }
+        ranges = merge(ranges, size);
+        return isNegated ? complement(ranges) : ranges;
+    }
+
+    /**
+     * @return Sorted and merged ranges
+     */
+    private static char[] merge(char[] ranges, int size) {
+        // Range is sorted by low char, and then high char
+        long[] sorted = new long[size / 2];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = ((long) ranges[i * 2] << 16) | ranges[i * 2 + 1];
+        }
+        Arrays.sort(sorted);
+        char[] result = new char[size];
+        int resultSize = 0;
+        for (long range : sorted) {
+            char low = (char) (range >>> 16);
+            char high = (char) range;
+            if (resultSize > 0 && low <= result[resultSize - 1] + 1) {
+                if (high > result[resultSize - 1]) {
+                    result[resultSize - 1] = high;
+                }
+            } else {
+                result[resultSize++] = low;
+                result[resultSize++] = high;
+            }
+        }
+        return Arrays.copyOf(result, resultSize);
+    }
+
+    /**
+     * @return Chars which are not in ranges, may be empty
+     */
+    private static char[] complement(char[] ranges) {
+        char[] result = new char[ranges.length + 2];
+        int size = 0;
+        int next = Character.MIN_VALUE;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] > next) {
+                result[size++] = (char) next;
+                result[size++] = (char) (ranges[i] - 1);
+            }
+            next = ranges[i + 1] + 1;
+        }
+        if (next <= Character.MAX_VALUE) {
+            result[size++] = (char) next;
+            result[size++] = Character.MAX_VALUE;
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * @param ranges Ranges of many char sets
+     * @param from   First char of this char set in ranges
+     * @param to     End of this char set in ranges
+     * @param c      Char
+     * @return Char is in this char set
+     */
+    static boolean contains(char[] ranges, int from, int to, char c) {
+        // Binary search the last range whose low char <= c
+        int low = 0;
+        int high = (to - from) / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (ranges[from + mid * 2] <= c) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high >= 0 && c <= ranges[from + high * 2 + 1];
+    }
+
+    /**
+     * @param ranges Ranges of many char sets
+     * @param from   First char of this char set in ranges
+     * @param to     End of this char set in ranges
+     * @return Name of char set, e.g. [a-z_]
+     */
+    static String getName(char[] ranges, int from, int to) {
+        StringBuilder builder = new StringBuilder(to - from + 2);
+        builder.append(Symbol.CHAR_SET_LEFT);
+        for (int i = from; i < to; i += 2) {
+            builder.append(ranges[i]);
+            if (ranges[i + 1] > ranges[i]) {
+                if (ranges[i + 1] > ranges[i] + 1) {
+                    builder.append(Symbol.CHAR_SET_RANGE);
+                }
+                builder.append(ranges[i + 1]);
+            }
+        }
+        return builder.append(Symbol.CHAR_SET_RIGHT).toString();
+    }
+}
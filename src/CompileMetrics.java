@@ -0,0 +1,103 @@
+import java.util.Arrays;
+
+/**
+ * Metrics of parsing, building and output
+ * Metrics are only measured when a listener is set, otherwise every phase only checks the listener once
+ *
+ * @author xfy9326
+ */
+public final class CompileMetrics {
+    private static final int INITIAL_CAPACITY = 16;
+    private static volatile Listener listener;
+
+    private CompileMetrics() {
+    }
+
+    /**
+     * @param listener Listener of all compiles in this process, null to stop measuring
+     */
+    public static void setListener(Listener listener) {
+        CompileMetrics.listener = listener;
+    }
+
+    static Listener getListener() {
+        return listener;
+    }
+
+    /**
+     * @return [depth, node count] of the tree
+     */
+    static int[] getTreeSize(GrammarNode root) {
+        GrammarNode[] nodes = new GrammarNode[INITIAL_CAPACITY];
+        int[] depths = new int[INITIAL_CAPACITY];
+        int size = 0;
+        nodes[size] = root;
+        depths[size++] = 1;
+        int maxDepth = 0;
+        int nodeCount = 0;
+        while (size > 0) {
+            GrammarNode node = nodes[--size];
+            int depth = depths[size];
+            maxDepth = Math.max(maxDepth, depth);
+            nodeCount++;
+            for (GrammarNode childNode : node.getChildNodes()) {
+                if (size == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, size * 2);
+                    depths = Arrays.copyOf(depths, size * 2);
+                }
+                nodes[size] = childNode;
+                depths[size++] = depth + 1;
+            }
+        }
+        return new int[]{maxDepth, nodeCount};
+    }
+
+    static void reportParse(Listener listener, GrammarNode root, long nanos) {
+        int[] treeSize = getTreeSize(root);
+        listener.onParse(root.getContentForm(), nanos, treeSize[0], treeSize[1]);
+    }
+
+    static void reportBuild(Listener listener, NFAMap nfaMap, long nanos) {
+        int epsilonEdgeCount = 0;
+        for (int symbol : nfaMap.getTransitionSymbols()) {
+            if (symbol == NFAMap.EPSILON_SYMBOL) {
+                epsilonEdgeCount++;
+            }
+        }
+        listener.onBuild(nfaMap, nanos, nfaMap.getStatusCount(), epsilonEdgeCount, nfaMap.getTransitionCount() - epsilonEdgeCount);
+    }
+
+    /**
+     * Listener is called by the thread which runs the phase, so it should be thread safe if compiles are concurrent
+     * Phases which failed are not reported
+     */
+    public interface Listener {
+        /**
+         * @param expression Cleaned expression
+         * @param nanos      Parse time
+         * @param treeDepth  Depth of grammar tree
+         * @param nodeCount  Node count of grammar tree
+         */
+        default void onParse(String expression, long nanos, int treeDepth, int nodeCount) {
+        }
+
+        /**
+         * @param nfaMap           NFA Map
+         * @param nanos            Build time
+         * @param statusCount      Status count
+         * @param epsilonEdgeCount ε edge count
+         * @param symbolEdgeCount  Symbol edge count
+         */
+        default void onBuild(NFAMap nfaMap, long nanos, int statusCount, int epsilonEdgeCount, int symbolEdgeCount) {
+        }
+
+        /**
+         * @param nfaMap       NFA Map
+         * @param format       Output format, html, svg or dot
+         * @param nanos        Output time
+         * @param bytesWritten Bytes written, files which are skipped as unchanged are not counted
+         */
+        default void onOutput(NFAMap nfaMap, String format, long nanos, long bytesWritten) {
+        }
+    }
+}
@@ -0,0 +1,453 @@
+import com.alibaba.fastjson.JSONObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Long running local service of compile, match and export requests over loopback HTTP, so warm JIT compiled code serves all requests
+ * Built NFA are immutable and shared by all requests through {@link PatternCache}, every worker keeps the engines of recently matched NFA,
+ * so lazy DFA caches are reused by later requests
+ * Requests are handled on a fixed worker pool, requests over the in flight limit are rejected with 503 at once instead of being queued
+ * Latency of every endpoint is recorded from accepting to responding, percentiles are reported by /stats
+ * Thread safe
+ * <p>
+ * Parameters are read from query string and form encoded body:
+ * /compile?expression=E                    Size of built NFA
+ * /match?expression=E&amp;input=S              Whole input matches, and end of the match which ends earliest
+ * /export?expression=E&amp;format=json|svg|dot Exported NFA
+ * /stats                                   Latency percentiles, rejected requests and cache usage
+ *
+ * @author xfy9326
+ */
+public final class CompileServer {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    // Larger body is rejected with 413
+    public static final int MAX_BODY_BYTES = 16 << 20;
+    // Longer expression is rejected with 400, so with the expanded size limit of parser a request can't build a huge NFA
+    public static final int MAX_EXPRESSION_LENGTH = 1 << 16;
+    // Engines kept by each worker, lazy DFA of an engine has its own cache
+    private static final int MAX_ENGINES_PER_WORKER = 16;
+    private static final String ENDPOINT_COMPILE = "compile";
+    private static final String ENDPOINT_MATCH = "match";
+    private static final String ENDPOINT_EXPORT = "export";
+    private static final String ENDPOINT_STATS = "stats";
+    private static final String FORMAT_JSON = "json";
+    private static final String FORMAT_SVG = "svg";
+    private static final String FORMAT_DOT = "dot";
+    private static final int STATUS_OK = 200;
+    private static final int STATUS_BAD_REQUEST = 400;
+    private static final int STATUS_NOT_FOUND = 404;
+    private static final int STATUS_TOO_LARGE = 413;
+    private static final int STATUS_UNAVAILABLE = 503;
+    private static final int STATUS_ERROR = 500;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final PatternCache cache;
+    private final int threadCount;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final AtomicLong rejectedCount = new AtomicLong();
+    // Cached NFA -> engine of the worker, access ordered, NFA are compared by identity
+    private final ThreadLocal<LinkedHashMap<NFAMap, MatchEngine>> workerEngines = ThreadLocal.withInitial(() ->
+            new LinkedHashMap<NFAMap, MatchEngine>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<NFAMap, MatchEngine> eldest) {
+                    return size() > MAX_ENGINES_PER_WORKER;
+                }
+            });
+    // Endpoint -> latency, created once so recording never locks
+    private final Map<String, LatencyHistogram> latencies;
+    private HttpServer server;
+    private ExecutorService workers;
+
+    /**
+     * @param cache       Cache of built NFA, shared by all requests
+     * @param threadCount Worker thread count
+     * @param maxInFlight Max requests which are waiting or being handled
+     */
+    public CompileServer(PatternCache cache, int threadCount, int maxInFlight) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive!");
+        }
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("Max in flight must be positive!");
+        }
+        this.cache = cache;
+        this.threadCount = threadCount;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        LinkedHashMap<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+        for (String endpoint : new String[]{ENDPOINT_COMPILE, ENDPOINT_MATCH, ENDPOINT_EXPORT, ENDPOINT_STATS}) {
+            latencies.put(endpoint, new LatencyHistogram());
+        }
+        this.latencies = Collections.unmodifiableMap(latencies);
+    }
+
+    /**
+     * @param port Port on loopback address, 0 means any free port
+     * @return Bound address
+     * @throws IOException Bind failed
+     */
+    public synchronized InetSocketAddress start(int port) throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("Server is already started!");
+        }
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), maxInFlight);
+        for (String endpoint : latencies.keySet()) {
+            httpServer.createContext("/" + endpoint, exchange -> dispatch(exchange, endpoint));
+        }
+        // Handlers only dispatch, so they run on the server thread
+        httpServer.setExecutor(null);
+        workers = Executors.newFixedThreadPool(threadCount);
+        server = httpServer;
+        httpServer.start();
+        return httpServer.getAddress();
+    }
+
+    /**
+     * Stop accepting requests, requests being handled are dropped
+     */
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            workers.shutdownNow();
+            server = null;
+            workers = null;
+        }
+    }
+
+    private void dispatch(HttpExchange exchange, String endpoint) throws IOException {
+        long startNanos = System.nanoTime();
+        if (!inFlight.tryAcquire()) {
+            rejectedCount.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            sendError(exchange, STATUS_UNAVAILABLE, "Too many requests in flight!");
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    handle(exchange, endpoint);
+                } finally {
+                    latencies.get(endpoint).record(System.nanoTime() - startNanos);
+                    inFlight.release();
+                    exchange.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Server is stopping
+            inFlight.release();
+            exchange.close();
+        }
+    }
+
+    private void handle(HttpExchange exchange, String endpoint) {
+        try {
+            Map<String, String> parameters;
+            try {
+                parameters = readParameters(exchange);
+            } catch (IllegalStateException e) {
+                sendError(exchange, STATUS_TOO_LARGE, e.getMessage());
+                return;
+            }
+            // Context also matches longer paths
+            if (!exchange.getRequestURI().getPath().equals("/" + endpoint)) {
+                sendError(exchange, STATUS_NOT_FOUND, "Unknown path: " + exchange.getRequestURI().getPath());
+                return;
+            }
+            try {
+                switch (endpoint) {
+                    case ENDPOINT_COMPILE:
+                        handleCompile(exchange, parameters);
+                        break;
+                    case ENDPOINT_MATCH:
+                        handleMatch(exchange, parameters);
+                        break;
+                    case ENDPOINT_EXPORT:
+                        handleExport(exchange, parameters);
+                        break;
+                    default:
+                        sendJSON(exchange, getStats());
+                }
+            } catch (NormalFormException | IllegalArgumentException e) {
+                sendError(exchange, STATUS_BAD_REQUEST, e.getMessage());
+            } catch (RuntimeException e) {
+                sendError(exchange, STATUS_ERROR, String.valueOf(e));
+            }
+        } catch (IOException e) {
+            // Client is gone, nothing can be responded
+        }
+    }
+
+    private void handleCompile(HttpExchange exchange, Map<String, String> parameters) throws IOException, NormalFormException {
+        NFAMap nfaMap = cache.get(getExpression(parameters));
+        JSONObject result = new JSONObject(true);
+        result.put("normalizedExpression", nfaMap.getNormalizedExpression());
+        result.put("construction", nfaMap.getConstruction());
+        result.put("statusCount", nfaMap.getStatusCount());
+        result.put("transitionCount", nfaMap.getTransitionCount());
+        result.put("estimatedBytes", nfaMap.getEstimatedBytes());
+        sendJSON(exchange, result);
+    }
+
+    private void handleMatch(HttpExchange exchange, Map<String, String> parameters) throws IOException, NormalFormException {
+        NFAMap nfaMap = cache.get(getExpression(parameters));
+        String input = getParameter(parameters, "input");
+        MatchEngine engine = workerEngines.get().computeIfAbsent(nfaMap, NFAMap::engine);
+        JSONObject result = new JSONObject(true);
+        result.put("matches", engine.matches(input));
+        result.put("searchEnd", engine.search(input, 0));
+        sendJSON(exchange, result);
+    }
+
+    private void handleExport(HttpExchange exchange, Map<String, String> parameters) throws IOException, NormalFormException {
+        String format = parameters.getOrDefault("format", FORMAT_JSON);
+        String contentType;
+        if (FORMAT_JSON.equals(format)) {
+            contentType = "application/json; charset=utf-8";
+        } else if (FORMAT_SVG.equals(format)) {
+            contentType = "image/svg+xml; charset=utf-8";
+        } else if (FORMAT_DOT.equals(format)) {
+            contentType = "text/vnd.graphviz; charset=utf-8";
+        } else {
+            throw new IllegalArgumentException("Unknown format: " + format);
+        }
+        NFAMap nfaMap = cache.get(getExpression(parameters));
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        // Chunked, so large NFA is written while walking it
+        exchange.sendResponseHeaders(STATUS_OK, 0);
+        try (Writer writer = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)) {
+            if (FORMAT_JSON.equals(format)) {
+                nfaMap.writeJSON(writer);
+            } else if (FORMAT_SVG.equals(format)) {
+                new GraphExporter(nfaMap).writeSvg(writer);
+            } else {
+                new GraphExporter(nfaMap).writeDot(writer);
+            }
+        }
+    }
+
+    /**
+     * @return Latency percentiles of every endpoint, rejected requests and cache usage
+     */
+    public JSONObject getStats() {
+        JSONObject endpoints = new JSONObject(true);
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            endpoints.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        JSONObject cacheStats = new JSONObject(true);
+        cacheStats.put("size", cache.getSize());
+        cacheStats.put("usedBytes", cache.getUsedBytes());
+        cacheStats.put("hits", cache.getHits());
+        cacheStats.put("misses", cache.getMisses());
+        cacheStats.put("evictions", cache.getEvictions());
+        JSONObject result = new JSONObject(true);
+        result.put("endpoints", endpoints);
+        result.put("inFlight", maxInFlight - inFlight.availablePermits());
+        result.put("rejected", rejectedCount.get());
+        result.put("cache", cacheStats);
+        return result;
+    }
+
+    /**
+     * @param endpoint Endpoint name, e.g. match
+     * @return Latency of endpoint, null if it is unknown
+     */
+    public LatencyHistogram getLatency(String endpoint) {
+        return latencies.get(endpoint);
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @throws IllegalArgumentException Expression is missing or longer than MAX_EXPRESSION_LENGTH
+     */
+    private static String getExpression(Map<String, String> parameters) {
+        String expression = getParameter(parameters, "expression");
+        if (expression.length() > MAX_EXPRESSION_LENGTH) {
+            throw new IllegalArgumentException("Expression is longer than " + MAX_EXPRESSION_LENGTH + " chars!");
+        }
+        return expression;
+    }
+
+    private static String getParameter(Map<String, String> parameters, String name) {
+        String value = parameters.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter: " + name);
+        }
+        return value;
+    }
+
+    /**
+     * @throws IllegalStateException Body is larger than MAX_BODY_BYTES
+     */
+    private static Map<String, String> readParameters(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        parseParameters(exchange.getRequestURI().getRawQuery(), parameters);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream input = exchange.getRequestBody()) {
+            int length;
+            while ((length = input.read(buffer)) > 0) {
+                if (body.size() + length > MAX_BODY_BYTES) {
+                    throw new IllegalStateException("Body exceeds " + MAX_BODY_BYTES + " bytes!");
+                }
+                body.write(buffer, 0, length);
+            }
+        }
+        if (body.size() > 0) {
+            parseParameters(new String(body.toByteArray(), StandardCharsets.UTF_8), parameters);
+        }
+        return parameters;
+    }
+
+    private static void parseParameters(String content, Map<String, String> parameters) throws IOException {
+        if (content == null || content.isEmpty()) {
+            return;
+        }
+        for (String pair : content.split("&")) {
+            int separator = pair.indexOf('=');
+            String name = separator < 0 ? pair : pair.substring(0, separator);
+            String value = separator < 0 ? "" : pair.substring(separator + 1);
+            try {
+                parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            } catch (IllegalArgumentException e) {
+                // Broken escape is kept as it is
+                parameters.put(name, value);
+            }
+        }
+    }
+
+    private static void sendJSON(HttpExchange exchange, JSONObject object) throws IOException {
+        send(exchange, STATUS_OK, object.toJSONString());
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        JSONObject object = new JSONObject();
+        object.put("error", message);
+        send(exchange, status, object.toJSONString());
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    /**
+     * Lock free latency histogram with log scale buckets, each power of 2 is split into 8 buckets,
+     * so a percentile is at most 1/8 larger than the real latency
+     */
+    public static final class LatencyHistogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int BUCKET_COUNT = (Long.SIZE - SUB_BITS + 1) * SUB_COUNT;
+        private static final double NANOS_PER_MICRO = 1e3;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private static int getBucket(long nanos) {
+            if (nanos < SUB_COUNT) {
+                return (int) Math.max(nanos, 0);
+            }
+            int magnitude = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+            int sub = (int) (nanos >>> (magnitude - SUB_BITS)) & (SUB_COUNT - 1);
+            return (magnitude - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        /**
+         * @return Largest latency of bucket
+         */
+        private static long getBucketMax(int bucket) {
+            if (bucket < SUB_COUNT) {
+                return bucket;
+            }
+            int magnitude = bucket / SUB_COUNT + SUB_BITS - 1;
+            int sub = bucket % SUB_COUNT;
+            return ((long) (SUB_COUNT + sub + 1) << (magnitude - SUB_BITS)) - 1;
+        }
+
+        void record(long nanos) {
+            counts.incrementAndGet(getBucket(nanos));
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @param percentile Percentile in (0, 100]
+         * @return Latency in nanos, 0 if nothing is recorded
+         */
+        public long getPercentileNanos(double percentile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max((long) Math.ceil(total * percentile / 100), 1);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                seen += counts.get(bucket);
+                if (seen >= rank) {
+                    return Math.min(getBucketMax(bucket), maxNanos.get());
+                }
+            }
+            return maxNanos.get();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        private JSONObject toJSON() {
+            long total = count.get();
+            JSONObject result = new JSONObject(true);
+            result.put("count", total);
+            result.put("meanMicros", total == 0 ? 0 : totalNanos.get() / NANOS_PER_MICRO / total);
+            result.put("p50Micros", getPercentileNanos(50) / NANOS_PER_MICRO);
+            result.put("p90Micros", getPercentileNanos(90) / NANOS_PER_MICRO);
+            result.put("p99Micros", getPercentileNanos(99) / NANOS_PER_MICRO);
+            result.put("p999Micros", getPercentileNanos(99.9) / NANOS_PER_MICRO);
+            result.put("maxMicros", maxNanos.get() / NANOS_PER_MICRO);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Count: %d, P50: %.1f, P90: %.1f, P99: %.1f, P99.9: %.1f, Max: %.1f Micros", count.get(),
+                    getPercentileNanos(50) / NANOS_PER_MICRO, getPercentileNanos(90) / NANOS_PER_MICRO, getPercentileNanos(99) / NANOS_PER_MICRO,
+                    getPercentileNanos(99.9) / NANOS_PER_MICRO, maxNanos.get() / NANOS_PER_MICRO);
+        }
+    }
+}
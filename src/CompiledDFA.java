@@ -0,0 +1,431 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Ahead of time compiled DFA
+ * Full subset construction of NFA, minimized by Hopcroft algorithm, and stored as a dense transition table
+ * Status ids are premultiplied by class count, so a transition is a single array access
+ * Immutable and thread safe
+ *
+ * @author xfy9326
+ */
+public final class CompiledDFA implements MatchEngine {
+    public static final int DEFAULT_STATUS_LIMIT = 10000;
+    // Status 0 is always the dead status
+    private static final int DEAD = 0;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final AlphabetClasses alphabetClasses;
+    private final int classCount;
+    private final int statusCount;
+    // Next status of status s with class c is transitions[s + c]
+    private final int[] transitions;
+    // Accepting status are numbered last
+    private final int acceptingStart;
+    private final int anchoredStart;
+    private final int unanchoredStart;
+    private final int patternCount;
+    // Patterns accepted by status s, CSR indexed by s / classCount
+    private final int[] statusPatternOffsets;
+    private final int[] statusPatterns;
+
+    CompiledDFA(AlphabetClasses alphabetClasses, int statusCount, int[] transitions, int acceptingStart, int anchoredStart, int unanchoredStart,
+                int patternCount, int[] statusPatternOffsets, int[] statusPatterns) {
+        this.alphabetClasses = alphabetClasses;
+        this.classCount = alphabetClasses.getClassCount();
+        this.statusCount = statusCount;
+        this.transitions = transitions;
+        this.acceptingStart = acceptingStart;
+        this.anchoredStart = anchoredStart;
+        this.unanchoredStart = unanchoredStart;
+        this.patternCount = patternCount;
+        this.statusPatternOffsets = statusPatternOffsets;
+        this.statusPatterns = statusPatterns;
+    }
+
+    public static CompiledDFA compile(NFAMap nfaMap) throws AutomatonTooLargeException {
+        return compile(nfaMap, DEFAULT_STATUS_LIMIT);
+    }
+
+    /**
+     * @param nfaMap      NFA Map
+     * @param statusLimit Max DFA status count before minimization
+     * @return Compiled DFA
+     * @throws AutomatonTooLargeException Subset construction needs more status than the limit
+     */
+    public static CompiledDFA compile(NFAMap nfaMap, int statusLimit) throws AutomatonTooLargeException {
+        SubsetConstruction subsetConstruction = new SubsetConstruction(nfaMap);
+        AlphabetClasses alphabetClasses = nfaMap.getAlphabetClasses();
+        int classCount = alphabetClasses.getClassCount();
+        if ((long) statusLimit * classCount > Integer.MAX_VALUE - 8) {
+            statusLimit = (Integer.MAX_VALUE - 8) / classCount;
+        }
+
+        // Subset construction
+        HashMap<SubsetConstruction.StatusSetKey, Integer> statusIndex = new HashMap<>();
+        ArrayList<int[]> statusSets = new ArrayList<>();
+        boolean[] unanchored = new boolean[INITIAL_CAPACITY];
+        int[] table = new int[INITIAL_CAPACITY * classCount];
+
+        int[] startSet = subsetConstruction.getStartSet();
+        int[][] initialSets = {new int[0], startSet, startSet};
+        boolean[] initialUnanchored = {false, false, true};
+        for (int i = 0; i < initialSets.length; i++) {
+            statusIndex.put(new SubsetConstruction.StatusSetKey(initialSets[i], initialUnanchored[i]), i);
+            statusSets.add(initialSets[i]);
+            unanchored[i] = initialUnanchored[i];
+        }
+
+        for (int status = 0; status < statusSets.size(); status++) {
+            int[] statusSet = statusSets.get(status);
+            for (int c = 0; c < classCount; c++) {
+                int[] nextSet = subsetConstruction.move(statusSet, alphabetClasses.getRepresentative(c), unanchored[status]);
+                SubsetConstruction.StatusSetKey key = new SubsetConstruction.StatusSetKey(nextSet, unanchored[status]);
+                Integer next = statusIndex.get(key);
+                if (next == null) {
+                    next = statusSets.size();
+                    if (next >= statusLimit) {
+                        throw new AutomatonTooLargeException("DFA status count exceeds limit " + statusLimit);
+                    }
+                    if (next == unanchored.length) {
+                        unanchored = Arrays.copyOf(unanchored, next * 2);
+                        table = Arrays.copyOf(table, next * 2 * classCount);
+                    }
+                    statusIndex.put(key, next);
+                    statusSets.add(nextSet);
+                    unanchored[next] = unanchored[status];
+                }
+                table[status * classCount + c] = next;
+            }
+        }
+
+        // Status are grouped by accepted pattern set, group 0 accepts nothing
+        int count = statusSets.size();
+        int[] acceptGroups = new int[count];
+        HashMap<SubsetConstruction.StatusSetKey, Integer> groupIndex = new HashMap<>();
+        ArrayList<int[]> groupPatterns = new ArrayList<>();
+        groupIndex.put(new SubsetConstruction.StatusSetKey(new int[0], false), 0);
+        groupPatterns.add(new int[0]);
+        for (int status = 0; status < count; status++) {
+            int[] patterns = subsetConstruction.getAcceptPatterns(statusSets.get(status));
+            SubsetConstruction.StatusSetKey key = new SubsetConstruction.StatusSetKey(patterns, false);
+            Integer group = groupIndex.get(key);
+            if (group == null) {
+                group = groupPatterns.size();
+                groupIndex.put(key, group);
+                groupPatterns.add(patterns);
+            }
+            acceptGroups[status] = group;
+        }
+        return minimize(alphabetClasses, count, table, acceptGroups, groupPatterns.toArray(new int[0][]), nfaMap.getPatternCount(), 1, 2);
+    }
+
+    /**
+     * Hopcroft minimization
+     *
+     * @param alphabetClasses Alphabet classes
+     * @param count           Status count
+     * @param table           Transition table, status * classCount + class
+     * @param acceptGroups    Accepted pattern set group of each status, group 0 accepts nothing
+     * @param groupPatterns   Patterns of each group
+     * @param patternCount    Pattern count
+     * @param anchoredStart   Anchored start status
+     * @param unanchoredStart Unanchored start status
+     * @return Minimized DFA
+     */
+    private static CompiledDFA minimize(AlphabetClasses alphabetClasses, int count, int[] table, int[] acceptGroups, int[][] groupPatterns, int patternCount,
+                                        int anchoredStart, int unanchoredStart) {
+        int classCount = alphabetClasses.getClassCount();
+        int groupCount = groupPatterns.length;
+
+        // Inverse transitions, sources of status t with class c are [inverseOffsets[c * count + t], inverseOffsets[c * count + t + 1])
+        int[] inverseOffsets = new int[classCount * count + 1];
+        for (int status = 0; status < count; status++) {
+            for (int c = 0; c < classCount; c++) {
+                inverseOffsets[c * count + table[status * classCount + c] + 1]++;
+            }
+        }
+        for (int i = 0; i < classCount * count; i++) {
+            inverseOffsets[i + 1] += inverseOffsets[i];
+        }
+        int[] inverseSources = new int[classCount * count];
+        int[] inversePosition = Arrays.copyOf(inverseOffsets, classCount * count);
+        for (int status = 0; status < count; status++) {
+            for (int c = 0; c < classCount; c++) {
+                inverseSources[inversePosition[c * count + table[status * classCount + c]]++] = status;
+            }
+        }
+
+        // Partition, elements of block b are elements[blockStart[b], blockEnd[b]), marked ones are moved to the front
+        int[] elements = new int[count];
+        int[] location = new int[count];
+        int[] blockOf = new int[count];
+        int[] blockStart = new int[count];
+        int[] blockEnd = new int[count];
+        int[] blockMarked = new int[count];
+        int blockCount = 0;
+
+        // Initial partition, one block for each accept group
+        int[] groupOffsets = new int[groupCount + 1];
+        for (int status = 0; status < count; status++) {
+            groupOffsets[acceptGroups[status] + 1]++;
+        }
+        for (int group = 0; group < groupCount; group++) {
+            groupOffsets[group + 1] += groupOffsets[group];
+        }
+        int[] groupPosition = Arrays.copyOf(groupOffsets, groupCount);
+        for (int status = 0; status < count; status++) {
+            int index = groupPosition[acceptGroups[status]]++;
+            elements[index] = status;
+            location[status] = index;
+        }
+        for (int group = 0; group < groupCount; group++) {
+            if (groupOffsets[group + 1] > groupOffsets[group]) {
+                blockStart[blockCount] = groupOffsets[group];
+                blockEnd[blockCount] = groupOffsets[group + 1];
+                blockMarked[blockCount] = groupOffsets[group];
+                for (int i = groupOffsets[group]; i < groupOffsets[group + 1]; i++) {
+                    blockOf[elements[i]] = blockCount;
+                }
+                blockCount++;
+            }
+        }
+
+        int[] worklist = new int[count];
+        boolean[] inWorklist = new boolean[count];
+        int worklistSize = 0;
+        for (int block = 0; block < blockCount; block++) {
+            worklist[worklistSize++] = block;
+            inWorklist[block] = true;
+        }
+
+        int[] splitter = new int[count];
+        int[] touched = new int[count];
+        while (worklistSize > 0) {
+            int splitterBlock = worklist[--worklistSize];
+            inWorklist[splitterBlock] = false;
+            int splitterSize = blockEnd[splitterBlock] - blockStart[splitterBlock];
+            System.arraycopy(elements, blockStart[splitterBlock], splitter, 0, splitterSize);
+
+            for (int c = 0; c < classCount; c++) {
+                int touchedCount = 0;
+                for (int i = 0; i < splitterSize; i++) {
+                    int target = splitter[i];
+                    for (int j = inverseOffsets[c * count + target]; j < inverseOffsets[c * count + target + 1]; j++) {
+                        int source = inverseSources[j];
+                        int block = blockOf[source];
+                        int sourceLocation = location[source];
+                        if (sourceLocation >= blockMarked[block]) {
+                            if (blockMarked[block] == blockStart[block]) {
+                                touched[touchedCount++] = block;
+                            }
+                            int swapLocation = blockMarked[block]++;
+                            int swapStatus = elements[swapLocation];
+                            elements[swapLocation] = source;
+                            location[source] = swapLocation;
+                            elements[sourceLocation] = swapStatus;
+                            location[swapStatus] = sourceLocation;
+                        }
+                    }
+                }
+
+                for (int i = 0; i < touchedCount; i++) {
+                    int block = touched[i];
+                    if (blockMarked[block] == blockEnd[block]) {
+                        blockMarked[block] = blockStart[block];
+                        continue;
+                    }
+                    // Marked elements become a new block
+                    int newBlock = blockCount++;
+                    blockStart[newBlock] = blockStart[block];
+                    blockEnd[newBlock] = blockMarked[block];
+                    blockMarked[newBlock] = blockStart[newBlock];
+                    blockStart[block] = blockEnd[newBlock];
+                    blockMarked[block] = blockStart[block];
+                    for (int j = blockStart[newBlock]; j < blockEnd[newBlock]; j++) {
+                        blockOf[elements[j]] = newBlock;
+                    }
+                    if (inWorklist[block]) {
+                        worklist[worklistSize++] = newBlock;
+                        inWorklist[newBlock] = true;
+                    } else {
+                        int smallerBlock = blockEnd[newBlock] - blockStart[newBlock] <= blockEnd[block] - blockStart[block] ? newBlock : block;
+                        worklist[worklistSize++] = smallerBlock;
+                        inWorklist[smallerBlock] = true;
+                    }
+                }
+            }
+        }
+
+        // Renumber: dead status first, accepting status last
+        int[] newStatus = new int[blockCount];
+        Arrays.fill(newStatus, -1);
+        int deadBlock = blockOf[DEAD];
+        newStatus[deadBlock] = 0;
+        int newCount = 1;
+        for (int round = 0; round < 2; round++) {
+            for (int block = 0; block < blockCount; block++) {
+                if (newStatus[block] < 0 && (acceptGroups[elements[blockStart[block]]] != 0) == (round == 1)) {
+                    newStatus[block] = newCount++;
+                }
+            }
+        }
+        int acceptingStart = newCount;
+        int[] statusGroups = new int[newCount];
+        for (int block = 0; block < blockCount; block++) {
+            int group = acceptGroups[elements[blockStart[block]]];
+            if (group != 0) {
+                acceptingStart = Math.min(acceptingStart, newStatus[block]);
+            }
+            statusGroups[newStatus[block]] = group;
+        }
+        int[] statusPatternOffsets = new int[newCount + 1];
+        for (int status = 0; status < newCount; status++) {
+            statusPatternOffsets[status + 1] = statusPatternOffsets[status] + groupPatterns[statusGroups[status]].length;
+        }
+        int[] statusPatterns = new int[statusPatternOffsets[newCount]];
+        for (int status = 0; status < newCount; status++) {
+            int[] patterns = groupPatterns[statusGroups[status]];
+            System.arraycopy(patterns, 0, statusPatterns, statusPatternOffsets[status], patterns.length);
+        }
+
+        int[] transitions = new int[newCount * classCount];
+        for (int block = 0; block < blockCount; block++) {
+            int status = elements[blockStart[block]];
+            int row = newStatus[block] * classCount;
+            for (int c = 0; c < classCount; c++) {
+                transitions[row + c] = newStatus[blockOf[table[status * classCount + c]]] * classCount;
+            }
+        }
+
+        return new CompiledDFA(alphabetClasses, newCount, transitions, acceptingStart * classCount,
+                newStatus[blockOf[anchoredStart]] * classCount, newStatus[blockOf[unanchoredStart]] * classCount, patternCount, statusPatternOffsets, statusPatterns);
+    }
+
+    @Override
+    public boolean matches(CharSequence input) {
+        int[] transitions = this.transitions;
+        int status = anchoredStart;
+        int length = input.length();
+        for (int i = 0; i < length; i++) {
+            status = transitions[status + alphabetClasses.getClass(input.charAt(i))];
+            if (status == DEAD) {
+                return false;
+            }
+        }
+        return status >= acceptingStart;
+    }
+
+    @Override
+    public int search(CharSequence input, int from) {
+        int[] transitions = this.transitions;
+        int acceptingStart = this.acceptingStart;
+        int status = unanchoredStart;
+        int length = input.length();
+        if (from > length) {
+            return -1;
+        }
+        for (int i = from; i < length; i++) {
+            if (status >= acceptingStart) {
+                return i;
+            }
+            status = transitions[status + alphabetClasses.getClass(input.charAt(i))];
+        }
+        return status >= acceptingStart ? length : -1;
+    }
+
+    /**
+     * @param input Input
+     * @return Index of patterns which match the whole input, in ascending order
+     */
+    public int[] matchPatterns(CharSequence input) {
+        int[] transitions = this.transitions;
+        int status = anchoredStart;
+        int length = input.length();
+        for (int i = 0; i < length && status != DEAD; i++) {
+            status = transitions[status + alphabetClasses.getClass(input.charAt(i))];
+        }
+        return Arrays.copyOfRange(statusPatterns, statusPatternOffsets[status / classCount], statusPatternOffsets[status / classCount + 1]);
+    }
+
+    /**
+     * @param input Input
+     * @return Index of patterns which match any part of the input
+     */
+    public BitSet searchPatterns(CharSequence input) {
+        int[] transitions = this.transitions;
+        int acceptingStart = this.acceptingStart;
+        BitSet result = new BitSet(patternCount);
+        int foundCount = 0;
+        // Patterns of each status only need to be added once
+        boolean[] isStatusAdded = new boolean[statusCount];
+        int status = unanchoredStart;
+        int length = input.length();
+        for (int i = 0; ; i++) {
+            int index = status / classCount;
+            if (status >= acceptingStart && !isStatusAdded[index]) {
+                isStatusAdded[index] = true;
+                for (int j = statusPatternOffsets[index]; j < statusPatternOffsets[index + 1]; j++) {
+                    int pattern = statusPatterns[j];
+                    if (!result.get(pattern)) {
+                        result.set(pattern);
+                        foundCount++;
+                    }
+                }
+                if (foundCount == patternCount) {
+                    break;
+                }
+            }
+            if (i == length) {
+                break;
+            }
+            status = transitions[status + alphabetClasses.getClass(input.charAt(i))];
+        }
+        return result;
+    }
+
+    public int getPatternCount() {
+        return patternCount;
+    }
+
+    /**
+     * @return Status count after minimization
+     */
+    public int getStatusCount() {
+        return statusCount;
+    }
+
+    public int getClassCount() {
+        return classCount;
+    }
+
+    AlphabetClasses getAlphabetClasses() {
+        return alphabetClasses;
+    }
+
+    int[] getTransitions() {
+        return transitions;
+    }
+
+    int getAcceptingStart() {
+        return acceptingStart;
+    }
+
+    int getUnanchoredStart() {
+        return unanchoredStart;
+    }
+
+    int getAnchoredStart() {
+        return anchoredStart;
+    }
+
+    int[] getStatusPatternOffsets() {
+        return statusPatternOffsets;
+    }
+
+    int[] getStatusPatterns() {
+        return statusPatterns;
+    }
+}
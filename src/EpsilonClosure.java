@@ -0,0 +1,83 @@
+import java.util.Arrays;
+
+/**
+ * Precomputed ε closure of NFA status
+ * Only status which may be entered by a symbol edge (and the start status) have closures,
+ * and closures only keep status which have symbol edges or are end status
+ *
+ * @author xfy9326
+ */
+final class EpsilonClosure {
+    // Closures larger than this will not be precomputed
+    private static final int MIN_CLOSURE_SIZE_LIMIT = 1 << 20;
+    // Closure of status i is [offsets[i], offsets[i + 1])
+    final int[] offsets;
+    final int[] statuses;
+
+    private EpsilonClosure(int[] offsets, int[] statuses) {
+        this.offsets = offsets;
+        this.statuses = statuses;
+    }
+
+    /**
+     * @param nfaMap NFA Map
+     * @return Closure, or null if the closures are too large to be precomputed
+     */
+    static EpsilonClosure compute(NFAMap nfaMap) {
+        int statusCount = nfaMap.getStatusCount();
+        int[] transitionOffsets = nfaMap.getTransitionOffsets();
+        int[] transitionSymbols = nfaMap.getTransitionSymbols();
+        int[] transitionTargets = nfaMap.getTransitionTargets();
+        long sizeLimit = Math.max(MIN_CLOSURE_SIZE_LIMIT, 8L * (statusCount + transitionSymbols.length));
+
+        boolean[] isEntered = new boolean[statusCount];
+        boolean[] isImportant = nfaMap.getEndStatusFlags().clone();
+        isEntered[nfaMap.getStartStatus()] = true;
+        for (int status = 0; status < statusCount; status++) {
+            for (int i = transitionOffsets[status]; i < transitionOffsets[status + 1]; i++) {
+                if (transitionSymbols[i] != NFAMap.EPSILON_SYMBOL) {
+                    isImportant[status] = true;
+                    isEntered[transitionTargets[i]] = true;
+                }
+            }
+        }
+
+        int[] offsets = new int[statusCount + 1];
+        int[] statuses = new int[Math.max(16, statusCount)];
+        int size = 0;
+        int[] stack = new int[statusCount];
+        // Visited mark is (closure status + 1)
+        int[] visited = new int[statusCount];
+        for (int status = 0; status < statusCount; status++) {
+            offsets[status] = size;
+            if (!isEntered[status]) {
+                continue;
+            }
+            int stackSize = 0;
+            stack[stackSize++] = status;
+            visited[status] = status + 1;
+            while (stackSize > 0) {
+                int current = stack[--stackSize];
+                if (isImportant[current]) {
+                    if (size == statuses.length) {
+                        if (size >= sizeLimit) {
+                            return null;
+                        }
+                        statuses = Arrays.copyOf(statuses, size * 2);
+                    }
+                    statuses[size++] = current;
+                }
+                for (int i = transitionOffsets[current]; i < transitionOffsets[current + 1]; i++) {
+                    int target = transitionTargets[i];
+                    if (transitionSymbols[i] == NFAMap.EPSILON_SYMBOL && visited[target] != status + 1) {
+                        visited[target] = status + 1;
+                        stack[stackSize++] = target;
+                    }
+                }
+            }
+        }
+        offsets[statusCount] = size;
+
+        return new EpsilonClosure(offsets, Arrays.copyOf(statuses, size));
+    }
+}
@@ -7,41 +7,78 @@ import java.util.Arrays;
  * @author xfy9326
  */
 public class GrammarNode {
+    public static final int REPEAT_INFINITE = -1;
+    // Larger repeat count should be written as SELF_LOOP, every repeat is a copy in NFA
+    public static final int MAX_REPEAT_COUNT = 1000;
+    // Max count of leaves after bounded repeats are expanded, unless content itself is longer
+    public static final int MAX_EXPANDED_SIZE = 100_000;
+    private static final GrammarNode[] EMPTY_CHILD_NODES = new GrammarNode[0];
+    private static final int[] EMPTY_CAPTURE_GROUPS = new int[0];
+    private static final int INITIAL_CAPACITY = 16;
     // Leaf node (No child nodes)
     private boolean isLeafNode = false;
-    // If there are symbol SELF_LOOP behind this node
-    private boolean isLoopNode = false;
-    // Original content (if it's leaf node, it will be leaf content)
+    // Repeat count of this node, {1, 1} means no repeat, SELF_LOOP is {0, REPEAT_INFINITE}
+    private int repeatMin = 1;
+    private int repeatMax = 1;
+    // Cleaned content shared by the whole tree (this node only covers [contentStart, contentEnd))
     private char[] contentForm;
+    private int contentStart;
+    private int contentEnd;
     // The symbol which is used to connect child nodes, default '\0'
     private char calculateSymbol = '\0';
     // Is root node
     private boolean isRootNode;
     // Child node array
-    private GrammarNode[] childNodes = new GrammarNode[0];
+    private GrammarNode[] childNodes = EMPTY_CHILD_NODES;
+    // Capture groups around this node from outer to inner, numbered by their PARENTHESIS_LEFT from 1, repeat is outside of them
+    private int[] captureGroups = EMPTY_CAPTURE_GROUPS;
+    // Count of capture groups in the whole tree, only set in root node
+    private int captureGroupCount = 0;
+    // Count of leaves after bounded repeats are expanded, only set in root node
+    private long expandedSize = 0;
 
     public GrammarNode(String content, boolean isRootNode) throws NormalFormException {
         this(content.toCharArray(), isRootNode);
     }
 
-    private GrammarNode(char[] content) throws NormalFormException {
-        this(content, false);
-    }
-
     public GrammarNode(char[] content, boolean isRootNode) throws NormalFormException {
         if (content != null && content.length > 0) {
+            CompileMetrics.Listener listener = CompileMetrics.getListener();
+            long startNanos = listener == null ? 0 : System.nanoTime();
             this.isRootNode = isRootNode;
             buildNode(content);
+            if (listener != null && isRootNode) {
+                CompileMetrics.reportParse(listener, this, System.nanoTime() - startNanos);
+            }
         } else {
             throw new NormalFormException("Content is empty!");
         }
     }
 
-    private static char[] grammarContentCleanAndCheck(char[] charArr) throws NormalFormException {
+    /**
+     * Node created by {@link GrammarParser}
+     *
+     * @param contentForm  Shared cleaned content
+     * @param contentStart Start position of this node content
+     * @param contentEnd   End position of this node content
+     */
+    GrammarNode(char[] contentForm, int contentStart, int contentEnd) {
+        this.contentForm = contentForm;
+        this.contentStart = contentStart;
+        this.contentEnd = contentEnd;
+    }
+
+    /**
+     * @param rawPositions Output, position in raw content of every char in cleaned content, its length should be at least charArr.length * 2
+     * @return Cleaned content
+     */
+    private static char[] grammarContentCleanAndCheck(char[] charArr, int[] rawPositions) throws NormalFormException {
         char[] builder = new char[charArr.length * 2];
         int builderSize = 0;
 
         char lastWord = '\0';
+        // Positions of unclosed PARENTHESIS_LEFT
+        int[] parenthesisPosition = new int[charArr.length];
         int parenthesisCounter = 0;
         for (int i = 0; i < charArr.length; i++) {
             char c = charArr[i];
@@ -55,19 +92,38 @@ public class GrammarNode {
                         && lastWord != Symbol.PARENTHESIS_LEFT
                         && c != Symbol.AND
                         && c != Symbol.OR
-                        && c != Symbol.SELF_LOOP
+                        && !isRepeatSymbol(c)
                         && c != Symbol.PARENTHESIS_RIGHT) {
+                    // Added AND symbol is reported at the position of next word
+                    rawPositions[builderSize] = i;
                     builder[builderSize++] = Symbol.AND;
                 }
 
+                if (c == Symbol.CHAR_SET_LEFT) { // Char set is a single word
+                    int end = CharSets.findEnd(charArr, i);
+                    if (end < 0) {
+                        throw NormalFormException.symbolUsedIncorrectly(Symbol.CHAR_SET_LEFT, i);
+                    }
+                    CharSets.parse(charArr, i, end + 1);
+                    System.arraycopy(charArr, i, builder, builderSize, end + 1 - i);
+                    for (int j = i; j <= end; j++) {
+                        rawPositions[builderSize++] = j;
+                    }
+                    lastWord = Symbol.CHAR_SET_RIGHT;
+                    i = end;
+                    continue;
+                } else if (c == Symbol.CHAR_SET_RIGHT) { // Symbol CHAR_SET_RIGHT without CHAR_SET_LEFT
+                    throw NormalFormException.symbolUsedIncorrectly(Symbol.CHAR_SET_RIGHT, i);
+                }
+
                 if (c == Symbol.PARENTHESIS_LEFT) { // Symbol PARENTHESIS_LEFT use check
-                    parenthesisCounter++;
+                    parenthesisPosition[parenthesisCounter++] = i;
                 } else if (c == Symbol.PARENTHESIS_RIGHT) { // Symbol PARENTHESIS_RIGHT use check
                     parenthesisCounter--;
 
                     // Symbol PARENTHESIS_RIGHT use error
                     if (parenthesisCounter < 0) {
-                        throw new NormalFormException("Symbol " + Symbol.PARENTHESIS_RIGHT + " use incorrectly");
+                        throw NormalFormException.symbolUsedIncorrectly(Symbol.PARENTHESIS_RIGHT, i);
                     }
 
                     if (lastWord == Symbol.PARENTHESIS_LEFT) { // Delete () use
@@ -81,14 +137,29 @@ public class GrammarNode {
                     }
                 }
 
-                if (c == Symbol.SELF_LOOP) { // Symbol SELF_LOOP use check
+                if (isRepeatSymbol(c)) { // Symbol SELF_LOOP, PLUS, OPTIONAL and REPEAT use check
                     if (builderSize == 0
                             || lastWord == Symbol.AND
                             || lastWord == Symbol.OR
                             || lastWord == Symbol.SELF_LOOP
+                            || lastWord == Symbol.PLUS
+                            || lastWord == Symbol.OPTIONAL
+                            || lastWord == Symbol.REPEAT_RIGHT
                             || lastWord == Symbol.PARENTHESIS_LEFT) {
-                        throw new NormalFormException("Symbol " + Symbol.SELF_LOOP + " use incorrectly");
+                        throw NormalFormException.symbolUsedIncorrectly(c, i);
+                    }
+                    if (c == Symbol.REPEAT_LEFT) { // Repeat count is a single word
+                        int end = GrammarParser.parseRepeat(charArr, i, i)[2];
+                        System.arraycopy(charArr, i, builder, builderSize, end + 1 - i);
+                        for (int j = i; j <= end; j++) {
+                            rawPositions[builderSize++] = j;
+                        }
+                        lastWord = Symbol.REPEAT_RIGHT;
+                        i = end;
+                        continue;
                     }
+                } else if (c == Symbol.REPEAT_RIGHT) { // Symbol REPEAT_RIGHT without REPEAT_LEFT
+                    throw NormalFormException.symbolUsedIncorrectly(c, i);
                 } else if (c == Symbol.OR || c == Symbol.AND) { // Symbol OR and AND use check
                     if (builderSize == 0 || i == charArr.length - 1
                             || lastWord == Symbol.AND
@@ -96,12 +167,13 @@ public class GrammarNode {
                             || lastWord == Symbol.PARENTHESIS_LEFT
                             || charArr[i + 1] == Symbol.AND
                             || charArr[i + 1] == Symbol.OR
-                            || charArr[i + 1] == Symbol.SELF_LOOP
+                            || isRepeatSymbol(charArr[i + 1])
                             || charArr[i + 1] == Symbol.PARENTHESIS_RIGHT) {
-                        throw new NormalFormException("Symbol " + c + " use incorrectly");
+                        throw NormalFormException.symbolUsedIncorrectly(c, i);
                     }
                 }
                 // Append Words
+                rawPositions[builderSize] = i;
                 builder[builderSize++] = c;
                 lastWord = c;
             }
@@ -109,179 +181,318 @@ public class GrammarNode {
 
         // Symbol PARENTHESIS_LEFT use error
         if (parenthesisCounter > 0) {
-            throw new NormalFormException("Symbol " + Symbol.PARENTHESIS_LEFT + " use incorrectly");
+            throw NormalFormException.symbolUsedIncorrectly(Symbol.PARENTHESIS_LEFT, parenthesisPosition[parenthesisCounter - 1]);
+        }
+        if (builderSize == 0) {
+            throw new NormalFormException("Content is empty!");
         }
 
-        return deleteDuplicatedOutsideParenthesis(builder, 0, builderSize);
+        return Arrays.copyOf(builder, builderSize);
     }
 
     /**
+     * @return Symbol is SELF_LOOP, PLUS, OPTIONAL or start of repeat count
+     */
+    private static boolean isRepeatSymbol(char c) {
+        return c == Symbol.SELF_LOOP || c == Symbol.PLUS || c == Symbol.OPTIONAL || c == Symbol.REPEAT_LEFT;
+    }
+
+    /**
+     * Outside parenthesises and SELF_LOOP are handled by {@link GrammarParser}
      * ((A)) -> A
+     * (A)* -> A
      *
      * @param charArr content
-     * @param start   startPosition
-     * @param arrSize contentSize
-     * @return content
      */
-    private static char[] deleteDuplicatedOutsideParenthesis(char[] charArr, int start, int arrSize) {
-        int parenthesisCounter = 0;
-        while (charArr[start] == Symbol.PARENTHESIS_LEFT && charArr[arrSize - 1] == Symbol.PARENTHESIS_RIGHT) {
-            boolean hasDuplicatedParenthesis = true;
-            for (int i = 1; i < arrSize - 1; i++) {
-                if (charArr[i] == Symbol.PARENTHESIS_LEFT) {
-                    parenthesisCounter++;
-                } else if (charArr[i] == Symbol.PARENTHESIS_RIGHT) {
-                    parenthesisCounter--;
-                    if (parenthesisCounter < 0) {
-                        hasDuplicatedParenthesis = false;
-                        break;
-                    }
-                }
-            }
-            if (parenthesisCounter > 0) {
-                hasDuplicatedParenthesis = false;
-            }
-            if (hasDuplicatedParenthesis) {
-                arrSize--;
-                start++;
-
-                parenthesisCounter = 0;
-            } else {
-                break;
-            }
+    private void buildNode(char[] charArr) throws NormalFormException {
+        char[] content;
+        // Null if content is not cleaned, so positions are the same
+        int[] rawPositions = null;
+        if (this.isRootNode) {
+            rawPositions = new int[charArr.length * 2];
+            content = grammarContentCleanAndCheck(charArr, rawPositions);
+        } else {
+            content = charArr;
         }
-        return Arrays.copyOfRange(charArr, start, arrSize);
+        GrammarNode node = GrammarParser.parse(content, rawPositions);
+
+        this.isLeafNode = node.isLeafNode;
+        this.repeatMin = node.repeatMin;
+        this.repeatMax = node.repeatMax;
+        this.contentForm = node.contentForm;
+        this.contentStart = node.contentStart;
+        this.contentEnd = node.contentEnd;
+        this.calculateSymbol = node.calculateSymbol;
+        this.childNodes = node.childNodes;
+        this.captureGroups = node.captureGroups;
+        this.captureGroupCount = node.captureGroupCount;
+        this.expandedSize = node.expandedSize;
     }
 
-    private void divideChildNodes(char[] charArr) throws NormalFormException {
-        boolean hasAnd = false;
-        boolean hasOr = false;
-        int[] cutPosition = new int[charArr.length / 2 + 1];
-        int andCounter = 0;
-        int orCounter = 0;
+    /**
+     * Node created by {@link GrammarSimplifier} or repeat expansion, which covers the same content as this node
+     * Capture groups are not copied
+     */
+    GrammarNode newNode(boolean isLeafNode, int repeatMin, int repeatMax, char calculateSymbol, GrammarNode[] childNodes) {
+        GrammarNode node = new GrammarNode(this.contentForm, this.contentStart, this.contentEnd);
+        node.isLeafNode = isLeafNode;
+        node.repeatMin = repeatMin;
+        node.repeatMax = repeatMax;
+        node.calculateSymbol = calculateSymbol;
+        node.childNodes = childNodes.length == 0 ? EMPTY_CHILD_NODES : childNodes;
+        return node;
+    }
 
-        // Delete inside parenthesises and get calculate symbol
-        int parenthesisCounter = 0;
-        boolean hasParenthesis = false;
-        boolean foundLeftParenthesis = false;
-        for (int i = 0; i < charArr.length; i++) {
-            char c = charArr[i];
-            if (c == Symbol.PARENTHESIS_LEFT) {
-                if (parenthesisCounter == 0) {
-                    foundLeftParenthesis = true;
-                }
-                parenthesisCounter++;
-                hasParenthesis = true;
-            } else if (c == Symbol.PARENTHESIS_RIGHT) {
-                parenthesisCounter--;
-                if (parenthesisCounter == 0) {
-                    foundLeftParenthesis = false;
-                }
-            } else if (!foundLeftParenthesis) {
-                if (!hasOr && c == Symbol.AND) {
-                    cutPosition[andCounter++] = i;
-                    hasAnd = true;
-                } else if (c == Symbol.OR) {
-                    cutPosition[orCounter++] = i;
-                    hasOr = true;
-                }
-            }
-        }
+    /**
+     * Simplified tree accepts the same language, and identical subtrees are shared
+     *
+     * @return Simplified tree
+     * @see GrammarSimplifier
+     */
+    public GrammarNode getSimplifiedNode() {
+        return GrammarSimplifier.simplify(this);
+    }
 
-        int cutSize;
-        if (hasOr) {
-            cutSize = orCounter;
-            this.calculateSymbol = Symbol.OR;
-        } else if (hasAnd) {
-            cutSize = andCounter;
-            this.calculateSymbol = Symbol.AND;
-        } else {
-            // Check Leaf Node
-            if (hasParenthesis) {
-                this.childNodes = new GrammarNode[]{
-                        new GrammarNode(charArr)
-                };
-            } else {
-                this.isLeafNode = true;
-            }
-            return;
-        }
+    void setLeafNode() {
+        this.isLeafNode = true;
+    }
 
-        int startCut = 0;
-        this.childNodes = new GrammarNode[cutSize + 1];
-        for (int i = 0; i <= cutSize; i++) {
-            // Divide Nodes
-            char[] childNodeContent;
-            if (i == cutSize) {
-                childNodeContent = Arrays.copyOfRange(charArr, startCut, charArr.length);
-            } else {
-                childNodeContent = Arrays.copyOfRange(charArr, startCut, cutPosition[i]);
-                startCut = cutPosition[i] + 1;
-            }
-            this.childNodes[i] = new GrammarNode(childNodeContent);
-        }
+    void setLoopNode() {
+        setRepeat(0, REPEAT_INFINITE);
+    }
+
+    void setRepeat(int repeatMin, int repeatMax) {
+        this.repeatMin = repeatMin;
+        this.repeatMax = repeatMax;
+    }
+
+    void addCaptureGroup(int group) {
+        // Outer group is added later
+        int[] groups = new int[captureGroups.length + 1];
+        groups[0] = group;
+        System.arraycopy(captureGroups, 0, groups, 1, captureGroups.length);
+        this.captureGroups = groups;
+    }
+
+    void setCaptureGroupCount(int captureGroupCount) {
+        this.captureGroupCount = captureGroupCount;
+    }
+
+    void setExpandedSize(long expandedSize) {
+        this.expandedSize = expandedSize;
+    }
+
+    void setChildNodes(char calculateSymbol, GrammarNode[] childNodes) {
+        this.calculateSymbol = calculateSymbol;
+        this.childNodes = childNodes;
+    }
+
+    public boolean isLeafNode() {
+        return isLeafNode;
+    }
+
+    public boolean isLoopNode() {
+        return repeatMin == 0 && repeatMax == REPEAT_INFINITE;
     }
 
     /**
-     * Check (A)*
+     * @return There are SELF_LOOP, PLUS, OPTIONAL or repeat count behind this node
      */
-    private void checkAndCleanParenthesisLoopNode() {
-        if (contentForm[contentForm.length - 1] == Symbol.SELF_LOOP) {
-            if (contentForm.length > 3 && contentForm[0] == Symbol.PARENTHESIS_LEFT && contentForm[contentForm.length - 2] == Symbol.PARENTHESIS_RIGHT) {
-                int parenthesisCounter = 0;
-                boolean parenthesisError = false;
-                for (int i = 1; i < contentForm.length - 2; i++) {
-                    if (contentForm[i] == Symbol.PARENTHESIS_LEFT) {
-                        parenthesisCounter++;
-                    } else if (contentForm[i] == Symbol.PARENTHESIS_RIGHT) {
-                        parenthesisCounter--;
-
-                        if (parenthesisCounter < 0) {
-                            parenthesisError = true;
-                            break;
-                        }
-                    }
-                }
+    public boolean isRepeatNode() {
+        return repeatMin != 1 || repeatMax != 1;
+    }
 
-                if (!parenthesisError && parenthesisCounter == 0) {
-                    this.isLoopNode = true;
-                    this.contentForm = deleteDuplicatedOutsideParenthesis(this.contentForm, 1, this.contentForm.length - 2);
-                }
+    /**
+     * @return Capture groups around this node from outer to inner, empty if none
+     */
+    int[] getCaptureGroups() {
+        return captureGroups;
+    }
+
+    /**
+     * Simplified tree has no capture group
+     *
+     * @return Count of capture groups in the tree of this root node
+     */
+    public int getCaptureGroupCount() {
+        return captureGroupCount;
+    }
+
+    /**
+     * Every leaf is a position of Glushkov NFA, simplified tree has no expanded size
+     *
+     * @return Count of leaves in the tree of this root node after bounded repeats are expanded
+     */
+    long getExpandedSize() {
+        return expandedSize;
+    }
+
+    public int getRepeatMin() {
+        return repeatMin;
+    }
+
+    /**
+     * @return Max repeat count, or REPEAT_INFINITE
+     */
+    public int getRepeatMax() {
+        return repeatMax;
+    }
+
+    /**
+     * Repeat which is not SELF_LOOP, PLUS or OPTIONAL is expanded into copies sharing this node's children:
+     * A{2,4} -> A·A·(A·A?)?, A{3,} -> A·A·A+
+     * Optional copies are nested, so all of them skip to the same end
+     * Every copy has the capture groups of this node, so the last repeat is captured
+     *
+     * @return Node only using SELF_LOOP, PLUS and OPTIONAL, this node if it doesn't need expansion
+     */
+    GrammarNode getRepeatExpandedNode() {
+        if (repeatMin <= 1 && (repeatMax == 1 || repeatMax == REPEAT_INFINITE)) {
+            return this;
+        }
+        GrammarNode body = newNode(isLeafNode, 1, 1, calculateSymbol, childNodes);
+        body.captureGroups = captureGroups;
+        GrammarNode tail = null;
+        int copyCount = repeatMin;
+        if (repeatMax == REPEAT_INFINITE) {
+            copyCount--;
+            tail = newNode(isLeafNode, 1, REPEAT_INFINITE, calculateSymbol, childNodes);
+            tail.captureGroups = captureGroups;
+        } else if (repeatMax > repeatMin) {
+            tail = newNode(isLeafNode, 0, 1, calculateSymbol, childNodes);
+            tail.captureGroups = captureGroups;
+            for (int i = repeatMin + 1; i < repeatMax; i++) {
+                tail = newNode(false, 0, 1, Symbol.AND, new GrammarNode[]{body, tail});
             }
         }
+        GrammarNode[] factors = new GrammarNode[copyCount + (tail == null ? 0 : 1)];
+        Arrays.fill(factors, 0, copyCount, body);
+        if (tail != null) {
+            factors[copyCount] = tail;
+        }
+        return factors.length == 1 ? factors[0] : newNode(false, 1, 1, Symbol.AND, factors);
+    }
+
+    public String getContentForm() {
+        return new String(this.contentForm, this.contentStart, this.contentEnd - this.contentStart);
     }
 
     /**
-     * Check A*
+     * Content printed from the tree, with only necessary parenthesises and a single SELF_LOOP for nested loops
+     * Expressions which only differ in blank chars and redundant parenthesises have the same normalized form
+     * Use explicit stack, so the depth of grammar tree is not limited by thread stack size
+     *
+     * @return Normalized form
      */
-    private void checkAndCleanLoopNode() {
-        if (contentForm[contentForm.length - 1] == Symbol.SELF_LOOP && isLeafNode) {
-            this.isLoopNode = true;
-            this.contentForm = deleteDuplicatedOutsideParenthesis(this.contentForm, 0, this.contentForm.length - 1);
+    public String getNormalizedForm() {
+        StringBuilder builder = new StringBuilder(contentEnd - contentStart);
+        GrammarNode[] nodeStack = new GrammarNode[INITIAL_CAPACITY];
+        // [child index, is grouped]
+        int[] frameStack = new int[INITIAL_CAPACITY * 2];
+        int stackSize = 0;
+        nodeStack[stackSize] = this;
+        frameStack[0] = -1;
+        frameStack[1] = 0;
+        stackSize++;
+
+        // Parent of the node on top of stack is AND, and the node is not grouped by its own parenthesises
+        boolean isInAnd = false;
+        while (stackSize > 0) {
+            int frame = (stackSize - 1) * 2;
+            GrammarNode currentNode = nodeStack[stackSize - 1];
+            int childIndex = frameStack[frame];
+
+            if (childIndex == -1) {
+                if (currentNode.isLeafNode) {
+                    builder.append(currentNode.contentForm, currentNode.contentStart, currentNode.contentEnd - currentNode.contentStart);
+                    appendRepeat(builder, currentNode);
+                    nodeStack[--stackSize] = null;
+                    isInAnd = stackSize > 0 && nodeStack[stackSize - 1].calculateSymbol == Symbol.AND;
+                    continue;
+                }
+                // Loop of a loop node is the same as the inner loop node
+                boolean isRepeat = currentNode.isRepeatNode() &&
+                        !(currentNode.isLoopNode() && currentNode.childNodes.length == 1 && currentNode.childNodes[0].isLoopNode());
+                boolean isGrouped = isRepeat || (isInAnd && currentNode.calculateSymbol == Symbol.OR);
+                if (isGrouped) {
+                    builder.append(Symbol.PARENTHESIS_LEFT);
+                }
+                frameStack[frame + 1] = (isGrouped ? 1 : 0) | (isRepeat ? 2 : 0);
+                childIndex = 0;
+            }
+
+            GrammarNode[] nodes = currentNode.childNodes;
+            if (childIndex == nodes.length) {
+                if ((frameStack[frame + 1] & 1) != 0) {
+                    builder.append(Symbol.PARENTHESIS_RIGHT);
+                }
+                if ((frameStack[frame + 1] & 2) != 0) {
+                    appendRepeat(builder, currentNode);
+                }
+                nodeStack[--stackSize] = null;
+                isInAnd = stackSize > 0 && nodeStack[stackSize - 1].calculateSymbol == Symbol.AND;
+                continue;
+            }
+            if (childIndex > 0) {
+                builder.append(currentNode.calculateSymbol);
+            }
+            frameStack[frame] = childIndex + 1;
+            // Single child node passes its context to its child, unless it is grouped
+            if (currentNode.calculateSymbol == Symbol.AND) {
+                isInAnd = true;
+            } else if (currentNode.calculateSymbol == Symbol.OR || (frameStack[frame + 1] & 1) != 0) {
+                isInAnd = false;
+            }
+
+            if (stackSize == nodeStack.length) {
+                nodeStack = Arrays.copyOf(nodeStack, stackSize * 2);
+                frameStack = Arrays.copyOf(frameStack, stackSize * 2 * 2);
+            }
+            nodeStack[stackSize] = nodes[childIndex];
+            frameStack[stackSize * 2] = -1;
+            frameStack[stackSize * 2 + 1] = 0;
+            stackSize++;
         }
+        return builder.toString();
     }
 
-    private void buildNode(char[] charArr) throws NormalFormException {
-        if (this.isRootNode) {
-            this.contentForm = grammarContentCleanAndCheck(charArr);
-        } else {
-            this.contentForm = deleteDuplicatedOutsideParenthesis(charArr, 0, charArr.length);
+    private static void appendRepeat(StringBuilder builder, GrammarNode node) {
+        if (node.repeatMin == 0 && node.repeatMax == REPEAT_INFINITE) {
+            builder.append(Symbol.SELF_LOOP);
+        } else if (node.repeatMin == 1 && node.repeatMax == REPEAT_INFINITE) {
+            builder.append(Symbol.PLUS);
+        } else if (node.repeatMin == 0 && node.repeatMax == 1) {
+            builder.append(Symbol.OPTIONAL);
+        } else if (node.isRepeatNode()) {
+            builder.append(Symbol.REPEAT_LEFT).append(node.repeatMin);
+            if (node.repeatMax != node.repeatMin) {
+                builder.append(Symbol.REPEAT_SEPARATOR);
+                if (node.repeatMax != REPEAT_INFINITE) {
+                    builder.append(node.repeatMax);
+                }
+            }
+            builder.append(Symbol.REPEAT_RIGHT);
         }
-        checkAndCleanParenthesisLoopNode();
-        divideChildNodes(this.contentForm);
-        checkAndCleanLoopNode();
     }
 
-    public boolean isLeafNode() {
-        return isLeafNode;
+    /**
+     * @return Symbol of leaf node which is not a char set
+     */
+    char getLeafSymbol() {
+        return this.contentForm[this.contentStart];
     }
 
-    public boolean isLoopNode() {
-        return isLoopNode;
+    boolean isCharSetLeaf() {
+        return this.isLeafNode && this.contentForm[this.contentStart] == Symbol.CHAR_SET_LEFT;
     }
 
-    public String getContentForm() {
-        return new String(this.contentForm);
+    /**
+     * @return Sorted and merged ranges of char set leaf
+     * @throws NormalFormException Char set is incorrect
+     * @see CharSets
+     */
+    char[] getLeafCharSet() throws NormalFormException {
+        return CharSets.parse(this.contentForm, this.contentStart, this.contentEnd);
     }
 
     public char getCalculateSymbol() {
@@ -0,0 +1,309 @@
+import java.util.Arrays;
+
+/**
+ * Single pass regular expression parser
+ * Use operand stack and parenthesis frame stack instead of recursion, so the content is scanned only once
+ *
+ * @author xfy9326
+ */
+final class GrammarParser {
+    // Operand stack
+    private final GrammarNode[] nodeStack;
+    // Position where each operand starts (including its outside parenthesis)
+    private final int[] nodeStartStack;
+    // Count of leaves of each operand after bounded repeats are expanded
+    private final long[] expandedSizeStack;
+    private int nodeStackSize = 0;
+
+    // Parenthesis frame stack
+    // Stack position of the first alternative in this frame
+    private final int[] alternativeBaseStack;
+    // Stack position of the first factor in current AND term
+    private final int[] termBaseStack;
+    // Position of PARENTHESIS_LEFT
+    private final int[] parenthesisStack;
+    // Capture group of parenthesis
+    private final int[] captureGroupStack;
+    private int frameStackSize = 0;
+    private int captureGroupCount = 0;
+
+    private final char[] content;
+    // Position in raw content of every char, errors are reported at raw positions, null if content is raw
+    private final int[] rawPositions;
+    // Content can't be expanded to more leaves than content itself or MAX_EXPANDED_SIZE
+    private final long expandedSizeLimit;
+
+    private GrammarParser(char[] content, int[] rawPositions) {
+        this.content = content;
+        this.rawPositions = rawPositions;
+        this.nodeStack = new GrammarNode[content.length];
+        this.nodeStartStack = new int[content.length];
+        this.expandedSizeStack = new long[content.length];
+        this.expandedSizeLimit = Math.max(GrammarNode.MAX_EXPANDED_SIZE, content.length);
+        // Frame 0 is the whole content
+        int maxFrames = content.length + 1;
+        this.alternativeBaseStack = new int[maxFrames];
+        this.termBaseStack = new int[maxFrames];
+        this.parenthesisStack = new int[maxFrames];
+        this.captureGroupStack = new int[maxFrames];
+    }
+
+    /**
+     * Parse cleaned content into grammar tree
+     *
+     * @param content      Cleaned content
+     * @param rawPositions Position in raw content of every char in cleaned content, null if content is raw
+     * @return Root node
+     * @throws NormalFormException Content has grammar error
+     */
+    static GrammarNode parse(char[] content, int[] rawPositions) throws NormalFormException {
+        if (content.length == 0) {
+            throw new NormalFormException("Content is empty!");
+        }
+        return new GrammarParser(content, rawPositions).parseContent();
+    }
+
+    /**
+     * @return Error of symbol at the raw position of cleaned content position
+     */
+    private NormalFormException symbolUsedIncorrectly(char symbol, int position) {
+        return NormalFormException.symbolUsedIncorrectly(symbol, getRawPosition(position));
+    }
+
+    private int getRawPosition(int position) {
+        return rawPositions == null ? position : rawPositions[position];
+    }
+
+    /**
+     * Every bounded repeat is a copy in NFA, so nested repeats multiply the size: (a{1000}){1000} has 1000000 leaves
+     *
+     * @param position Position which is reported in error
+     * @throws NormalFormException Expanded size is larger than limit
+     */
+    private void checkExpandedSize(long expandedSize, int position) throws NormalFormException {
+        if (expandedSize > expandedSizeLimit) {
+            throw NormalFormException.expandedTooLarge(expandedSizeLimit, getRawPosition(position));
+        }
+    }
+
+    private GrammarNode parseContent() throws NormalFormException {
+        pushFrame(-1);
+        boolean expectOperand = true;
+
+        for (int i = 0; i < content.length; i++) {
+            char c = content[i];
+            if (c == Symbol.AND) {
+                if (expectOperand) {
+                    throw symbolUsedIncorrectly(c, i);
+                }
+                expectOperand = true;
+            } else if (c == Symbol.OR) {
+                if (expectOperand) {
+                    throw symbolUsedIncorrectly(c, i);
+                }
+                reduceTerm(i);
+                termBaseStack[frameStackSize - 1] = nodeStackSize;
+                expectOperand = true;
+            } else if (c == Symbol.SELF_LOOP || c == Symbol.PLUS || c == Symbol.OPTIONAL || c == Symbol.REPEAT_LEFT) {
+                if (expectOperand) {
+                    throw symbolUsedIncorrectly(c, i);
+                }
+                if (c == Symbol.SELF_LOOP) {
+                    applyRepeat(i, 0, GrammarNode.REPEAT_INFINITE);
+                } else if (c == Symbol.PLUS) {
+                    applyRepeat(i, 1, GrammarNode.REPEAT_INFINITE);
+                } else if (c == Symbol.OPTIONAL) {
+                    applyRepeat(i, 0, 1);
+                } else {
+                    int[] repeat = parseRepeat(content, i, getRawPosition(i));
+                    applyRepeat(i, repeat[0], repeat[1]);
+                    i = repeat[2];
+                }
+            } else if (c == Symbol.PARENTHESIS_LEFT) {
+                // Content without AND symbol: (A)(B) -> (A)·(B)
+                pushFrame(i);
+                expectOperand = true;
+            } else if (c == Symbol.PARENTHESIS_RIGHT) {
+                if (expectOperand || frameStackSize == 1) {
+                    throw symbolUsedIncorrectly(c, i);
+                }
+                reduceFrame(i);
+                applyCaptureGroup(i);
+                // Operand of parenthesis starts at PARENTHESIS_LEFT
+                nodeStartStack[nodeStackSize - 1] = parenthesisStack[frameStackSize];
+                expectOperand = false;
+            } else {
+                // Char set is a single leaf
+                int end = i;
+                if (c == Symbol.CHAR_SET_LEFT) {
+                    end = CharSets.findEnd(content, i);
+                    if (end < 0) {
+                        throw symbolUsedIncorrectly(c, i);
+                    }
+                }
+                GrammarNode leafNode = new GrammarNode(content, i, end + 1);
+                leafNode.setLeafNode();
+                pushNode(leafNode, i, 1);
+                expectOperand = false;
+                i = end;
+            }
+        }
+
+        if (expectOperand) {
+            throw symbolUsedIncorrectly(content[content.length - 1], content.length - 1);
+        }
+        if (frameStackSize > 1) {
+            throw symbolUsedIncorrectly(Symbol.PARENTHESIS_LEFT, parenthesisStack[frameStackSize - 1]);
+        }
+        reduceFrame(content.length);
+        nodeStack[0].setCaptureGroupCount(captureGroupCount);
+        nodeStack[0].setExpandedSize(expandedSizeStack[0]);
+        return nodeStack[0];
+    }
+
+    private void pushNode(GrammarNode node, int start, long expandedSize) {
+        nodeStack[nodeStackSize] = node;
+        nodeStartStack[nodeStackSize] = start;
+        expandedSizeStack[nodeStackSize] = expandedSize;
+        nodeStackSize++;
+    }
+
+    private void pushFrame(int parenthesisPosition) {
+        alternativeBaseStack[frameStackSize] = nodeStackSize;
+        termBaseStack[frameStackSize] = nodeStackSize;
+        parenthesisStack[frameStackSize] = parenthesisPosition;
+        // Capture groups are numbered by their PARENTHESIS_LEFT
+        captureGroupStack[frameStackSize] = parenthesisPosition < 0 ? 0 : ++captureGroupCount;
+        frameStackSize++;
+    }
+
+    /**
+     * Repeat count: {m} {m,} {m,n}
+     *
+     * @param content  Content
+     * @param start    Position of REPEAT_LEFT
+     * @param position Position of REPEAT_LEFT which is reported in error
+     * @return [min, max, position of REPEAT_RIGHT], max may be REPEAT_INFINITE
+     * @throws NormalFormException Repeat count is incorrect, or larger than MAX_REPEAT_COUNT
+     */
+    static int[] parseRepeat(char[] content, int start, int position) throws NormalFormException {
+        int i = start + 1;
+        int min = 0;
+        int digitStart = i;
+        while (i < content.length && content[i] >= '0' && content[i] <= '9' && min <= GrammarNode.MAX_REPEAT_COUNT) {
+            min = min * 10 + (content[i++] - '0');
+        }
+        if (i == digitStart) {
+            throw NormalFormException.symbolUsedIncorrectly(Symbol.REPEAT_LEFT, position);
+        }
+        int max = min;
+        if (i < content.length && content[i] == Symbol.REPEAT_SEPARATOR) {
+            i++;
+            digitStart = i;
+            max = 0;
+            while (i < content.length && content[i] >= '0' && content[i] <= '9' && max <= GrammarNode.MAX_REPEAT_COUNT) {
+                max = max * 10 + (content[i++] - '0');
+            }
+            if (i == digitStart) {
+                max = GrammarNode.REPEAT_INFINITE;
+            }
+        }
+        if (i >= content.length || content[i] != Symbol.REPEAT_RIGHT || min > GrammarNode.MAX_REPEAT_COUNT || max > GrammarNode.MAX_REPEAT_COUNT ||
+                max == 0 || (max != GrammarNode.REPEAT_INFINITE && max < min)) {
+            throw NormalFormException.symbolUsedIncorrectly(Symbol.REPEAT_LEFT, position);
+        }
+        return new int[]{min, max, i};
+    }
+
+    /**
+     * A* -> A is loop node, A+ A? A{m,n} are the same
+     * (A*)* -> A*
+     * ((A)*)* -> Loop node with single child A*
+     * (A+)? -> Repeat node with single child A+
+     *
+     * @param position  Position of repeat symbol
+     * @param repeatMin Min repeat count
+     * @param repeatMax Max repeat count, or REPEAT_INFINITE
+     * @throws NormalFormException Expanded size is too large
+     */
+    private void applyRepeat(int position, int repeatMin, int repeatMax) throws NormalFormException {
+        // A{m,n} has n copies of A, A{m,} has m copies and a loop, SELF_LOOP, PLUS and OPTIONAL have a single copy
+        int copyCount = repeatMax == GrammarNode.REPEAT_INFINITE ? Math.max(repeatMin, 1) : repeatMax;
+        long expandedSize = expandedSizeStack[nodeStackSize - 1] * copyCount;
+        checkExpandedSize(expandedSize, position);
+        expandedSizeStack[nodeStackSize - 1] = expandedSize;
+
+        GrammarNode node = nodeStack[nodeStackSize - 1];
+        boolean isLoop = repeatMin == 0 && repeatMax == GrammarNode.REPEAT_INFINITE;
+        if (!node.isRepeatNode()) {
+            node.setRepeat(repeatMin, repeatMax);
+        } else if (!node.isLeafNode() || !node.isLoopNode() || !isLoop) {
+            int start = nodeStartStack[nodeStackSize - 1];
+            int end = position;
+            if (content[start] == Symbol.PARENTHESIS_LEFT && content[end - 1] == Symbol.PARENTHESIS_RIGHT) {
+                start++;
+                end--;
+            }
+            GrammarNode repeatNode = new GrammarNode(content, start, end);
+            repeatNode.setChildNodes('\0', new GrammarNode[]{node});
+            repeatNode.setRepeat(repeatMin, repeatMax);
+            nodeStack[nodeStackSize - 1] = repeatNode;
+        }
+    }
+
+    /**
+     * Capture group is inside the repeat of its node, so a repeated node gets a new node for the group:
+     * (A)* -> A* captures every repeat of A
+     * (A*) -> Node with single child A* captures all repeats
+     *
+     * @param position Position of PARENTHESIS_RIGHT
+     */
+    private void applyCaptureGroup(int position) {
+        GrammarNode node = nodeStack[nodeStackSize - 1];
+        if (node.isRepeatNode()) {
+            GrammarNode groupNode = new GrammarNode(content, parenthesisStack[frameStackSize] + 1, position);
+            groupNode.setChildNodes('\0', new GrammarNode[]{node});
+            nodeStack[nodeStackSize - 1] = groupNode;
+            node = groupNode;
+        }
+        node.addCaptureGroup(captureGroupStack[frameStackSize]);
+    }
+
+    /**
+     * Combine factors of current term with AND symbol
+     *
+     * @param end Term end position
+     */
+    private void reduceTerm(int end) throws NormalFormException {
+        int termBase = termBaseStack[frameStackSize - 1];
+        reduce(termBase, Symbol.AND, end);
+    }
+
+    /**
+     * Combine alternatives of current frame with OR symbol and pop the frame
+     *
+     * @param end Frame end position
+     */
+    private void reduceFrame(int end) throws NormalFormException {
+        reduceTerm(end);
+        frameStackSize--;
+        reduce(alternativeBaseStack[frameStackSize], Symbol.OR, end);
+    }
+
+    private void reduce(int base, char calculateSymbol, int end) throws NormalFormException {
+        int size = nodeStackSize - base;
+        if (size > 1) {
+            long expandedSize = 0;
+            for (int i = base; i < nodeStackSize; i++) {
+                expandedSize += expandedSizeStack[i];
+            }
+            checkExpandedSize(expandedSize, nodeStartStack[base]);
+            expandedSizeStack[base] = expandedSize;
+            GrammarNode node = new GrammarNode(content, nodeStartStack[base], end);
+            node.setChildNodes(calculateSymbol, Arrays.copyOfRange(nodeStack, base, nodeStackSize));
+            Arrays.fill(nodeStack, base + 1, nodeStackSize, null);
+            nodeStack[base] = node;
+            nodeStackSize = base + 1;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Algebraic simplification of grammar tree, the language is not changed
+ * Nested AND or OR nodes are flattened: a·(b·c) -> a·b·c, a|(b|c) -> a|b|c
+ * Duplicated alternatives are removed: a|a -> a, a|a* -> a*, a|a+ -> a+, a|a? -> a?
+ * Nested loops are merged: (a*)* -> a*, (a+)? -> a*, (a*|b)* -> (a|b)*, (a*·b?)* -> (a|b)*
+ * Structurally identical subtrees are interned, so the result is a DAG sharing them
+ * Nodes in the result are immutable, content form of a node is the content of the first subexpression it is built from
+ * Use explicit stack, so the depth of grammar tree is not limited by thread stack size
+ *
+ * @author xfy9326
+ */
+final class GrammarSimplifier {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int INFINITE = GrammarNode.REPEAT_INFINITE;
+
+    // Interned nodes
+    private final HashMap<Key, GrammarNode> nodes = new HashMap<>();
+    private final IdentityHashMap<GrammarNode, Integer> nodeIds = new IdentityHashMap<>();
+
+    private GrammarSimplifier() {
+    }
+
+    static GrammarNode simplify(GrammarNode rootNode) {
+        return new GrammarSimplifier().simplifyTree(rootNode);
+    }
+
+    /**
+     * @return Repeat is SELF_LOOP, PLUS, OPTIONAL or no repeat
+     */
+    private static boolean isSimpleRepeat(int repeatMin, int repeatMax) {
+        return repeatMin <= 1 && (repeatMax == 1 || repeatMax == INFINITE);
+    }
+
+    private static boolean isSimpleRepeat(GrammarNode node) {
+        return isSimpleRepeat(node.getRepeatMin(), node.getRepeatMax());
+    }
+
+    private static boolean isLoop(int repeatMin, int repeatMax) {
+        return repeatMin == 0 && repeatMax == INFINITE;
+    }
+
+    private GrammarNode simplifyTree(GrammarNode rootNode) {
+        GrammarNode[] nodeStack = new GrammarNode[INITIAL_CAPACITY];
+        int[] childIndexStack = new int[INITIAL_CAPACITY];
+        int stackSize = 0;
+        // Simplified nodes of finished nodes
+        ArrayList<GrammarNode> resultStack = new ArrayList<>();
+
+        nodeStack[stackSize++] = rootNode;
+        while (stackSize > 0) {
+            GrammarNode currentNode = nodeStack[stackSize - 1];
+            GrammarNode[] childNodes = currentNode.getChildNodes();
+            int childIndex = childIndexStack[stackSize - 1];
+            if (!currentNode.isLeafNode() && childIndex < childNodes.length) {
+                childIndexStack[stackSize - 1] = childIndex + 1;
+                if (stackSize == nodeStack.length) {
+                    nodeStack = Arrays.copyOf(nodeStack, stackSize * 2);
+                    childIndexStack = Arrays.copyOf(childIndexStack, stackSize * 2);
+                }
+                nodeStack[stackSize] = childNodes[childIndex];
+                childIndexStack[stackSize] = 0;
+                stackSize++;
+                continue;
+            }
+            nodeStack[--stackSize] = null;
+
+            int repeatMin = currentNode.getRepeatMin();
+            int repeatMax = currentNode.getRepeatMax();
+            GrammarNode result;
+            if (currentNode.isLeafNode()) {
+                result = intern(currentNode, true, '\0', null, repeatMin, repeatMax);
+            } else {
+                // Child results are on the top of result stack
+                List<GrammarNode> children = resultStack.subList(resultStack.size() - childNodes.length, resultStack.size());
+                char calculateSymbol = currentNode.getCalculateSymbol();
+                if (calculateSymbol == Symbol.AND) {
+                    result = and(currentNode, children, repeatMin, repeatMax);
+                } else if (calculateSymbol == Symbol.OR) {
+                    result = or(currentNode, children, repeatMin, repeatMax);
+                } else {
+                    // Single child, e.g. loop of loop
+                    result = repeat(currentNode, children.get(0), repeatMin, repeatMax);
+                }
+                children.clear();
+            }
+            resultStack.add(result);
+        }
+        return resultStack.get(0);
+    }
+
+    /**
+     * @return Node repeated by another repeat count
+     */
+    private GrammarNode repeat(GrammarNode source, GrammarNode node, int repeatMin, int repeatMax) {
+        if (repeatMin == 1 && repeatMax == 1) {
+            return node;
+        }
+        if (!node.isRepeatNode()) {
+            return withRepeat(node, repeatMin, repeatMax);
+        }
+        if (isSimpleRepeat(node) && isSimpleRepeat(repeatMin, repeatMax)) {
+            // (a+)? -> a*, (a?)+ -> a*, (a+)+ -> a+
+            boolean isInfinite = node.getRepeatMax() == INFINITE || repeatMax == INFINITE;
+            return withRepeat(node, node.getRepeatMin() * repeatMin, isInfinite ? INFINITE : 1);
+        }
+        return intern(source, false, '\0', Arrays.asList(node), repeatMin, repeatMax);
+    }
+
+    /**
+     * @return Node with the same content and another repeat count
+     */
+    private GrammarNode withRepeat(GrammarNode node, int repeatMin, int repeatMax) {
+        if (node.getRepeatMin() == repeatMin && node.getRepeatMax() == repeatMax) {
+            return node;
+        }
+        if (node.isLeafNode()) {
+            return intern(node, true, '\0', null, repeatMin, repeatMax);
+        }
+        List<GrammarNode> children = Arrays.asList(node.getChildNodes());
+        char calculateSymbol = node.getCalculateSymbol();
+        if (calculateSymbol == Symbol.AND) {
+            return and(node, children, repeatMin, repeatMax);
+        } else if (calculateSymbol == Symbol.OR) {
+            return or(node, children, repeatMin, repeatMax);
+        } else {
+            return repeat(node, children.get(0), repeatMin, repeatMax);
+        }
+    }
+
+    private GrammarNode and(GrammarNode source, List<GrammarNode> children, int repeatMin, int repeatMax) {
+        ArrayList<GrammarNode> factors = new ArrayList<>(children.size());
+        boolean isAllNullable = true;
+        for (GrammarNode child : children) {
+            if (child.getCalculateSymbol() == Symbol.AND && !child.isRepeatNode()) {
+                for (GrammarNode factor : child.getChildNodes()) {
+                    factors.add(factor);
+                    isAllNullable &= factor.getRepeatMin() == 0 && isSimpleRepeat(factor);
+                }
+            } else {
+                factors.add(child);
+                isAllNullable &= child.getRepeatMin() == 0 && isSimpleRepeat(child);
+            }
+        }
+        if (isLoop(repeatMin, repeatMax) && isAllNullable) {
+            // (a*·b?)* -> (a|b)*
+            return or(source, factors, repeatMin, repeatMax);
+        }
+        if (factors.size() == 1) {
+            return repeat(source, factors.get(0), repeatMin, repeatMax);
+        }
+        return intern(source, false, Symbol.AND, factors, repeatMin, repeatMax);
+    }
+
+    private GrammarNode or(GrammarNode source, List<GrammarNode> children, int repeatMin, int repeatMax) {
+        boolean isLoop = isLoop(repeatMin, repeatMax);
+        ArrayList<GrammarNode> alternatives = new ArrayList<>(children.size());
+        IdentityHashMap<GrammarNode, Boolean> added = new IdentityHashMap<>();
+        for (GrammarNode child : children) {
+            // (a*|b+)* -> (a|b)*
+            if (isLoop && isSimpleRepeat(child)) {
+                child = withRepeat(child, 1, 1);
+            }
+            if (child.getCalculateSymbol() == Symbol.OR && !child.isRepeatNode()) {
+                for (GrammarNode alternative : child.getChildNodes()) {
+                    if (added.put(alternative, Boolean.TRUE) == null) {
+                        alternatives.add(alternative);
+                    }
+                }
+            } else if (added.put(child, Boolean.TRUE) == null) {
+                alternatives.add(child);
+            }
+        }
+        // a|a* -> a*, a|a+ -> a+, a|a? -> a?
+        if (!isLoop) {
+            ArrayList<GrammarNode> result = new ArrayList<>(alternatives.size());
+            for (GrammarNode alternative : alternatives) {
+                if (alternative.isRepeatNode() || !(added.containsKey(findRepeat(alternative, 0, INFINITE)) ||
+                        added.containsKey(findRepeat(alternative, 1, INFINITE)) || added.containsKey(findRepeat(alternative, 0, 1)))) {
+                    result.add(alternative);
+                }
+            }
+            alternatives = result;
+        }
+        if (alternatives.size() == 1) {
+            return repeat(source, alternatives.get(0), repeatMin, repeatMax);
+        }
+        return intern(source, false, Symbol.OR, alternatives, repeatMin, repeatMax);
+    }
+
+    /**
+     * @return Interned node with the same content and another repeat count, null if it doesn't exist
+     */
+    private GrammarNode findRepeat(GrammarNode node, int repeatMin, int repeatMax) {
+        return nodes.get(new Key(node.isLeafNode() ? node.getContentForm() : null, node.getCalculateSymbol(),
+                getChildIds(node.getChildNodes()), repeatMin, repeatMax));
+    }
+
+    private GrammarNode intern(GrammarNode source, boolean isLeaf, char calculateSymbol, List<GrammarNode> children, int repeatMin, int repeatMax) {
+        GrammarNode[] childNodes = children == null ? new GrammarNode[0] : children.toArray(new GrammarNode[0]);
+        Key key = new Key(isLeaf ? source.getContentForm() : null, calculateSymbol, getChildIds(childNodes), repeatMin, repeatMax);
+        GrammarNode node = nodes.get(key);
+        if (node == null) {
+            node = source.newNode(isLeaf, repeatMin, repeatMax, calculateSymbol, childNodes);
+            nodes.put(key, node);
+            nodeIds.put(node, nodeIds.size());
+        }
+        return node;
+    }
+
+    private int[] getChildIds(GrammarNode[] childNodes) {
+        int[] ids = new int[childNodes.length];
+        for (int i = 0; i < childNodes.length; i++) {
+            // Children are always interned before their parent
+            ids[i] = nodeIds.get(childNodes[i]);
+        }
+        return ids;
+    }
+
+    private static final class Key {
+        // Leaf content, a symbol or a char set, null if it is not a leaf
+        private final String leafContent;
+        private final char calculateSymbol;
+        private final int[] childIds;
+        private final int repeatMin;
+        private final int repeatMax;
+        private final int hashCode;
+
+        private Key(String leafContent, char calculateSymbol, int[] childIds, int repeatMin, int repeatMax) {
+            this.leafContent = leafContent;
+            this.calculateSymbol = calculateSymbol;
+            this.childIds = childIds;
+            this.repeatMin = repeatMin;
+            this.repeatMax = repeatMax;
+            this.hashCode = (((Arrays.hashCode(childIds) * 31 + Objects.hashCode(leafContent)) * 31 + calculateSymbol) * 31 + repeatMin) * 31 + repeatMax;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return calculateSymbol == key.calculateSymbol && repeatMin == key.repeatMin && repeatMax == key.repeatMax &&
+                    Objects.equals(leafContent, key.leafContent) && Arrays.equals(childIds, key.childIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
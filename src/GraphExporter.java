@@ -0,0 +1,283 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Export NFA Map as SVG or Graphviz DOT with layout computed here, so large NFA don't need layout in browser
+ * DOT has node positions of this layout, "neato -n" keeps them and "dot" lays out again
+ * Not thread safe
+ *
+ * @author xfy9326
+ */
+public final class GraphExporter {
+    private static final double MIN_RADIUS = 18;
+    private static final double CHAR_WIDTH = 8;
+    private static final double END_RING_GAP = 4;
+    private static final double START_ARROW_LENGTH = 40;
+    // Curve height of self loop, in radius
+    private static final double LOOP_HEIGHT = 2.5;
+    // Curve height of edges which are not between adjacent ranks, in node gap
+    private static final double BEND_HEIGHT = 0.4;
+    private static final double LABEL_OFFSET = 6;
+    // Graphviz uses inches
+    private static final double POINTS_PER_INCH = 72;
+    private static final String FORMAT_SVG = "svg";
+    private static final String FORMAT_DOT = "dot";
+    private static final char XML_REPLACEMENT_CHAR = '\uFFFD';
+
+    private final NFAMap nfaMap;
+    private boolean collapseEpsilon = false;
+    private GraphLayout layout;
+
+    public GraphExporter(NFAMap nfaMap) {
+        this.nfaMap = nfaMap;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    private static void writeXmlText(Writer writer, String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    writer.write("&amp;");
+                    break;
+                case '<':
+                    writer.write("&lt;");
+                    break;
+                case '>':
+                    writer.write("&gt;");
+                    break;
+                case '"':
+                    writer.write("&quot;");
+                    break;
+                case '\t':
+                case '\n':
+                case '\r':
+                    writer.write("&#x" + Integer.toHexString(c).toUpperCase(Locale.ROOT) + ";");
+                    break;
+                default:
+                    if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                        writer.write(c);
+                        writer.write(text.charAt(++i));
+                    } else if (c < 0x20 || Character.isSurrogate(c) || c == '\uFFFE' || c == '\uFFFF') {
+                        // Other control chars, lone surrogates, U+FFFE and U+FFFF are illegal in XML
+                        writer.write(XML_REPLACEMENT_CHAR);
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+    }
+
+    private static void writeDotString(Writer writer, String text) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format("\\\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+
+    /**
+     * @param collapseEpsilon Collapse ε chains, a chain of status linked only by ε edges is shown as one node
+     * @return This
+     */
+    public GraphExporter setCollapseEpsilon(boolean collapseEpsilon) {
+        if (this.collapseEpsilon != collapseEpsilon) {
+            this.collapseEpsilon = collapseEpsilon;
+            this.layout = null;
+        }
+        return this;
+    }
+
+    private GraphLayout getLayout() {
+        if (layout == null) {
+            layout = GraphLayout.of(nfaMap, collapseEpsilon);
+        }
+        return layout;
+    }
+
+    private double getRadius(int node) {
+        String name = nfaMap.getStatusName(getLayout().nodeStatus[node]);
+        return Math.max(MIN_RADIUS, name.length() * CHAR_WIDTH / 2 + END_RING_GAP * 2);
+    }
+
+    /**
+     * @param outputFile Output file
+     * @throws IOException Write failed
+     */
+    public void outputAsSvg(File outputFile) throws IOException {
+        output(outputFile, FORMAT_SVG);
+    }
+
+    /**
+     * @param outputFile Output file
+     * @throws IOException Write failed
+     */
+    public void outputAsDot(File outputFile) throws IOException {
+        output(outputFile, FORMAT_DOT);
+    }
+
+    private void output(File outputFile, String format) throws IOException {
+        CompileMetrics.Listener listener = CompileMetrics.getListener();
+        long startNanos = listener == null ? 0 : System.nanoTime();
+        File parentFile = outputFile.getAbsoluteFile().getParentFile();
+        Files.createDirectories(parentFile.toPath());
+        try (Writer writer = Files.newBufferedWriter(outputFile.toPath(), StandardCharsets.UTF_8)) {
+            if (FORMAT_SVG.equals(format)) {
+                writeSvg(writer);
+            } else {
+                writeDot(writer);
+            }
+        }
+        if (listener != null) {
+            listener.onOutput(nfaMap, format, System.nanoTime() - startNanos, outputFile.length());
+        }
+    }
+
+    /**
+     * @param writer Output, it should be buffered
+     * @throws IOException Write failed
+     */
+    public void writeSvg(Writer writer) throws IOException {
+        GraphLayout layout = getLayout();
+        writer.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + format(layout.width) + "\" height=\"" + format(layout.height) +
+                "\" font-family=\"sans-serif\" font-size=\"14\">\n");
+        writer.write("<defs><marker id=\"arrow\" viewBox=\"0 0 10 10\" refX=\"10\" refY=\"5\" markerWidth=\"8\" markerHeight=\"6\" orient=\"auto\">" +
+                "<path d=\"M0,0L10,5L0,10z\" fill=\"#333\"/></marker></defs>\n");
+        writer.write("<title>");
+        writeXmlText(writer, nfaMap.getOriginalRegularExpression());
+        writer.write("</title>\n");
+
+        writer.write("<g fill=\"none\" stroke=\"#333\" stroke-width=\"2\" marker-end=\"url(#arrow)\">\n");
+        double startX = layout.x[layout.startNode] - getRadius(layout.startNode);
+        writer.write("<path d=\"M" + format(startX - START_ARROW_LENGTH) + "," + format(layout.y[layout.startNode]) +
+                "L" + format(startX) + "," + format(layout.y[layout.startNode]) + "\"/>\n");
+        double[] labelX = new double[layout.edgeCount];
+        double[] labelY = new double[layout.edgeCount];
+        for (int i = 0; i < layout.edgeCount; i++) {
+            writeSvgEdge(writer, layout, i, labelX, labelY);
+        }
+        writer.write("</g>\n");
+
+        writer.write("<g text-anchor=\"middle\" fill=\"#333\">\n");
+        for (int i = 0; i < layout.edgeCount; i++) {
+            writer.write("<text x=\"" + format(labelX[i]) + "\" y=\"" + format(labelY[i]) + "\">");
+            writeXmlText(writer, layout.edgeLabels[i]);
+            writer.write("</text>\n");
+        }
+        writer.write("</g>\n");
+
+        writer.write("<g fill=\"#fff\" stroke=\"#333\" stroke-width=\"2\">\n");
+        for (int node = 0; node < layout.nodeCount; node++) {
+            double radius = getRadius(node);
+            String center = "cx=\"" + format(layout.x[node]) + "\" cy=\"" + format(layout.y[node]) + "\"";
+            writer.write("<circle " + center + " r=\"" + format(radius) + "\"/>\n");
+            if (layout.isEndNode[node]) {
+                writer.write("<circle " + center + " r=\"" + format(radius - END_RING_GAP) + "\"/>\n");
+            }
+        }
+        writer.write("</g>\n");
+
+        writer.write("<g text-anchor=\"middle\" dominant-baseline=\"central\" fill=\"#333\">\n");
+        for (int node = 0; node < layout.nodeCount; node++) {
+            writer.write("<text x=\"" + format(layout.x[node]) + "\" y=\"" + format(layout.y[node]) + "\">");
+            writeXmlText(writer, nfaMap.getStatusName(layout.nodeStatus[node]));
+            writer.write("</text>\n");
+        }
+        writer.write("</g>\n</svg>\n");
+    }
+
+    private void writeSvgEdge(Writer writer, GraphLayout layout, int edge, double[] labelX, double[] labelY) throws IOException {
+        int from = layout.edgeFrom[edge];
+        int to = layout.edgeTo[edge];
+        double x1 = layout.x[from];
+        double y1 = layout.y[from];
+        double x2 = layout.x[to];
+        double y2 = layout.y[to];
+        double r1 = getRadius(from);
+        double r2 = getRadius(to);
+
+        if (from == to) {
+            // Loop above the node
+            double height = r1 * LOOP_HEIGHT;
+            writer.write("<path d=\"M" + format(x1 - r1 / 2) + "," + format(y1 - r1 * 0.87) +
+                    "C" + format(x1 - r1 * 1.5) + "," + format(y1 - height) + " " + format(x1 + r1 * 1.5) + "," + format(y1 - height) +
+                    " " + format(x1 + r1 / 2) + "," + format(y1 - r1 * 0.87) + "\"/>\n");
+            labelX[edge] = x1;
+            labelY[edge] = y1 - height * 0.75 - LABEL_OFFSET;
+            return;
+        }
+
+        int rankSpan = layout.ranks[to] - layout.ranks[from];
+        if (rankSpan == 1) {
+            double length = Math.hypot(x2 - x1, y2 - y1);
+            double dx = (x2 - x1) / length;
+            double dy = (y2 - y1) / length;
+            writer.write("<path d=\"M" + format(x1 + dx * r1) + "," + format(y1 + dy * r1) +
+                    "L" + format(x2 - dx * r2) + "," + format(y2 - dy * r2) + "\"/>\n");
+            labelX[edge] = (x1 + x2) / 2;
+            labelY[edge] = (y1 + y2) / 2 - LABEL_OFFSET;
+            return;
+        }
+
+        // Long edges bend upwards, back edges bend downwards, so they don't cover edges between adjacent ranks
+        double bend = (rankSpan > 0 ? -1 : 1) * GraphLayout.NODE_GAP * BEND_HEIGHT * Math.sqrt(Math.abs(rankSpan) + 1);
+        double c1x = x1 + (x2 - x1) / 3;
+        double c2x = x2 - (x2 - x1) / 3;
+        double c1y = y1 + bend;
+        double c2y = y2 + bend;
+        double d1 = Math.hypot(c1x - x1, c1y - y1);
+        double d2 = Math.hypot(c2x - x2, c2y - y2);
+        writer.write("<path d=\"M" + format(x1 + (c1x - x1) / d1 * r1) + "," + format(y1 + (c1y - y1) / d1 * r1) +
+                "C" + format(c1x) + "," + format(c1y) + " " + format(c2x) + "," + format(c2y) +
+                " " + format(x2 + (c2x - x2) / d2 * r2) + "," + format(y2 + (c2y - y2) / d2 * r2) + "\"/>\n");
+        // Middle of cubic bezier curve
+        labelX[edge] = (x1 + 3 * c1x + 3 * c2x + x2) / 8;
+        labelY[edge] = (y1 + 3 * c1y + 3 * c2y + y2) / 8 - LABEL_OFFSET;
+    }
+
+    /**
+     * @param writer Output, it should be buffered
+     * @throws IOException Write failed
+     */
+    public void writeDot(Writer writer) throws IOException {
+        GraphLayout layout = getLayout();
+        writer.write("digraph NFA {\n");
+        writer.write("  rankdir=LR;\n  label=");
+        writeDotString(writer, nfaMap.getOriginalRegularExpression());
+        writer.write(";\n  node [shape=circle];\n");
+        writer.write("  start [shape=point, pos=\"" + format(layout.x[layout.startNode] - getRadius(layout.startNode) - START_ARROW_LENGTH) + "," +
+                format(layout.height - layout.y[layout.startNode]) + "!\"];\n");
+        for (int node = 0; node < layout.nodeCount; node++) {
+            writer.write("  n" + node + " [label=");
+            writeDotString(writer, nfaMap.getStatusName(layout.nodeStatus[node]));
+            if (layout.isEndNode[node]) {
+                writer.write(", shape=doublecircle");
+            }
+            // Graphviz y axis is upwards
+            writer.write(", width=" + format(getRadius(node) * 2 / POINTS_PER_INCH) +
+                    ", pos=\"" + format(layout.x[node]) + "," + format(layout.height - layout.y[node]) + "!\"];\n");
+        }
+        writer.write("  start -> n" + layout.startNode + ";\n");
+        for (int i = 0; i < layout.edgeCount; i++) {
+            writer.write("  n" + layout.edgeFrom[i] + " -> n" + layout.edgeTo[i] + " [label=");
+            writeDotString(writer, layout.edgeLabels[i]);
+            writer.write("];\n");
+        }
+        writer.write("}\n");
+    }
+}
@@ -0,0 +1,362 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Layered left to right layout of NFA Map
+ * 1. ε chains are optionally collapsed, the language is not changed:
+ * status whose only edge is ε is merged into the target, then status whose only incoming edge is ε is merged into the source
+ * 2. Cycles are broken by reversing back edges of depth first search, and parallel edges are merged into one edge
+ * 3. Rank is the longest path from sources
+ * 4. Crossings are reduced by barycenter sweeps, long edges use their endpoint position directly instead of dummy nodes,
+ * so layout is linear in edge count for every sweep
+ * 5. Nodes are placed on a grid, rank is x and order in rank is y
+ *
+ * @author xfy9326
+ */
+final class GraphLayout {
+    static final double RANK_GAP = 120;
+    static final double NODE_GAP = 80;
+    static final double MARGIN = 60;
+    private static final int SWEEP_COUNT = 8;
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Node i is status nodeStatus[i], or the first status merged into it
+    final int nodeCount;
+    final int[] nodeStatus;
+    final boolean[] isEndNode;
+    final int startNode;
+    final int edgeCount;
+    final int[] edgeFrom;
+    final int[] edgeTo;
+    final String[] edgeLabels;
+    final int[] ranks;
+    final int rankCount;
+    final double[] x;
+    final double[] y;
+    final double width;
+    final double height;
+
+    private GraphLayout(int nodeCount, int[] nodeStatus, boolean[] isEndNode, int startNode, int edgeCount, int[] edgeFrom, int[] edgeTo, String[] edgeLabels) {
+        this.nodeCount = nodeCount;
+        this.nodeStatus = nodeStatus;
+        this.isEndNode = isEndNode;
+        this.startNode = startNode;
+        this.edgeCount = edgeCount;
+        this.edgeFrom = edgeFrom;
+        this.edgeTo = edgeTo;
+        this.edgeLabels = edgeLabels;
+
+        // Undirected adjacency of edges which are not self loops, entries are edge index
+        int[] offsets = new int[nodeCount + 1];
+        for (int i = 0; i < edgeCount; i++) {
+            if (edgeFrom[i] != edgeTo[i]) {
+                offsets[edgeFrom[i] + 1]++;
+                offsets[edgeTo[i] + 1]++;
+            }
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] adjacentEdges = new int[offsets[nodeCount]];
+        int[] position = Arrays.copyOf(offsets, nodeCount);
+        for (int i = 0; i < edgeCount; i++) {
+            if (edgeFrom[i] != edgeTo[i]) {
+                adjacentEdges[position[edgeFrom[i]]++] = i;
+                adjacentEdges[position[edgeTo[i]]++] = i;
+            }
+        }
+
+        this.ranks = getRanks(nodeCount, startNode, edgeFrom, edgeTo, offsets, adjacentEdges);
+        int maxRank = 0;
+        for (int rank : ranks) {
+            maxRank = Math.max(maxRank, rank);
+        }
+        this.rankCount = maxRank + 1;
+
+        // Layers, nodes of rank r are layerNodes[layerOffsets[r], layerOffsets[r + 1])
+        int[] layerOffsets = new int[rankCount + 1];
+        for (int rank : ranks) {
+            layerOffsets[rank + 1]++;
+        }
+        int maxLayerSize = 0;
+        for (int rank = 0; rank < rankCount; rank++) {
+            maxLayerSize = Math.max(maxLayerSize, layerOffsets[rank + 1]);
+            layerOffsets[rank + 1] += layerOffsets[rank];
+        }
+        int[] layerNodes = new int[nodeCount];
+        int[] layerPosition = Arrays.copyOf(layerOffsets, rankCount);
+        for (int node = 0; node < nodeCount; node++) {
+            layerNodes[layerPosition[ranks[node]]++] = node;
+        }
+        double[] orders = reduceCrossings(layerOffsets, layerNodes, edgeFrom, edgeTo, offsets, adjacentEdges);
+
+        this.x = new double[nodeCount];
+        this.y = new double[nodeCount];
+        for (int rank = 0; rank < rankCount; rank++) {
+            int layerSize = layerOffsets[rank + 1] - layerOffsets[rank];
+            for (int i = layerOffsets[rank]; i < layerOffsets[rank + 1]; i++) {
+                int node = layerNodes[i];
+                x[node] = MARGIN + rank * RANK_GAP;
+                // Layers are centered vertically
+                y[node] = MARGIN + (orders[node] * layerSize + (maxLayerSize - layerSize) / 2.0) * NODE_GAP;
+            }
+        }
+        this.width = MARGIN * 2 + (rankCount - 1) * RANK_GAP;
+        this.height = MARGIN * 2 + (maxLayerSize - 1) * NODE_GAP;
+    }
+
+    /**
+     * @param nfaMap          NFA Map
+     * @param collapseEpsilon Collapse ε chains
+     * @return Layout
+     */
+    static GraphLayout of(NFAMap nfaMap, boolean collapseEpsilon) {
+        int statusCount = nfaMap.getStatusCount();
+        int startStatus = nfaMap.getStartStatus();
+        int[] offsets = nfaMap.getTransitionOffsets();
+        int[] symbols = nfaMap.getTransitionSymbols();
+        int[] targets = nfaMap.getTransitionTargets();
+
+        // Union find of merged status
+        int[] parents = new int[statusCount];
+        for (int status = 0; status < statusCount; status++) {
+            parents[status] = status;
+        }
+        if (collapseEpsilon) {
+            // Status whose only edge is ε accepts the same language as the target, unless only it is an end status
+            for (int status = 0; status < statusCount; status++) {
+                int edge = offsets[status];
+                if (offsets[status + 1] - edge == 1 && symbols[edge] == NFAMap.EPSILON_SYMBOL &&
+                        (!nfaMap.isEndStatus(status) || nfaMap.isEndStatus(targets[edge]))) {
+                    union(parents, status, targets[edge]);
+                }
+            }
+            // Then in merged graph, status whose only incoming edge is ε is reached by the same inputs as the source
+            int[] inCounts = new int[statusCount];
+            int[] inEdges = new int[statusCount];
+            int[] inSources = new int[statusCount];
+            for (int status = 0; status < statusCount; status++) {
+                int from = find(parents, status);
+                for (int i = offsets[status]; i < offsets[status + 1]; i++) {
+                    int to = find(parents, targets[i]);
+                    if (from != to || symbols[i] != NFAMap.EPSILON_SYMBOL) {
+                        inCounts[to]++;
+                        inEdges[to] = i;
+                        inSources[to] = from;
+                    }
+                }
+            }
+            int startRoot = find(parents, startStatus);
+            for (int status = 0; status < statusCount; status++) {
+                if (parents[status] == status && status != startRoot && inCounts[status] == 1 &&
+                        symbols[inEdges[status]] == NFAMap.EPSILON_SYMBOL && inSources[status] != status) {
+                    union(parents, status, inSources[status]);
+                }
+            }
+        }
+
+        // Node of merged status is named by its first status
+        int[] statusNodes = new int[statusCount];
+        int[] rootNodes = new int[statusCount];
+        Arrays.fill(rootNodes, -1);
+        int nodeCount = 0;
+        for (int status = 0; status < statusCount; status++) {
+            int root = find(parents, status);
+            if (rootNodes[root] < 0) {
+                rootNodes[root] = nodeCount++;
+            }
+            statusNodes[status] = rootNodes[root];
+        }
+        int[] nodeStatus = new int[nodeCount];
+        boolean[] isEndNode = new boolean[nodeCount];
+        for (int status = statusCount - 1; status >= 0; status--) {
+            nodeStatus[statusNodes[status]] = status;
+            if (nfaMap.isEndStatus(status)) {
+                isEndNode[statusNodes[status]] = true;
+            }
+        }
+
+        // Parallel edges are merged, labels are joined
+        HashMap<Long, Integer> edgeIndex = new HashMap<>();
+        int[] edgeFrom = new int[INITIAL_CAPACITY];
+        int[] edgeTo = new int[INITIAL_CAPACITY];
+        StringBuilder[] labels = new StringBuilder[INITIAL_CAPACITY];
+        int edgeCount = 0;
+        for (int status = 0; status < statusCount; status++) {
+            for (int i = offsets[status]; i < offsets[status + 1]; i++) {
+                int from = statusNodes[status];
+                int to = statusNodes[targets[i]];
+                // ε edges in merged status are useless
+                if (from == to && symbols[i] == NFAMap.EPSILON_SYMBOL) {
+                    continue;
+                }
+                String label = nfaMap.getSymbolName(symbols[i]);
+                Long key = ((long) from << 32) | to;
+                Integer index = edgeIndex.get(key);
+                if (index == null) {
+                    if (edgeCount == edgeFrom.length) {
+                        edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+                        edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+                        labels = Arrays.copyOf(labels, edgeCount * 2);
+                    }
+                    edgeIndex.put(key, edgeCount);
+                    edgeFrom[edgeCount] = from;
+                    edgeTo[edgeCount] = to;
+                    labels[edgeCount++] = new StringBuilder(label);
+                } else {
+                    labels[index].append(',').append(label);
+                }
+            }
+        }
+        String[] edgeLabels = new String[edgeCount];
+        for (int i = 0; i < edgeCount; i++) {
+            edgeLabels[i] = labels[i].toString();
+        }
+        return new GraphLayout(nodeCount, nodeStatus, isEndNode, statusNodes[startStatus], edgeCount,
+                Arrays.copyOf(edgeFrom, edgeCount), Arrays.copyOf(edgeTo, edgeCount), edgeLabels);
+    }
+
+    private static void union(int[] parents, int a, int b) {
+        int rootA = find(parents, a);
+        int rootB = find(parents, b);
+        if (rootA != rootB) {
+            parents[rootA] = rootB;
+        }
+    }
+
+    private static int find(int[] parents, int status) {
+        int root = status;
+        while (parents[root] != root) {
+            root = parents[root];
+        }
+        while (parents[status] != root) {
+            int next = parents[status];
+            parents[status] = root;
+            status = next;
+        }
+        return root;
+    }
+
+    /**
+     * Longest path rank, back edges of depth first search from start node are reversed
+     */
+    private static int[] getRanks(int nodeCount, int startNode, int[] edgeFrom, int[] edgeTo, int[] offsets, int[] adjacentEdges) {
+        // 0: not visited, 1: on stack, 2: finished
+        byte[] states = new byte[nodeCount];
+        boolean[] isReversed = new boolean[edgeFrom.length];
+        int[] stack = new int[nodeCount];
+        int[] edgePosition = new int[nodeCount];
+        // Post order, its reverse is a topological order after back edges are reversed
+        int[] postOrder = new int[nodeCount];
+        int postSize = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            // Start node is searched first
+            int root = i == 0 ? startNode : i == startNode ? 0 : i;
+            if (states[root] != 0) {
+                continue;
+            }
+            int size = 0;
+            stack[size++] = root;
+            states[root] = 1;
+            edgePosition[root] = offsets[root];
+            while (size > 0) {
+                int node = stack[size - 1];
+                if (edgePosition[node] < offsets[node + 1]) {
+                    int edge = adjacentEdges[edgePosition[node]++];
+                    if (edgeFrom[edge] != node) {
+                        continue;
+                    }
+                    int next = edgeTo[edge];
+                    if (states[next] == 0) {
+                        states[next] = 1;
+                        edgePosition[next] = offsets[next];
+                        stack[size++] = next;
+                    } else if (states[next] == 1) {
+                        isReversed[edge] = true;
+                    }
+                } else {
+                    states[node] = 2;
+                    postOrder[postSize++] = node;
+                    size--;
+                }
+            }
+        }
+
+        int[] ranks = new int[nodeCount];
+        for (int i = nodeCount - 1; i >= 0; i--) {
+            int node = postOrder[i];
+            for (int j = offsets[node]; j < offsets[node + 1]; j++) {
+                int edge = adjacentEdges[j];
+                int next = -1;
+                if (edgeFrom[edge] == node && !isReversed[edge]) {
+                    next = edgeTo[edge];
+                } else if (edgeTo[edge] == node && isReversed[edge]) {
+                    next = edgeFrom[edge];
+                }
+                if (next >= 0) {
+                    ranks[next] = Math.max(ranks[next], ranks[node] + 1);
+                }
+            }
+        }
+        return ranks;
+    }
+
+    /**
+     * @return Order of each node in its layer, scaled into [0, 1)
+     */
+    private static double[] reduceCrossings(int[] layerOffsets, int[] layerNodes, int[] edgeFrom, int[] edgeTo, int[] offsets, int[] adjacentEdges) {
+        int nodeCount = layerNodes.length;
+        int rankCount = layerOffsets.length - 1;
+        int[] ranks = new int[nodeCount];
+        double[] orders = new double[nodeCount];
+        for (int rank = 0; rank < rankCount; rank++) {
+            int layerSize = layerOffsets[rank + 1] - layerOffsets[rank];
+            for (int i = layerOffsets[rank]; i < layerOffsets[rank + 1]; i++) {
+                ranks[layerNodes[i]] = rank;
+                orders[layerNodes[i]] = (double) (i - layerOffsets[rank]) / layerSize;
+            }
+        }
+
+        double[] barycenters = new double[nodeCount];
+        Integer[] layer = new Integer[0];
+        for (int sweep = 0; sweep < SWEEP_COUNT; sweep++) {
+            boolean isDown = sweep % 2 == 0;
+            for (int step = 1; step < rankCount; step++) {
+                int rank = isDown ? step : rankCount - 1 - step;
+                int start = layerOffsets[rank];
+                int layerSize = layerOffsets[rank + 1] - start;
+                if (layerSize == 1) {
+                    continue;
+                }
+                for (int i = start; i < start + layerSize; i++) {
+                    int node = layerNodes[i];
+                    double sum = 0;
+                    int count = 0;
+                    for (int j = offsets[node]; j < offsets[node + 1]; j++) {
+                        int edge = adjacentEdges[j];
+                        int neighbor = edgeFrom[edge] == node ? edgeTo[edge] : edgeFrom[edge];
+                        // Only layers which are already ordered in this sweep
+                        if (isDown ? ranks[neighbor] < rank : ranks[neighbor] > rank) {
+                            sum += orders[neighbor];
+                            count++;
+                        }
+                    }
+                    barycenters[node] = count == 0 ? orders[node] : sum / count;
+                }
+                if (layer.length < layerSize) {
+                    layer = new Integer[layerSize];
+                }
+                for (int i = 0; i < layerSize; i++) {
+                    layer[i] = layerNodes[start + i];
+                }
+                // Stable, so ties keep their order
+                Arrays.sort(layer, 0, layerSize, (a, b) -> Double.compare(barycenters[a], barycenters[b]));
+                for (int i = 0; i < layerSize; i++) {
+                    layerNodes[start + i] = layer[i];
+                    orders[layer[i]] = (double) i / layerSize;
+                }
+            }
+        }
+        return orders;
+    }
+}
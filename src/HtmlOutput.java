@@ -0,0 +1,206 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * HTML output of NFA Map
+ * Static assets are shared by all NFA in one output directory, they are only written if their content changed
+ * Data file of each NFA is named by hash of its content, which shows the normalized expression,
+ * so expressions with the same normalized form and construction share one file, and original expression is passed in page address
+ * Data file is hashed while it is written into a temp file, the temp file is dropped if the same data file exists
+ * Alias data file points to the last output, it is shown if page address selects nothing
+ * Files are written into temp files and moved, so concurrent output into one directory is safe
+ *
+ * @author xfy9326
+ */
+final class HtmlOutput {
+    private static final String PAGE_NAME = "NFAMap/index.html";
+    private static final String DATA_FOLDER = "NFAMap/js";
+    private static final String DATA_SUFFIX = ".js";
+    private static final String ALIAS_NAME = "NFA";
+    private static final String[] ASSET_NAMES = {PAGE_NAME, "NFAMap/js/d3.v4.min.js", "NFAMap/js/dagre-d3.min.js"};
+    private static final String DEFINE_JSON_STR = "const NFAMapJSON=";
+    private static final String DEFINE_LATEST_STR = "const NFAMapLatest=";
+    private static final String HASH_ALGORITHM = "SHA-256";
+    // Hash is truncated to 128 bits
+    private static final int HASH_BYTES = 16;
+    private static final int BUFFER_SIZE = 8192;
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    // Asset name -> content hash
+    private static final ConcurrentHashMap<String, byte[]> ASSET_HASHES = new ConcurrentHashMap<>();
+    // Output file -> [size, last modified] when it was checked up to date, so it is not read again
+    private static final ConcurrentHashMap<Path, long[]> CHECKED_ASSETS = new ConcurrentHashMap<>();
+
+    private HtmlOutput() {
+    }
+
+    /**
+     * @param nfaMap          NFA Map
+     * @param outputDirectory Output directory
+     * @return Relative address of the page showing this NFA
+     * @throws IOException Write failed
+     */
+    static String output(NFAMap nfaMap, Path outputDirectory) throws IOException {
+        CompileMetrics.Listener listener = CompileMetrics.getListener();
+        long startNanos = listener == null ? 0 : System.nanoTime();
+        long bytesWritten = 0;
+        for (String assetName : ASSET_NAMES) {
+            bytesWritten += outputAsset(assetName, outputDirectory.resolve(assetName));
+        }
+
+        String originalExpression = nfaMap.getOriginalRegularExpression();
+        String normalizedExpression = nfaMap.getNormalizedExpression();
+        // Expression is unknown if NFA is loaded from snapshot
+        String dataExpression = normalizedExpression == null ? originalExpression : normalizedExpression;
+        Path dataFolder = outputDirectory.resolve(DATA_FOLDER);
+        Path tempFile = createTempFile(dataFolder.resolve(ALIAS_NAME + DATA_SUFFIX));
+        MessageDigest digest = newDigest();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new DigestOutputStream(Files.newOutputStream(tempFile), digest), StandardCharsets.UTF_8))) {
+            writer.write(DEFINE_JSON_STR);
+            nfaMap.writeJSON(writer, dataExpression);
+        }
+        bytesWritten += Files.size(tempFile);
+        String dataName = toHex(truncate(digest.digest()));
+        Path dataFile = dataFolder.resolve(dataName + DATA_SUFFIX);
+        if (Files.exists(dataFile)) {
+            Files.delete(tempFile);
+        } else {
+            moveTempFile(tempFile, dataFile);
+        }
+
+        String query = originalExpression.equals(dataExpression) ? "" : "?expression=" + URLEncoder.encode(originalExpression, "UTF-8");
+        bytesWritten += outputAlias(dataFolder.resolve(ALIAS_NAME + DATA_SUFFIX), dataName, query);
+        if (listener != null) {
+            listener.onOutput(nfaMap, "html", System.nanoTime() - startNanos, bytesWritten);
+        }
+        return PAGE_NAME + query + "#" + dataName;
+    }
+
+    /**
+     * @return Bytes written
+     */
+    private static long outputAlias(Path aliasFile, String dataName, String query) throws IOException {
+        StringWriter writer = new StringWriter();
+        writer.write(DEFINE_LATEST_STR);
+        writer.write("{\"data\":");
+        NFAMap.writeJSONString(writer, dataName);
+        writer.write(",\"query\":");
+        NFAMap.writeJSONString(writer, query);
+        writer.write('}');
+        byte[] content = writer.toString().getBytes(StandardCharsets.UTF_8);
+        if (Files.exists(aliasFile) && Files.size(aliasFile) == content.length && Arrays.equals(content, Files.readAllBytes(aliasFile))) {
+            return 0;
+        }
+        Path tempFile = createTempFile(aliasFile);
+        Files.write(tempFile, content);
+        moveTempFile(tempFile, aliasFile);
+        return content.length;
+    }
+
+    /**
+     * @return Bytes written
+     */
+    private static long outputAsset(String assetName, Path outputFile) throws IOException {
+        long[] checked = CHECKED_ASSETS.get(outputFile);
+        if (checked != null && Files.exists(outputFile) && Files.size(outputFile) == checked[0] &&
+                Files.getLastModifiedTime(outputFile).toMillis() == checked[1]) {
+            return 0;
+        }
+        byte[] assetHash = ASSET_HASHES.get(assetName);
+        if (assetHash == null) {
+            try (InputStream inputStream = openAsset(assetName)) {
+                assetHash = getHash(inputStream);
+            }
+            ASSET_HASHES.put(assetName, assetHash);
+        }
+        boolean isUpToDate = false;
+        if (Files.exists(outputFile)) {
+            try (InputStream inputStream = Files.newInputStream(outputFile)) {
+                isUpToDate = MessageDigest.isEqual(assetHash, getHash(inputStream));
+            }
+        }
+        long bytesWritten = 0;
+        if (!isUpToDate) {
+            Path tempFile = createTempFile(outputFile);
+            try (InputStream inputStream = openAsset(assetName)) {
+                bytesWritten = Files.copy(inputStream, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            moveTempFile(tempFile, outputFile);
+        }
+        CHECKED_ASSETS.put(outputFile, new long[]{Files.size(outputFile), Files.getLastModifiedTime(outputFile).toMillis()});
+        return bytesWritten;
+    }
+
+    private static InputStream openAsset(String assetName) throws IOException {
+        InputStream inputStream = HtmlOutput.class.getResourceAsStream(assetName);
+        if (inputStream == null) {
+            throw new IOException("Resource " + assetName + " is not found!");
+        }
+        return inputStream;
+    }
+
+    private static Path createTempFile(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        return Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+    }
+
+    private static void moveTempFile(Path tempFile, Path file) throws IOException {
+        try {
+            Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private static byte[] getHash(InputStream inputStream) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+        while ((count = inputStream.read(buffer)) > 0) {
+            digest.update(buffer, 0, count);
+        }
+        return truncate(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is supported by every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] truncate(byte[] hash) {
+        byte[] result = new byte[HASH_BYTES];
+        System.arraycopy(hash, 0, result, 0, HASH_BYTES);
+        return result;
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_CHARS[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX_CHARS[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
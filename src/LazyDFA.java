@@ -0,0 +1,239 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Lazy DFA
+ * DFA status are built from NFA status sets on demand while matching, and cached in a memory bounded table
+ * When the table is full, all cached status are flushed
+ * If the cache is flushed too often, the DFA gives up and falls back to NFA simulation
+ * Not thread safe, use one instance for each thread
+ *
+ * @author xfy9326
+ */
+public final class LazyDFA implements MatchEngine {
+    public static final int DEFAULT_CACHE_BYTES = 2 << 20;
+    // Estimated memory of a cached status except its transitions and NFA status set
+    private static final int STATUS_OVERHEAD_BYTES = 96;
+    // Give up if less than this many chars are matched for each cached status between two flushes
+    private static final int MIN_CHARS_PER_STATUS = 10;
+    private static final int UNKNOWN = -1;
+    private static final int GIVE_UP = -2;
+    // Status 0 is always the dead status
+    private static final int DEAD = 0;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final NFAMap nfaMap;
+    private final SubsetConstruction subsetConstruction;
+    private final AlphabetClasses alphabetClasses;
+    private final int classCount;
+    private final long cacheBytes;
+
+    // Cache
+    private final HashMap<SubsetConstruction.StatusSetKey, Integer> cachedStatusIndex = new HashMap<>();
+    private int[][] cachedStatusSets = new int[INITIAL_CAPACITY][];
+    private boolean[] cachedUnanchored = new boolean[INITIAL_CAPACITY];
+    private boolean[] cachedAccepting = new boolean[INITIAL_CAPACITY];
+    // Transition of status i with class c is cachedTransitions[i * classCount + c]
+    private int[] cachedTransitions;
+    private int cachedStatusCount = 0;
+    private long usedCacheBytes = 0;
+    private int anchoredStart;
+    private int unanchoredStart;
+
+    // Statistics
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+    private long cacheFlushes = 0;
+    private long fallbacks = 0;
+    private long processedChars = 0;
+    private long lastFlushChars = 0;
+
+    private NFAMatcher fallbackMatcher;
+
+    public LazyDFA(NFAMap nfaMap) {
+        this(nfaMap, DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * @param nfaMap     NFA Map
+     * @param cacheBytes Memory budget of cached DFA status
+     */
+    public LazyDFA(NFAMap nfaMap, long cacheBytes) {
+        this.nfaMap = nfaMap;
+        this.subsetConstruction = new SubsetConstruction(nfaMap);
+        this.alphabetClasses = nfaMap.getAlphabetClasses();
+        this.classCount = alphabetClasses.getClassCount();
+        this.cacheBytes = cacheBytes;
+        this.cachedTransitions = new int[INITIAL_CAPACITY * classCount];
+
+        resetCache();
+    }
+
+    @Override
+    public boolean matches(CharSequence input) {
+        int length = input.length();
+        int status = anchoredStart;
+        for (int i = 0; i < length; i++) {
+            int next = cachedTransitions[status * classCount + alphabetClasses.getClass(input.charAt(i))];
+            if (next < 0) {
+                next = computeTransition(status, alphabetClasses.getClass(input.charAt(i)), i);
+                if (next == GIVE_UP) {
+                    // Chars are scanned by NFA instead
+                    processedChars += length;
+                    fallbacks++;
+                    return getFallbackMatcher().matches(input);
+                }
+            } else {
+                cacheHits++;
+            }
+            if (next == DEAD) {
+                processedChars += i + 1;
+                return false;
+            }
+            status = next;
+        }
+        processedChars += length;
+        return cachedAccepting[status];
+    }
+
+    @Override
+    public int search(CharSequence input, int from) {
+        int length = input.length();
+        if (from > length) {
+            return -1;
+        }
+        int status = unanchoredStart;
+        for (int i = from; i < length; i++) {
+            if (cachedAccepting[status]) {
+                processedChars += i - from;
+                return i;
+            }
+            int next = cachedTransitions[status * classCount + alphabetClasses.getClass(input.charAt(i))];
+            if (next < 0) {
+                next = computeTransition(status, alphabetClasses.getClass(input.charAt(i)), i - from);
+                if (next == GIVE_UP) {
+                    // Chars are scanned by NFA instead
+                    processedChars += length - from;
+                    fallbacks++;
+                    NFAMatcher matcher = getFallbackMatcher();
+                    return matcher.find(input, from) ? matcher.end() : -1;
+                }
+            } else {
+                cacheHits++;
+            }
+            status = next;
+        }
+        processedChars += length - from;
+        return cachedAccepting[status] ? length : -1;
+    }
+
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    public long getCacheFlushes() {
+        return cacheFlushes;
+    }
+
+    /**
+     * @return Times of falling back to NFA simulation
+     */
+    public long getFallbacks() {
+        return fallbacks;
+    }
+
+    public int getCachedStatusCount() {
+        return cachedStatusCount;
+    }
+
+    public long getUsedCacheBytes() {
+        return usedCacheBytes;
+    }
+
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    private NFAMatcher getFallbackMatcher() {
+        if (fallbackMatcher == null) {
+            fallbackMatcher = nfaMap.matcher();
+        }
+        return fallbackMatcher;
+    }
+
+    private void resetCache() {
+        cachedStatusIndex.clear();
+        Arrays.fill(cachedStatusSets, 0, cachedStatusCount, null);
+        cachedStatusCount = 0;
+        usedCacheBytes = 0;
+
+        addCachedStatus(new int[0], false);
+        int[] startSet = subsetConstruction.getStartSet();
+        anchoredStart = addCachedStatus(startSet, false);
+        unanchoredStart = addCachedStatus(startSet, true);
+    }
+
+    /**
+     * Build the next status from NFA status set
+     *
+     * @param status         From status
+     * @param alphabetClass  Class of input char
+     * @param scannedChars   Chars scanned by this matching
+     * @return Next status, or GIVE_UP
+     */
+    private int computeTransition(int status, int alphabetClass, int scannedChars) {
+        cacheMisses++;
+        int[] statusSet = cachedStatusSets[status];
+        boolean isUnanchored = cachedUnanchored[status];
+        char c = alphabetClasses.getRepresentative(alphabetClass);
+        int[] nextSet = subsetConstruction.move(statusSet, c, isUnanchored);
+
+        Integer cachedNext = cachedStatusIndex.get(new SubsetConstruction.StatusSetKey(nextSet, isUnanchored));
+        if (cachedNext != null) {
+            cachedTransitions[status * classCount + alphabetClass] = cachedNext;
+            return cachedNext;
+        }
+        if (usedCacheBytes + getStatusBytes(nextSet) > cacheBytes) {
+            long sinceLastFlush = processedChars + scannedChars - lastFlushChars;
+            if (sinceLastFlush < (long) MIN_CHARS_PER_STATUS * cachedStatusCount) {
+                return GIVE_UP;
+            }
+            cacheFlushes++;
+            lastFlushChars = processedChars + scannedChars;
+            resetCache();
+            if (usedCacheBytes + getStatusBytes(nextSet) > cacheBytes) {
+                return GIVE_UP;
+            }
+            return addCachedStatus(nextSet, isUnanchored);
+        }
+        int next = addCachedStatus(nextSet, isUnanchored);
+        cachedTransitions[status * classCount + alphabetClass] = next;
+        return next;
+    }
+
+    private long getStatusBytes(int[] statusSet) {
+        return STATUS_OVERHEAD_BYTES + 4L * classCount + 4L * statusSet.length;
+    }
+
+    private int addCachedStatus(int[] statusSet, boolean isUnanchored) {
+        int status = cachedStatusCount++;
+        if (status == cachedStatusSets.length) {
+            int capacity = status * 2;
+            cachedStatusSets = Arrays.copyOf(cachedStatusSets, capacity);
+            cachedUnanchored = Arrays.copyOf(cachedUnanchored, capacity);
+            cachedAccepting = Arrays.copyOf(cachedAccepting, capacity);
+            cachedTransitions = Arrays.copyOf(cachedTransitions, capacity * classCount);
+        }
+        cachedStatusSets[status] = statusSet;
+        cachedUnanchored[status] = isUnanchored;
+        cachedAccepting[status] = subsetConstruction.isAccepting(statusSet);
+        Arrays.fill(cachedTransitions, status * classCount, (status + 1) * classCount, UNKNOWN);
+        cachedStatusIndex.put(new SubsetConstruction.StatusSetKey(statusSet, isUnanchored), status);
+        usedCacheBytes += getStatusBytes(statusSet);
+        return status;
+    }
+}
@@ -1,9 +1,99 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
+/**
+ * Usage:
+ * Main [--glushkov] [--simplify] [--output-dir DIR] [--format html|svg|dot] [--collapse-epsilon]
+ * Main [--glushkov] [--simplify] --batch FILE|- [--threads N] [--output-dir DIR] [--output-file FILE]
+ * Main [--glushkov] --serve PORT [--threads N] [--max-in-flight N]
+ */
 public class Main {
+    private static final String FORMAT_HTML = "html";
+    private static final String FORMAT_SVG = "svg";
+    private static final String FORMAT_DOT = "dot";
+    private static final String OUTPUT_GRAPH_NAME = "NFAMap";
 
-    public static void main(String[] args) throws NormalFormException {
-        long lastMillis;
+    public static void main(String[] args) throws NormalFormException, IOException {
+        NFAMap.Construction construction = NFAMap.Construction.THOMPSON;
+        String batchInput = null;
+        int servePort = -1;
+        int maxInFlight = CompileServer.DEFAULT_MAX_IN_FLIGHT;
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        File outputDirectory = null;
+        File outputFile = null;
+        String format = FORMAT_HTML;
+        boolean collapseEpsilon = false;
+        boolean simplify = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--glushkov":
+                    construction = NFAMap.Construction.GLUSHKOV;
+                    break;
+                case "--batch":
+                    batchInput = getArgumentValue(args, ++i);
+                    break;
+                case "--serve":
+                    servePort = Integer.parseInt(getArgumentValue(args, ++i));
+                    break;
+                case "--max-in-flight":
+                    maxInFlight = Integer.parseInt(getArgumentValue(args, ++i));
+                    break;
+                case "--threads":
+                    threadCount = Integer.parseInt(getArgumentValue(args, ++i));
+                    break;
+                case "--output-dir":
+                    outputDirectory = new File(getArgumentValue(args, ++i));
+                    break;
+                case "--output-file":
+                    outputFile = new File(getArgumentValue(args, ++i));
+                    break;
+                case "--format":
+                    format = getArgumentValue(args, ++i);
+                    if (!FORMAT_HTML.equals(format) && !FORMAT_SVG.equals(format) && !FORMAT_DOT.equals(format)) {
+                        throw new IllegalArgumentException("Unknown format: " + format);
+                    }
+                    break;
+                case "--collapse-epsilon":
+                    collapseEpsilon = true;
+                    break;
+                case "--simplify":
+                    simplify = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+
+        if (servePort >= 0) {
+            if (simplify) {
+                // Server caches NFA by expression and construction only
+                throw new IllegalArgumentException("Argument --simplify can't be used with --serve");
+            }
+            serve(construction, servePort, threadCount, maxInFlight);
+        } else if (batchInput == null) {
+            compileSingle(construction, simplify, outputDirectory == null ? new File(".") : outputDirectory, format, collapseEpsilon);
+        } else {
+            compileBatch(construction, simplify, batchInput, threadCount, outputDirectory, outputFile);
+        }
+    }
+
+    private static String getArgumentValue(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value of argument: " + args[index - 1]);
+        }
+        return args[index];
+    }
+
+    private static void compileSingle(NFAMap.Construction construction, boolean simplify, File outputDirectory, String format, boolean collapseEpsilon)
+            throws NormalFormException, IOException {
+        CompileMetrics.setListener(new ConsoleMetricsListener());
         Scanner scanner = new Scanner(System.in);
         System.out.print("Regular Expression: ");
         String input = scanner.nextLine();
@@ -11,19 +101,79 @@ public class Main {
         System.out.println("Your Input: " + input);
 
         System.out.println("\nStarting Analyse Regular Expression ...");
-        lastMillis = System.currentTimeMillis();
         GrammarNode grammarNode = new GrammarNode(input, true);
-        System.out.println("Analyse Finished! (In " + (System.currentTimeMillis() - lastMillis) + " Millis)");
 
         System.out.println("\nStarting Building NFA Map ...");
-        lastMillis = System.currentTimeMillis();
         NFAMap.Builder builder = new NFAMap.Builder();
-        NFAMap nfaMap = builder.setNode(grammarNode).build();
-        System.out.println("Building Finished! (In " + (System.currentTimeMillis() - lastMillis) + " Millis)");
+        NFAMap nfaMap = builder.setNode(grammarNode).setConstruction(construction).setSimplify(simplify).build();
 
         System.out.println("\nGenerating NFA Map ...");
-        lastMillis = System.currentTimeMillis();
-        nfaMap.outputAsHtml();
-        System.out.println("NFA Map Was Generated Successfully! (In " + (System.currentTimeMillis() - lastMillis) + " Millis)");
+        File output;
+        if (FORMAT_HTML.equals(format)) {
+            output = new File(outputDirectory, nfaMap.outputAsHtml(outputDirectory));
+        } else {
+            // Layout is computed here, it is faster than layout in browser for large NFA
+            output = new File(outputDirectory, OUTPUT_GRAPH_NAME + "." + format);
+            GraphExporter exporter = new GraphExporter(nfaMap).setCollapseEpsilon(collapseEpsilon);
+            if (FORMAT_SVG.equals(format)) {
+                exporter.outputAsSvg(output);
+            } else {
+                exporter.outputAsDot(output);
+            }
+        }
+        System.out.println("Open: " + output);
+    }
+
+    private static void compileBatch(NFAMap.Construction construction, boolean simplify, String input, int threadCount, File outputDirectory, File outputFile) throws IOException {
+        System.out.println("Starting Batch Building With " + threadCount + " Threads ...");
+        BatchCompiler compiler = new BatchCompiler(threadCount, construction).setSimplify(simplify).setOutputDirectory(outputDirectory).setOutputFile(outputFile);
+        BatchCompiler.Summary summary;
+        if ("-".equals(input)) {
+            summary = compiler.compile(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)));
+        } else {
+            try (BufferedReader reader = Files.newBufferedReader(Paths.get(input), StandardCharsets.UTF_8)) {
+                summary = compiler.compile(reader);
+            }
+        }
+        for (String message : summary.getFailureMessages()) {
+            System.out.println(message);
+        }
+        System.out.println("Batch Building Finished! " + summary);
+    }
+
+    private static void serve(NFAMap.Construction construction, int port, int threadCount, int maxInFlight) throws IOException {
+        CompileServer server = new CompileServer(new PatternCache(PatternCache.DEFAULT_MAX_BYTES, construction), threadCount, maxInFlight);
+        InetSocketAddress address = server.start(port);
+        // Latency is reported when the server is stopped by Ctrl+C
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            System.out.println("\nServer Stopped! Rejected: " + server.getRejectedCount());
+            for (String endpoint : new String[]{"compile", "match", "export"}) {
+                System.out.println(endpoint + ": " + server.getLatency(endpoint));
+            }
+        }));
+        System.out.println("Serving On http://" + address.getHostString() + ":" + address.getPort() + "/ With " + threadCount + " Threads ...");
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    private static final class ConsoleMetricsListener implements CompileMetrics.Listener {
+        @Override
+        public void onParse(String expression, long nanos, int treeDepth, int nodeCount) {
+            System.out.println("Analyse Finished! (In " + toMillis(nanos) + " Millis, Tree Depth: " + treeDepth + ", Tree Nodes: " + nodeCount + ")");
+        }
+
+        @Override
+        public void onBuild(NFAMap nfaMap, long nanos, int statusCount, int epsilonEdgeCount, int symbolEdgeCount) {
+            System.out.println("Building Finished! (In " + toMillis(nanos) + " Millis, Status: " + statusCount +
+                    ", ε Edges: " + epsilonEdgeCount + ", Symbol Edges: " + symbolEdgeCount + ")");
+        }
+
+        @Override
+        public void onOutput(NFAMap nfaMap, String format, long nanos, long bytesWritten) {
+            System.out.println("NFA Map Was Generated Successfully! (In " + toMillis(nanos) + " Millis, Written: " + bytesWritten + " Bytes)");
+        }
     }
 }
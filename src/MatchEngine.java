@@ -0,0 +1,23 @@
+/**
+ * Regular expression matching engine
+ *
+ * @author xfy9326
+ */
+public interface MatchEngine {
+    /**
+     * Whole input matches
+     *
+     * @param input Input
+     * @return Matches
+     */
+    boolean matches(CharSequence input);
+
+    /**
+     * Search the match which ends earliest
+     *
+     * @param input Input
+     * @param from  Search start position
+     * @return End position (exclusive) of the match, -1 if not found or start position is after the end of input
+     */
+    int search(CharSequence input, int from);
+}
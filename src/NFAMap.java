@@ -1,96 +1,540 @@
-import com.alibaba.fastjson.JSONArray;
-import com.alibaba.fastjson.JSONObject;
-
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
 
 /**
+ * NFA Map
+ * Status are numbered from 0, edges are stored as CSR adjacency arrays grouped by from status
+ *
  * @author xfy9326
  */
 public class NFAMap {
-    private static final String DEFINE_JSON_STR = "const NFAMapJSON=";
+    // Symbol of ε edge
+    public static final int EPSILON_SYMBOL = -1;
+    // Symbol of char set i is CHAR_SET_SYMBOL_BASE + i, other symbols are chars
+    public static final int CHAR_SET_SYMBOL_BASE = Character.MAX_VALUE + 1;
+    private static final int[] EMPTY_CHAR_SET_OFFSETS = {0};
+    private static final char[] EMPTY_CHAR_SET_RANGES = new char[0];
     private static final String OUTPUT_PATH = "";
-    private static final String OUTPUT_JS_NAME = "NFA.js";
-    private static final String OUTPUT_JS_FOLDER = "NFAMap" + File.separator + "js";
-    private static final String[] RESOURCES_NFA_MAP = {"NFAMap/index.html", "NFAMap/js/d3.v4.min.js", "NFAMap/js/dagre-d3.min.js"};
-    private Edge[] edges;
-    private String startNode;
-    private String endNode;
-    private String[] normalNodeList;
+    // Estimated memory of object headers and array headers
+    private static final int OBJECT_OVERHEAD_BYTES = 256;
+    // Estimated memory of a custom status name
+    private static final int STATUS_NAME_BYTES = 48;
+    private int statusCount;
+    private int startStatus;
+    // Sorted, Thompson construction has one end status for each pattern
+    private int[] endStatuses;
+    private boolean[] isEndStatus;
+    // Patterns accepted by status i are [acceptPatternOffsets[i], acceptPatternOffsets[i + 1]), sorted
+    private int patternCount;
+    private int[] acceptPatternOffsets;
+    private int[] acceptPatterns;
+    // Edges of status i are [transitionOffsets[i], transitionOffsets[i + 1])
+    private int[] transitionOffsets;
+    private int[] transitionSymbols;
+    private int[] transitionTargets;
+    // Ranges of char set i are [charSetOffsets[i], charSetOffsets[i + 1]) in charSetRanges
+    private int[] charSetOffsets = EMPTY_CHAR_SET_OFFSETS;
+    private char[] charSetRanges = EMPTY_CHAR_SET_RANGES;
+    // Capture slot saved by entering status i is captureSlots[i], group g has slot 2g for start and 2g + 1 for end, -1 means no slot
+    // Null if there is no capture group
+    private int captureGroupCount = 0;
+    private int[] captureSlots;
+    // Status names from custom StatusManager, null means status id is its name
+    private String[] statusNames;
     private String originalRegularExpression;
+    // Null if they are unknown, e.g. loaded from snapshot of older version
+    private String normalizedExpression;
+    private Construction construction;
+    // Lazy views
+    private volatile Edge[] edges;
+    private volatile String[] normalNodeList;
+    private volatile String[] endNodeList;
+    private volatile EpsilonClosure epsilonClosure;
+    private volatile boolean isEpsilonClosureComputed = false;
+    private volatile AlphabetClasses alphabetClasses;
+    private volatile ShiftAndMatcher shiftAndMatcher;
+    private volatile boolean isShiftAndMatcherComputed = false;
+    // Patterns of small Thompson NFA, their Glushkov NFA is built for Shift-And matcher on first use
+    private volatile GrammarNode[] positionNodes;
+    private boolean isPositionSimplify;
 
     private NFAMap() {
     }
 
+    /**
+     * NFA from arrays which are already built, arrays are used directly
+     */
+    NFAMap(int statusCount, int startStatus, int[] endStatuses, int patternCount, int[] acceptPatternOffsets, int[] acceptPatterns,
+           int[] transitionOffsets, int[] transitionSymbols, int[] transitionTargets, int[] charSetOffsets, char[] charSetRanges,
+           int captureGroupCount, int[] captureSlots, String[] statusNames, String originalRegularExpression,
+           String normalizedExpression, Construction construction) {
+        this.statusCount = statusCount;
+        this.startStatus = startStatus;
+        this.endStatuses = endStatuses;
+        this.isEndStatus = new boolean[statusCount];
+        for (int endStatus : endStatuses) {
+            this.isEndStatus[endStatus] = true;
+        }
+        this.patternCount = patternCount;
+        this.acceptPatternOffsets = acceptPatternOffsets;
+        this.acceptPatterns = acceptPatterns;
+        this.transitionOffsets = transitionOffsets;
+        this.transitionSymbols = transitionSymbols;
+        this.transitionTargets = transitionTargets;
+        this.charSetOffsets = charSetOffsets;
+        this.charSetRanges = charSetRanges;
+        this.captureGroupCount = captureGroupCount;
+        this.captureSlots = captureSlots;
+        this.statusNames = statusNames;
+        this.originalRegularExpression = originalRegularExpression;
+        this.normalizedExpression = normalizedExpression;
+        this.construction = construction;
+    }
+
+    /**
+     * Edges are grouped by from status in status order, edges of a status keep the order they are added,
+     * so the order is not the insertion order of the whole NFA
+     *
+     * @return Edges
+     */
     public Edge[] getEdges() {
-        return edges;
+        Edge[] result = edges;
+        if (result == null) {
+            result = new Edge[transitionSymbols.length];
+            for (int status = 0; status < statusCount; status++) {
+                String from = getStatusName(status);
+                for (int i = transitionOffsets[status]; i < transitionOffsets[status + 1]; i++) {
+                    result[i] = new Edge(from, getSymbolName(transitionSymbols[i]), getStatusName(transitionTargets[i]));
+                }
+            }
+            edges = result;
+        }
+        return result;
     }
 
     public String getStartNode() {
-        return startNode;
+        return getStatusName(startStatus);
     }
 
     public String getEndNode() {
-        return endNode;
-    }
-
-    private String getJSON() {
-        JSONObject object = new JSONObject();
-        object.put("originalRegularExpression", originalRegularExpression);
-        object.put("startNode", startNode);
-        object.put("endNode", endNode);
-        JSONArray nodeArray = new JSONArray();
-        Collections.addAll(nodeArray, normalNodeList);
-        object.put("normalNodeList", nodeArray);
-        JSONArray edgeArray = new JSONArray();
-        for (Edge edge : edges) {
-            JSONObject nodeObject = new JSONObject();
-            nodeObject.put("fromNode", edge.from);
-            nodeObject.put("toNode", edge.to);
-            nodeObject.put("symbol", edge.symbol);
-            edgeArray.add(nodeObject);
+        return getStatusName(endStatuses[0]);
+    }
+
+    public String[] getEndNodeList() {
+        String[] result = endNodeList;
+        if (result == null) {
+            result = new String[endStatuses.length];
+            for (int i = 0; i < endStatuses.length; i++) {
+                result[i] = getStatusName(endStatuses[i]);
+            }
+            endNodeList = result;
         }
-        object.put("edgeList", edgeArray);
-        return object.toJSONString();
+        return result;
     }
 
-    public void outputAsHtml() {
-        try {
-            for (String resourceName : RESOURCES_NFA_MAP) {
-                File outputFile = new File(OUTPUT_PATH + resourceName);
-                if (!outputFile.getParentFile().exists()) {
-                    //noinspection ResultOfMethodCallIgnored
-                    outputFile.getParentFile().mkdirs();
+    public String[] getNormalNodeList() {
+        String[] result = normalNodeList;
+        if (result == null) {
+            result = new String[statusCount - 1 - endStatuses.length + (isEndStatus[startStatus] ? 1 : 0)];
+            int size = 0;
+            for (int status = 0; status < statusCount; status++) {
+                if (status != startStatus && !isEndStatus[status]) {
+                    result[size++] = getStatusName(status);
                 }
-                if (outputFile.exists()) {
-                    //noinspection ResultOfMethodCallIgnored
-                    outputFile.delete();
+            }
+            normalNodeList = result;
+        }
+        return result;
+    }
+
+    public String getStatusName(int status) {
+        return statusNames == null ? String.valueOf(status) : statusNames[status];
+    }
+
+    String getSymbolName(int symbol) {
+        if (symbol == EPSILON_SYMBOL) {
+            return Builder.EPSILON;
+        } else if (symbol >= CHAR_SET_SYMBOL_BASE) {
+            int charSet = symbol - CHAR_SET_SYMBOL_BASE;
+            return CharSets.getName(charSetRanges, charSetOffsets[charSet], charSetOffsets[charSet + 1]);
+        } else {
+            return String.valueOf((char) symbol);
+        }
+    }
+
+    /**
+     * @param symbol Symbol of an edge, not ε
+     * @param c      Input char
+     * @return Edge can be passed by this char
+     */
+    boolean isSymbolMatched(int symbol, char c) {
+        if (symbol < CHAR_SET_SYMBOL_BASE) {
+            return symbol == c;
+        }
+        int charSet = symbol - CHAR_SET_SYMBOL_BASE;
+        return CharSets.contains(charSetRanges, charSetOffsets[charSet], charSetOffsets[charSet + 1], c);
+    }
+
+    public int getStatusCount() {
+        return statusCount;
+    }
+
+    public int getStartStatus() {
+        return startStatus;
+    }
+
+    /**
+     * @return First end status
+     */
+    public int getEndStatus() {
+        return endStatuses[0];
+    }
+
+    public int[] getEndStatuses() {
+        return endStatuses.clone();
+    }
+
+    public boolean isEndStatus(int status) {
+        return isEndStatus[status];
+    }
+
+    public int getTransitionCount() {
+        return transitionSymbols.length;
+    }
+
+    /**
+     * @return Count of patterns built into this NFA
+     */
+    public int getPatternCount() {
+        return patternCount;
+    }
+
+    /**
+     * @param status Status
+     * @return Index of patterns accepted by this status in ascending order, empty if it is not an end status
+     */
+    public int[] getAcceptPatterns(int status) {
+        return Arrays.copyOfRange(acceptPatterns, acceptPatternOffsets[status], acceptPatternOffsets[status + 1]);
+    }
+
+    /**
+     * Capture groups are only recorded by Thompson construction without simplification
+     *
+     * @return Count of capture groups, group 0 (the whole match) is not counted
+     * @see Builder#setCaptureGroups(boolean)
+     */
+    public int getCaptureGroupCount() {
+        return captureGroupCount;
+    }
+
+    /**
+     * Estimated memory of status and edges, lazy views are not counted
+     *
+     * @return Bytes
+     */
+    public long getEstimatedBytes() {
+        long bytes = OBJECT_OVERHEAD_BYTES;
+        // Offsets, flags and patterns of status
+        bytes += 9L * (statusCount + 1) + 8L * endStatuses.length + 4L * acceptPatterns.length;
+        // Symbols and targets of edges
+        bytes += 8L * transitionSymbols.length;
+        bytes += 4L * charSetOffsets.length + 2L * charSetRanges.length;
+        if (captureSlots != null) {
+            bytes += 4L * statusCount;
+        }
+        if (statusNames != null) {
+            bytes += (long) STATUS_NAME_BYTES * statusCount;
+        }
+        return bytes + 2L * originalRegularExpression.length();
+    }
+
+    boolean[] getEndStatusFlags() {
+        return isEndStatus;
+    }
+
+    int[] getAcceptPatternOffsets() {
+        return acceptPatternOffsets;
+    }
+
+    int[] getAcceptPatternArray() {
+        return acceptPatterns;
+    }
+
+    int[] getEndStatusArray() {
+        return endStatuses;
+    }
+
+    /**
+     * @return Status names, null means status id is its name
+     */
+    String[] getStatusNames() {
+        return statusNames;
+    }
+
+    String getOriginalRegularExpression() {
+        return originalRegularExpression;
+    }
+
+    /**
+     * @return Normalized forms of patterns joined by OR, null if it is unknown
+     */
+    String getNormalizedExpression() {
+        return normalizedExpression;
+    }
+
+    /**
+     * @return Construction algorithm, null if it is unknown
+     */
+    Construction getConstruction() {
+        return construction;
+    }
+
+    int[] getTransitionOffsets() {
+        return transitionOffsets;
+    }
+
+    int[] getTransitionSymbols() {
+        return transitionSymbols;
+    }
+
+    int[] getTransitionTargets() {
+        return transitionTargets;
+    }
+
+    int[] getCharSetOffsets() {
+        return charSetOffsets;
+    }
+
+    char[] getCharSetRanges() {
+        return charSetRanges;
+    }
+
+    /**
+     * @return Capture slot of each status, null if there is no capture group
+     */
+    int[] getCaptureSlots() {
+        return captureSlots;
+    }
+
+    /**
+     * @return ε closure, or null if it is too large to be precomputed
+     */
+    EpsilonClosure getEpsilonClosure() {
+        if (!isEpsilonClosureComputed) {
+            epsilonClosure = EpsilonClosure.compute(this);
+            isEpsilonClosureComputed = true;
+        }
+        return epsilonClosure;
+    }
+
+    AlphabetClasses getAlphabetClasses() {
+        AlphabetClasses result = alphabetClasses;
+        if (result == null) {
+            result = AlphabetClasses.of(this);
+            alphabetClasses = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return New matcher of this NFA, matcher can be reused but not shared between threads
+     */
+    public NFAMatcher matcher() {
+        return new NFAMatcher(this);
+    }
+
+    public boolean matches(CharSequence input) {
+        return matcher().matches(input);
+    }
+
+    /**
+     * @return New Pike VM of this NFA which finds spans of capture groups, it can be reused but not shared between threads
+     */
+    public PikeVM pikeVM() {
+        return new PikeVM(this);
+    }
+
+    /**
+     * Shift-And matcher is used if patterns have at most 64 positions, otherwise lazy DFA is used
+     * Small Thompson NFA built from expressions uses the Glushkov NFA of the same patterns, which is built on first call
+     *
+     * @return Engine of this NFA, engine can be reused but not shared between threads
+     */
+    public MatchEngine engine() {
+        if (!isShiftAndMatcherComputed) {
+            ShiftAndMatcher result = null;
+            GrammarNode[] nodes = positionNodes;
+            if (ShiftAndMatcher.isApplicable(this)) {
+                result = new ShiftAndMatcher(this);
+            } else if (nodes != null) {
+                NFAMap positionMap;
+                try {
+                    positionMap = Builder.build(nodes, null, Construction.GLUSHKOV, isPositionSimplify, false);
+                } catch (NormalFormException e) {
+                    // Nodes are already built into this NFA
+                    throw new IllegalStateException(e);
+                }
+                if (ShiftAndMatcher.isApplicable(positionMap)) {
+                    result = new ShiftAndMatcher(positionMap);
+                }
+            }
+            shiftAndMatcher = result;
+            isShiftAndMatcherComputed = true;
+            positionNodes = null;
+        }
+        ShiftAndMatcher result = shiftAndMatcher;
+        return result != null ? result : new LazyDFA(this);
+    }
+
+    String getJSON() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeJSON(writer);
+        } catch (IOException e) {
+            // StringWriter never throws
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Write JSON while walking the transition arrays, no JSON tree or edge objects are created
+     * Edge list has the same order as {@link #getEdges()}
+     *
+     * @param writer Output, it should be buffered
+     * @throws IOException Write failed
+     */
+    void writeJSON(Writer writer) throws IOException {
+        writeJSON(writer, originalRegularExpression);
+    }
+
+    /**
+     * @param writer     Output, it should be buffered
+     * @param expression Expression shown with this NFA
+     * @throws IOException Write failed
+     */
+    void writeJSON(Writer writer, String expression) throws IOException {
+        writer.write("{\"originalRegularExpression\":");
+        writeJSONString(writer, expression);
+        writer.write(",\"startNode\":");
+        writeJSONString(writer, getStatusName(startStatus));
+        writer.write(",\"endNode\":");
+        writeJSONString(writer, getStatusName(endStatuses[0]));
+        writer.write(",\"endNodeList\":[");
+        for (int i = 0; i < endStatuses.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeJSONString(writer, getStatusName(endStatuses[i]));
+        }
+        writer.write("],\"normalNodeList\":[");
+        boolean isFirst = true;
+        for (int status = 0; status < statusCount; status++) {
+            if (status != startStatus && !isEndStatus[status]) {
+                if (!isFirst) {
+                    writer.write(',');
                 }
-                try (InputStream inputStream = getClass().getResourceAsStream(resourceName)) {
-                    Files.copy(inputStream, outputFile.toPath());
+                writeJSONString(writer, getStatusName(status));
+                isFirst = false;
+            }
+        }
+        writer.write("],\"edgeList\":[");
+        for (int status = 0; status < statusCount; status++) {
+            for (int i = transitionOffsets[status]; i < transitionOffsets[status + 1]; i++) {
+                if (i > 0) {
+                    writer.write(',');
                 }
+                writer.write("{\"fromNode\":");
+                writeJSONString(writer, getStatusName(status));
+                writer.write(",\"symbol\":");
+                writeJSONString(writer, getSymbolName(transitionSymbols[i]));
+                writer.write(",\"toNode\":");
+                writeJSONString(writer, getStatusName(transitionTargets[i]));
+                writer.write('}');
             }
+        }
+        writer.write("]}");
+    }
 
-            try (FileOutputStream outputStream = new FileOutputStream(OUTPUT_PATH + OUTPUT_JS_FOLDER + File.separator + OUTPUT_JS_NAME)) {
-                String output = DEFINE_JSON_STR + getJSON();
-                outputStream.write(output.getBytes(StandardCharsets.UTF_8));
-                outputStream.flush();
+    static void writeJSONString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        int last = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            // Line separators are escaped too, they are illegal in old JavaScript string literal
+            if (c < 0x20 || c == '"' || c == '\\' || c == '\u2028' || c == '\u2029') {
+                writer.write(value, last, i - last);
+                switch (c) {
+                    case '"':
+                        writer.write("\\\"");
+                        break;
+                    case '\\':
+                        writer.write("\\\\");
+                        break;
+                    case '\n':
+                        writer.write("\\n");
+                        break;
+                    case '\r':
+                        writer.write("\\r");
+                        break;
+                    case '\t':
+                        writer.write("\\t");
+                        break;
+                    default:
+                        writer.write(String.format("\\u%04x", (int) c));
+                }
+                last = i + 1;
             }
+        }
+        writer.write(value, last, value.length() - last);
+        writer.write('"');
+    }
+
+    /**
+     * Output into working directory
+     */
+    public void outputAsHtml() {
+        try {
+            HtmlOutput.output(this, Paths.get(OUTPUT_PATH));
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public String[] getNormalNodeList() {
-        return normalNodeList;
+    /**
+     * Static assets are only written if they changed, and this NFA is written into its own data file,
+     * so many NFA can be output into one directory
+     *
+     * @param outputDirectory Directory of HTML output
+     * @return Relative address of the page showing this NFA
+     * @throws IOException Write failed
+     */
+    public String outputAsHtml(File outputDirectory) throws IOException {
+        return HtmlOutput.output(this, outputDirectory.toPath());
     }
 
+    /**
+     * NFA construction algorithm
+     */
+    public enum Construction {
+        // Thompson construction, use ε edges, one start status and one end status
+        THOMPSON,
+        // Glushkov (position automaton) construction, no ε edges, n + 1 status for n symbols
+        GLUSHKOV
+    }
+
+    /**
+     * Status names of a build, it is called by every build,
+     * so one status manager should not be used by concurrent builds
+     */
     public interface StatusManager {
         String getStartStatus();
 
@@ -103,111 +547,259 @@ public class NFAMap {
 
     public final static class Builder {
         private static final String EPSILON = "ε";
-        private final ArrayList<Edge> edgeArrayList = new ArrayList<>();
-        private GrammarNode node;
+        private static final int START_STATUS = 0;
+        private static final int END_STATUS = 1;
+        private static final int INITIAL_CAPACITY = 16;
+        private GrammarNode[] nodes;
         private StatusManager statusManager;
+        private Construction construction = Construction.THOMPSON;
+        private boolean isSimplify = false;
+        private boolean isCaptureGroups = false;
+
+        /**
+         * Sets are copied once, so k-way alternation takes O(k) time instead of O(k²)
+         *
+         * @return Positions of sets in [from, to)
+         */
+        private static int[] union(List<int[]> sets, int from, int to) {
+            if (to - from == 1) {
+                return sets.get(from);
+            }
+            int size = 0;
+            for (int i = from; i < to; i++) {
+                size += sets.get(i).length;
+            }
+            int[] result = new int[size];
+            size = 0;
+            for (int i = from; i < to; i++) {
+                int[] set = sets.get(i);
+                System.arraycopy(set, 0, result, size, set.length);
+                size += set.length;
+            }
+            return result;
+        }
 
-        private void addNode(String from, String symbol, String to) {
-            this.edgeArrayList.add(new Edge(String.valueOf(from), symbol, String.valueOf(to)));
+        private static int[] concat(int[] a, int[] b) {
+            int[] result = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, result, a.length, b.length);
+            return result;
         }
 
         /**
-         * Get NFA Edge List
+         * In Glushkov NFA, symbol of an edge only depends on its target
          *
-         * @param currentNode Grammar Node
-         * @param start       Start status
-         * @param end         End status
+         * @param offsets CSR offsets, will be updated
+         * @param symbols CSR symbols
+         * @param targets CSR targets
+         * @return New edge count
          */
-        private void recursionGrammarNodes(GrammarNode currentNode, String start, String end) {
-            // Loop
-            if (currentNode.isLoopNode()) {
-                String mid = statusManager.getNewStatus();
-                addNode(start, EPSILON, mid);
-                addNode(mid, EPSILON, end);
-
-                // Loop and Leaf
-                if (currentNode.isLeafNode()) {
-                    addNode(mid, currentNode.getContentForm(), mid);
-                } else {
-                    // Loop and not Leaf
-                    if (currentNode.getCalculateSymbol() == Symbol.AND) {
-                        GrammarNode[] nodes = currentNode.getChildNodes();
-                        String childStart = mid;
-                        String childEnd;
-                        for (int i = 0; i < nodes.length; i++) {
-                            if (i == nodes.length - 1) {
-                                childEnd = mid;
-                            } else {
-                                childEnd = statusManager.getNewStatus();
-                            }
-                            recursionGrammarNodes(nodes[i], childStart, childEnd);
-                            childStart = childEnd;
-                        }
-                    } else if (currentNode.getCalculateSymbol() == Symbol.OR) {
-                        for (GrammarNode childNode : currentNode.getChildNodes()) {
-                            recursionGrammarNodes(childNode, mid, mid);
-                        }
-                    } else {
-                        GrammarNode childNode = currentNode.getChildNodes()[0];
-                        recursionGrammarNodes(childNode, mid, mid);
-                    }
+        private static int removeDuplicatedTargets(int[] offsets, int[] symbols, int[] targets) {
+            int size = 0;
+            int statusCount = offsets.length - 1;
+            for (int status = 0; status < statusCount; status++) {
+                int start = offsets[status];
+                int end = offsets[status + 1];
+                offsets[status] = size;
+                long[] edges = new long[end - start];
+                for (int i = start; i < end; i++) {
+                    edges[i - start] = ((long) targets[i] << 32) | (symbols[i] & 0xFFFFFFFFL);
                 }
-            } else {
-                // Not Loop and Leaf
-                if (currentNode.isLeafNode()) {
-                    addNode(start, currentNode.getContentForm(), end);
-                } else {
-                    // Not Loop and not Leaf
-                    if (currentNode.getCalculateSymbol() == Symbol.AND) {
-                        GrammarNode[] nodes = currentNode.getChildNodes();
-                        String childStart = start;
-                        String childEnd;
-                        for (int i = 0; i < nodes.length; i++) {
-                            if (i == nodes.length - 1) {
-                                childEnd = end;
-                            } else {
-                                childEnd = statusManager.getNewStatus();
-                            }
-                            recursionGrammarNodes(nodes[i], childStart, childEnd);
-                            childStart = childEnd;
-                        }
-                    } else if (currentNode.getCalculateSymbol() == Symbol.OR) {
-                        for (GrammarNode childNode : currentNode.getChildNodes()) {
-                            recursionGrammarNodes(childNode, start, end);
-                        }
-                    } else {
-                        GrammarNode childNode = currentNode.getChildNodes()[0];
-                        recursionGrammarNodes(childNode, start, end);
+                Arrays.sort(edges);
+                for (int i = 0; i < edges.length; i++) {
+                    if (i == 0 || edges[i] != edges[i - 1]) {
+                        targets[size] = (int) (edges[i] >>> 32);
+                        symbols[size] = (int) edges[i];
+                        size++;
                     }
                 }
             }
+            offsets[statusCount] = size;
+            return size;
         }
 
+        /**
+         * Every build has its own status counter and edges, so one builder can build for many times,
+         * and builds in different threads are safe if settings are not changed at the same time
+         *
+         * @return NFA Map
+         * @throws NormalFormException Node is not set, or char set is incorrect
+         */
         public NFAMap build() throws NormalFormException {
-            if (node == null) {
+            CompileMetrics.Listener listener = CompileMetrics.getListener();
+            long startNanos = listener == null ? 0 : System.nanoTime();
+            // Read the settings once, so a build only depends on its own state
+            GrammarNode[] nodes = this.nodes;
+            StatusManager statusManager = this.statusManager;
+            Construction construction = this.construction;
+            boolean isSimplify = this.isSimplify;
+            // Simplified tree has no capture group, and Glushkov NFA has no ε edge to save them
+            boolean isCaptureGroups = this.isCaptureGroups && !isSimplify && construction == Construction.THOMPSON;
+            if (nodes == null || nodes.length == 0) {
                 throw new NormalFormException("This node can't be built!");
             }
-            if (statusManager == null) {
-                statusManager = new DefaultStatusManager();
+            // Every leaf after bounded repeats are expanded is a position of Glushkov NFA
+            long positionCount = 0;
+            boolean isPositionCountKnown = true;
+            for (GrammarNode node : nodes) {
+                if (node == null) {
+                    throw new NormalFormException("This node can't be built!");
+                }
+                // Simplified tree has no expanded size
+                isPositionCountKnown &= node.getExpandedSize() > 0;
+                positionCount += node.getExpandedSize();
             }
 
-            String startNode = statusManager.getStartStatus();
-            String endNode = statusManager.getEndStatus();
+            NFAMap nfaMap = build(nodes, statusManager, construction, isSimplify, isCaptureGroups);
+            // Shift-And matcher only depends on the patterns, so small Thompson NFA also has it
+            if (construction == Construction.THOMPSON && isPositionCountKnown && positionCount <= ShiftAndMatcher.MAX_POSITIONS) {
+                nfaMap.isPositionSimplify = isSimplify;
+                nfaMap.positionNodes = nodes.clone();
+            }
+            if (listener != null) {
+                CompileMetrics.reportBuild(listener, nfaMap, System.nanoTime() - startNanos);
+            }
+            return nfaMap;
+        }
 
-            recursionGrammarNodes(node, startNode, endNode);
+        private static NFAMap build(GrammarNode[] nodes, StatusManager statusManager, Construction construction, boolean isSimplify,
+                                    boolean isCaptureGroups) throws NormalFormException {
+            // Expressions and normalized forms are still read from the original nodes
+            GrammarNode[] buildNodes = nodes;
+            if (isSimplify) {
+                buildNodes = new GrammarNode[nodes.length];
+                for (int i = 0; i < nodes.length; i++) {
+                    buildNodes[i] = nodes[i].getSimplifiedNode();
+                }
+            }
+            // Status are numbered from START_STATUS in every build
+            BuildContext context = new BuildContext(statusManager, isCaptureGroups);
+
+            // All patterns share the start status, and have their own end status
+            int[][] patternEndStatuses = new int[nodes.length][];
+            if (construction == Construction.GLUSHKOV) {
+                for (int i = 0; i < nodes.length; i++) {
+                    patternEndStatuses[i] = context.glushkovGrammarNodes(buildNodes[i], START_STATUS);
+                }
+            } else {
+                context.statusCounter = END_STATUS;
+                if (statusManager != null) {
+                    context.statusNames[END_STATUS] = statusManager.getEndStatus();
+                }
+                for (int i = 0; i < nodes.length; i++) {
+                    int end = i == 0 ? END_STATUS : context.getNewStatus();
+                    context.recursionGrammarNodes(buildNodes[i], START_STATUS, end);
+                    patternEndStatuses[i] = new int[]{end};
+                    // Capture groups of patterns are numbered one after another
+                    if (isCaptureGroups) {
+                        context.captureGroupBase += nodes[i].getCaptureGroupCount();
+                    }
+                }
+            }
 
             NFAMap nfaMap = new NFAMap();
-            nfaMap.edges = edgeArrayList.toArray(new Edge[0]);
-            nfaMap.originalRegularExpression = node.getContentForm();
-            nfaMap.startNode = startNode;
-            nfaMap.endNode = endNode;
-            nfaMap.normalNodeList = statusManager.getNormalStatusArray();
+            int statusCount = context.statusCounter + 1;
+            nfaMap.statusCount = statusCount;
+            nfaMap.startStatus = START_STATUS;
+            nfaMap.patternCount = nodes.length;
+            nfaMap.isEndStatus = new boolean[statusCount];
+            int[] acceptPatternOffsets = new int[statusCount + 1];
+            int endStatusCount = 0;
+            for (int[] ends : patternEndStatuses) {
+                for (int endStatus : ends) {
+                    if (!nfaMap.isEndStatus[endStatus]) {
+                        nfaMap.isEndStatus[endStatus] = true;
+                        endStatusCount++;
+                    }
+                    acceptPatternOffsets[endStatus + 1]++;
+                }
+            }
+            for (int i = 0; i < statusCount; i++) {
+                acceptPatternOffsets[i + 1] += acceptPatternOffsets[i];
+            }
+            int[] acceptPatterns = new int[acceptPatternOffsets[statusCount]];
+            int[] acceptPosition = Arrays.copyOf(acceptPatternOffsets, statusCount);
+            for (int pattern = 0; pattern < patternEndStatuses.length; pattern++) {
+                for (int endStatus : patternEndStatuses[pattern]) {
+                    acceptPatterns[acceptPosition[endStatus]++] = pattern;
+                }
+            }
+            nfaMap.acceptPatternOffsets = acceptPatternOffsets;
+            nfaMap.acceptPatterns = acceptPatterns;
+            nfaMap.endStatuses = new int[endStatusCount];
+            for (int status = 0, size = 0; status < statusCount; status++) {
+                if (nfaMap.isEndStatus[status]) {
+                    nfaMap.endStatuses[size++] = status;
+                }
+            }
 
+            // Counting sort edges by from status
+            int edgeCount = context.edgeCount;
+            int[] offsets = new int[statusCount + 1];
+            for (int i = 0; i < edgeCount; i++) {
+                offsets[context.edgeFrom[i] + 1]++;
+            }
+            for (int i = 0; i < statusCount; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            int[] symbols = new int[edgeCount];
+            int[] targets = new int[edgeCount];
+            int[] position = Arrays.copyOf(offsets, statusCount);
+            for (int i = 0; i < edgeCount; i++) {
+                int index = position[context.edgeFrom[i]]++;
+                symbols[index] = context.edgeSymbols[i];
+                targets[index] = context.edgeTo[i];
+            }
+            if (construction == Construction.GLUSHKOV) {
+                // The same follow edge may be added more than once
+                edgeCount = removeDuplicatedTargets(offsets, symbols, targets);
+                symbols = Arrays.copyOf(symbols, edgeCount);
+                targets = Arrays.copyOf(targets, edgeCount);
+            }
+            nfaMap.transitionOffsets = offsets;
+            nfaMap.transitionSymbols = symbols;
+            nfaMap.transitionTargets = targets;
+            if (context.charSetCount > 0) {
+                nfaMap.charSetOffsets = Arrays.copyOf(context.charSetOffsets, context.charSetCount + 1);
+                nfaMap.charSetRanges = Arrays.copyOf(context.charSetRanges, context.charSetOffsets[context.charSetCount]);
+            }
+            if (context.captureGroupBase > 0) {
+                nfaMap.captureGroupCount = context.captureGroupBase;
+                nfaMap.captureSlots = new int[statusCount];
+                Arrays.fill(nfaMap.captureSlots, -1);
+                for (int i = 0; i < context.captureStatusCount; i++) {
+                    nfaMap.captureSlots[context.captureStatuses[i]] = context.captureStatusSlots[i];
+                }
+            }
+
+            String[] contents = new String[nodes.length];
+            String[] normalizedForms = new String[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                contents[i] = nodes[i].getContentForm();
+                normalizedForms[i] = nodes[i].getNormalizedForm();
+            }
+            nfaMap.originalRegularExpression = String.join(String.valueOf(Symbol.OR), contents);
+            nfaMap.normalizedExpression = String.join(String.valueOf(Symbol.OR), normalizedForms);
+            nfaMap.construction = construction;
+            if (statusManager != null) {
+                nfaMap.statusNames = Arrays.copyOf(context.statusNames, statusCount);
+                nfaMap.normalNodeList = statusManager.getNormalStatusArray();
+            }
             return nfaMap;
         }
 
         public Builder setNode(GrammarNode node) {
-            this.node = node;
+            this.nodes = new GrammarNode[]{node};
+            return this;
+        }
+
+        /**
+         * Build all nodes into one NFA, end status are tagged with the index of their pattern
+         *
+         * @param nodes Grammar Nodes
+         * @return Builder
+         */
+        public Builder setNodes(GrammarNode... nodes) {
+            this.nodes = nodes.clone();
             return this;
         }
 
@@ -215,35 +807,372 @@ public class NFAMap {
             this.statusManager = statusManager;
             return this;
         }
-    }
-
-    private final static class DefaultStatusManager implements StatusManager {
-        private static final int startStatus = 0;
-        private static final int endStatus = 1;
-        private int statusCounter = 1;
 
-        @Override
-        public String getStartStatus() {
-            return String.valueOf(startStatus);
+        public Builder setConstruction(Construction construction) {
+            this.construction = construction;
+            return this;
         }
 
-        @Override
-        public String getEndStatus() {
-            return String.valueOf(endStatus);
+        /**
+         * @param isSimplify Simplify grammar tree before construction, default false
+         * @see GrammarNode#getSimplifiedNode()
+         */
+        public Builder setSimplify(boolean isSimplify) {
+            this.isSimplify = isSimplify;
+            return this;
         }
 
-        @Override
-        public String getNewStatus() {
-            return String.valueOf(++statusCounter);
+        /**
+         * @param isCaptureGroups Record capture groups for {@link PikeVM}, default false
+         *                        Only Thompson construction without simplification records them, every group adds two status
+         */
+        public Builder setCaptureGroups(boolean isCaptureGroups) {
+            this.isCaptureGroups = isCaptureGroups;
+            return this;
         }
 
-        @Override
-        public String[] getNormalStatusArray() {
-            String[] result = new String[statusCounter - 1];
-            for (int i = 2; i <= statusCounter; i++) {
-                result[i - 2] = String.valueOf(i);
+        /**
+         * Mutable state of a single build, so builds never share status counter or edges
+         */
+        private static final class BuildContext {
+            private final StatusManager statusManager;
+            private int statusCounter = START_STATUS;
+            private String[] statusNames;
+            // Edges in adding order
+            private int edgeCount = 0;
+            private int[] edgeFrom = new int[INITIAL_CAPACITY];
+            private int[] edgeSymbols = new int[INITIAL_CAPACITY];
+            private int[] edgeTo = new int[INITIAL_CAPACITY];
+            // Char sets in adding order, the same char set is only added once
+            private final HashMap<String, Integer> charSetSymbols = new HashMap<>();
+            private int charSetCount = 0;
+            private int[] charSetOffsets = new int[INITIAL_CAPACITY];
+            private char[] charSetRanges = new char[INITIAL_CAPACITY];
+            // Status saving capture slots in adding order
+            private final boolean isCaptureGroups;
+            private int captureGroupBase = 0;
+            private int captureStatusCount = 0;
+            private int[] captureStatuses = new int[INITIAL_CAPACITY];
+            private int[] captureStatusSlots = new int[INITIAL_CAPACITY];
+
+            private BuildContext(StatusManager statusManager, boolean isCaptureGroups) {
+                this.statusManager = statusManager;
+                this.isCaptureGroups = isCaptureGroups;
+                if (statusManager != null) {
+                    statusNames = new String[INITIAL_CAPACITY];
+                    statusNames[START_STATUS] = statusManager.getStartStatus();
+                }
+            }
+
+            private void addNode(int from, int symbol, int to) {
+                if (edgeCount == edgeFrom.length) {
+                    int capacity = edgeCount * 2;
+                    edgeFrom = Arrays.copyOf(edgeFrom, capacity);
+                    edgeSymbols = Arrays.copyOf(edgeSymbols, capacity);
+                    edgeTo = Arrays.copyOf(edgeTo, capacity);
+                }
+                edgeFrom[edgeCount] = from;
+                edgeSymbols[edgeCount] = symbol;
+                edgeTo[edgeCount] = to;
+                edgeCount++;
+            }
+
+            private void addCaptureStatus(int status, int slot) {
+                if (captureStatusCount == captureStatuses.length) {
+                    captureStatuses = Arrays.copyOf(captureStatuses, captureStatusCount * 2);
+                    captureStatusSlots = Arrays.copyOf(captureStatusSlots, captureStatusCount * 2);
+                }
+                captureStatuses[captureStatusCount] = status;
+                captureStatusSlots[captureStatusCount] = slot;
+                captureStatusCount++;
+            }
+
+            /**
+             * @param leafNode Leaf node
+             * @return Symbol of leaf node, char set with only one char is the same as the char
+             * @throws NormalFormException Char set is incorrect
+             */
+            private int getLeafSymbol(GrammarNode leafNode) throws NormalFormException {
+                if (!leafNode.isCharSetLeaf()) {
+                    return leafNode.getLeafSymbol();
+                }
+                char[] ranges = leafNode.getLeafCharSet();
+                if (ranges.length == 2 && ranges[0] == ranges[1]) {
+                    return ranges[0];
+                }
+                String key = new String(ranges);
+                Integer symbol = charSetSymbols.get(key);
+                if (symbol == null) {
+                    if (charSetCount + 1 == charSetOffsets.length) {
+                        charSetOffsets = Arrays.copyOf(charSetOffsets, charSetOffsets.length * 2);
+                    }
+                    int offset = charSetOffsets[charSetCount];
+                    if (offset + ranges.length > charSetRanges.length) {
+                        charSetRanges = Arrays.copyOf(charSetRanges, Math.max(charSetRanges.length * 2, offset + ranges.length));
+                    }
+                    System.arraycopy(ranges, 0, charSetRanges, offset, ranges.length);
+                    charSetOffsets[charSetCount + 1] = offset + ranges.length;
+                    symbol = CHAR_SET_SYMBOL_BASE + charSetCount++;
+                    charSetSymbols.put(key, symbol);
+                }
+                return symbol;
+            }
+
+            private int getNewStatus() {
+                int status = ++statusCounter;
+                if (statusManager != null) {
+                    if (status == statusNames.length) {
+                        statusNames = Arrays.copyOf(statusNames, status * 2);
+                    }
+                    statusNames[status] = statusManager.getNewStatus();
+                }
+                return status;
+            }
+
+            /**
+             * Get NFA Edge List
+             * Repeat count is expanded into copies by {@link GrammarNode#getRepeatExpandedNode()}
+             * ε edges which leave a repeat are added after its body, so edges of a status are in greedy priority order
+             * Capture group wraps the body with a status saving its start and a status saving its end
+             * Use explicit stack, so the depth of grammar tree is not limited by thread stack size
+             *
+             * @param rootNode Grammar Node
+             * @param start    Start status
+             * @param end      End status
+             */
+            private void recursionGrammarNodes(GrammarNode rootNode, int start, int end) throws NormalFormException {
+                GrammarNode[] nodeStack = new GrammarNode[INITIAL_CAPACITY];
+                // [start, end, child index, next child start, skip from, skip to]
+                int[] frameStack = new int[INITIAL_CAPACITY * 6];
+                int stackSize = 0;
+
+                nodeStack[stackSize] = rootNode.getRepeatExpandedNode();
+                frameStack[0] = start;
+                frameStack[1] = end;
+                frameStack[2] = -1;
+                stackSize++;
+
+                while (stackSize > 0) {
+                    int frame = (stackSize - 1) * 6;
+                    GrammarNode currentNode = nodeStack[stackSize - 1];
+                    int childIndex = frameStack[frame + 2];
+
+                    if (childIndex == -1) {
+                        frameStack[frame + 4] = -1;
+                        // Loop
+                        if (currentNode.isLoopNode() && isCaptureGroups) {
+                            // Optional PLUS, so an empty repeat leaves the loop with its captures instead of being dropped
+                            int repeatStart = getNewStatus();
+                            int repeatEnd = getNewStatus();
+                            addNode(frameStack[frame], EPSILON_SYMBOL, repeatStart);
+                            addNode(repeatEnd, EPSILON_SYMBOL, repeatStart);
+                            addNode(repeatEnd, EPSILON_SYMBOL, frameStack[frame + 1]);
+                            frameStack[frame + 4] = repeatStart;
+                            frameStack[frame + 5] = frameStack[frame + 1];
+                            frameStack[frame] = repeatStart;
+                            frameStack[frame + 1] = repeatEnd;
+                        } else if (currentNode.isLoopNode()) {
+                            int mid = getNewStatus();
+                            addNode(frameStack[frame], EPSILON_SYMBOL, mid);
+                            frameStack[frame + 4] = mid;
+                            frameStack[frame + 5] = frameStack[frame + 1];
+                            frameStack[frame] = mid;
+                            frameStack[frame + 1] = mid;
+                        } else if (currentNode.getRepeatMax() == GrammarNode.REPEAT_INFINITE) {
+                            // PLUS, a single copy with back edge
+                            int repeatStart = getNewStatus();
+                            int repeatEnd = getNewStatus();
+                            addNode(frameStack[frame], EPSILON_SYMBOL, repeatStart);
+                            addNode(repeatEnd, EPSILON_SYMBOL, repeatStart);
+                            addNode(repeatEnd, EPSILON_SYMBOL, frameStack[frame + 1]);
+                            frameStack[frame] = repeatStart;
+                            frameStack[frame + 1] = repeatEnd;
+                        } else if (currentNode.getRepeatMin() == 0 && frameStack[frame] != frameStack[frame + 1]) {
+                            // OPTIONAL
+                            frameStack[frame + 4] = frameStack[frame];
+                            frameStack[frame + 5] = frameStack[frame + 1];
+                        }
+                        if (isCaptureGroups) {
+                            for (int group : currentNode.getCaptureGroups()) {
+                                int slot = (captureGroupBase + group) * 2;
+                                int groupStart = getNewStatus();
+                                int groupEnd = getNewStatus();
+                                addNode(frameStack[frame], EPSILON_SYMBOL, groupStart);
+                                addNode(groupEnd, EPSILON_SYMBOL, frameStack[frame + 1]);
+                                addCaptureStatus(groupStart, slot);
+                                addCaptureStatus(groupEnd, slot + 1);
+                                frameStack[frame] = groupStart;
+                                frameStack[frame + 1] = groupEnd;
+                            }
+                        }
+                        // Leaf
+                        if (currentNode.isLeafNode()) {
+                            addNode(frameStack[frame], getLeafSymbol(currentNode), frameStack[frame + 1]);
+                            if (frameStack[frame + 4] >= 0) {
+                                addNode(frameStack[frame + 4], EPSILON_SYMBOL, frameStack[frame + 5]);
+                            }
+                            stackSize--;
+                            continue;
+                        }
+                        childIndex = 0;
+                        frameStack[frame + 3] = frameStack[frame];
+                    }
+
+                    GrammarNode[] nodes = currentNode.getChildNodes();
+                    if (childIndex == nodes.length) {
+                        if (frameStack[frame + 4] >= 0) {
+                            addNode(frameStack[frame + 4], EPSILON_SYMBOL, frameStack[frame + 5]);
+                        }
+                        nodeStack[stackSize - 1] = null;
+                        stackSize--;
+                        continue;
+                    }
+                    frameStack[frame + 2] = childIndex + 1;
+
+                    int childStart;
+                    int childEnd;
+                    if (currentNode.getCalculateSymbol() == Symbol.AND) {
+                        childStart = frameStack[frame + 3];
+                        if (childIndex == nodes.length - 1) {
+                            childEnd = frameStack[frame + 1];
+                        } else {
+                            childEnd = getNewStatus();
+                        }
+                        frameStack[frame + 3] = childEnd;
+                    } else {
+                        // OR or single child
+                        childStart = frameStack[frame];
+                        childEnd = frameStack[frame + 1];
+                    }
+
+                    if (stackSize == nodeStack.length) {
+                        nodeStack = Arrays.copyOf(nodeStack, stackSize * 2);
+                        frameStack = Arrays.copyOf(frameStack, stackSize * 2 * 6);
+                    }
+                    int childFrame = stackSize * 6;
+                    nodeStack[stackSize] = nodes[childIndex].getRepeatExpandedNode();
+                    frameStack[childFrame] = childStart;
+                    frameStack[childFrame + 1] = childEnd;
+                    frameStack[childFrame + 2] = -1;
+                    stackSize++;
+                }
+            }
+
+            /**
+             * Get Glushkov NFA Edge List
+             * Every leaf is a position status, edges are built from first, last and follow sets
+             * Every copy of a repeated node has its own positions
+             * Use explicit stack, so the depth of grammar tree is not limited by thread stack size
+             *
+             * @param rootNode Grammar Node
+             * @param start    Start status
+             * @return End status
+             */
+            private int[] glushkovGrammarNodes(GrammarNode rootNode, int start) throws NormalFormException {
+                int[] positionSymbols = new int[INITIAL_CAPACITY];
+
+                GrammarNode[] nodeStack = new GrammarNode[INITIAL_CAPACITY];
+                int[] childIndexStack = new int[INITIAL_CAPACITY];
+                int stackSize = 0;
+                // Results of finished nodes
+                ArrayList<int[]> firstStack = new ArrayList<>();
+                ArrayList<int[]> lastStack = new ArrayList<>();
+                BitSet nullableStack = new BitSet();
+
+                nodeStack[stackSize++] = rootNode.getRepeatExpandedNode();
+                while (stackSize > 0) {
+                    GrammarNode currentNode = nodeStack[stackSize - 1];
+                    GrammarNode[] nodes = currentNode.getChildNodes();
+                    int childIndex = childIndexStack[stackSize - 1];
+                    if (!currentNode.isLeafNode() && childIndex < nodes.length) {
+                        childIndexStack[stackSize - 1] = childIndex + 1;
+                        if (stackSize == nodeStack.length) {
+                            nodeStack = Arrays.copyOf(nodeStack, stackSize * 2);
+                            childIndexStack = Arrays.copyOf(childIndexStack, stackSize * 2);
+                        }
+                        nodeStack[stackSize] = nodes[childIndex].getRepeatExpandedNode();
+                        childIndexStack[stackSize] = 0;
+                        stackSize++;
+                        continue;
+                    }
+                    nodeStack[--stackSize] = null;
+
+                    boolean nullable;
+                    int[] first;
+                    int[] last;
+                    if (currentNode.isLeafNode()) {
+                        int position = getNewStatus();
+                        if (position >= positionSymbols.length) {
+                            positionSymbols = Arrays.copyOf(positionSymbols, position * 2);
+                        }
+                        positionSymbols[position] = getLeafSymbol(currentNode);
+                        nullable = false;
+                        first = new int[]{position};
+                        last = first;
+                    } else {
+                        // Child results are on the top of result stack
+                        int base = firstStack.size() - nodes.length;
+                        int end = firstStack.size();
+                        if (currentNode.getCalculateSymbol() == Symbol.AND) {
+                            // First of a child follows last of every child before it, back to the nearest non-nullable one
+                            int lastFrom = base;
+                            for (int i = base + 1; i < end; i++) {
+                                if (!nullableStack.get(i - 1)) {
+                                    lastFrom = i - 1;
+                                }
+                                for (int j = lastFrom; j < i; j++) {
+                                    addFollowEdges(lastStack.get(j), firstStack.get(i), positionSymbols);
+                                }
+                            }
+                            int firstEnd = base;
+                            while (firstEnd < end && nullableStack.get(firstEnd)) {
+                                firstEnd++;
+                            }
+                            int lastStart = end - 1;
+                            while (lastStart >= base && nullableStack.get(lastStart)) {
+                                lastStart--;
+                            }
+                            nullable = firstEnd == end;
+                            first = union(firstStack, base, Math.min(firstEnd + 1, end));
+                            last = union(lastStack, Math.max(lastStart, base), end);
+                        } else {
+                            int nullableChild = nullableStack.nextSetBit(base);
+                            nullable = nullableChild >= 0 && nullableChild < end;
+                            first = union(firstStack, base, end);
+                            last = union(lastStack, base, end);
+                        }
+                        firstStack.subList(base, firstStack.size()).clear();
+                        lastStack.subList(base, lastStack.size()).clear();
+                    }
+                    // SELF_LOOP and PLUS
+                    if (currentNode.getRepeatMax() == GrammarNode.REPEAT_INFINITE) {
+                        addFollowEdges(last, first, positionSymbols);
+                    }
+                    if (currentNode.getRepeatMin() == 0) {
+                        nullable = true;
+                    }
+                    nullableStack.set(firstStack.size(), nullable);
+                    firstStack.add(first);
+                    lastStack.add(last);
+                }
+
+                int[] first = firstStack.get(0);
+                int[] last = lastStack.get(0);
+                for (int position : first) {
+                    addNode(start, positionSymbols[position], position);
+                }
+                int[] endStatuses = nullableStack.get(0) ? concat(new int[]{start}, last) : last.clone();
+                Arrays.sort(endStatuses);
+                return endStatuses;
+            }
+
+            private void addFollowEdges(int[] last, int[] first, int[] positionSymbols) {
+                for (int from : last) {
+                    for (int to : first) {
+                        addNode(from, positionSymbols[to], to);
+                    }
+                }
             }
-            return result;
         }
     }
 
@@ -0,0 +1,206 @@
+/**
+ * Thompson NFA simulation
+ * All active status are simulated at the same time, so matching takes O(n·m) time for n chars and m status
+ * Status sets are reusable sparse sets, nothing is allocated for each input char
+ * Matcher is not thread safe, use one matcher for each thread
+ *
+ * @author xfy9326
+ */
+public final class NFAMatcher implements MatchEngine {
+    private final NFAMap nfaMap;
+    private final int startStatus;
+    private final int[] transitionOffsets;
+    private final int[] transitionSymbols;
+    private final int[] transitionTargets;
+    // Null if closures are computed while matching
+    private final EpsilonClosure epsilonClosure;
+
+    private StatusSet currentSet;
+    private StatusSet nextSet;
+    // Stack for ε closure computing
+    private final int[] closureStack;
+
+    private int matchStart = -1;
+    private int matchEnd = -1;
+
+    public NFAMatcher(NFAMap nfaMap) {
+        int statusCount = nfaMap.getStatusCount();
+        this.nfaMap = nfaMap;
+        this.startStatus = nfaMap.getStartStatus();
+        this.transitionOffsets = nfaMap.getTransitionOffsets();
+        this.transitionSymbols = nfaMap.getTransitionSymbols();
+        this.transitionTargets = nfaMap.getTransitionTargets();
+        this.epsilonClosure = nfaMap.getEpsilonClosure();
+        this.currentSet = new StatusSet(statusCount, nfaMap.getEndStatusFlags());
+        this.nextSet = new StatusSet(statusCount, nfaMap.getEndStatusFlags());
+        this.closureStack = epsilonClosure == null ? new int[transitionSymbols.length + 1] : null;
+    }
+
+    /**
+     * Whole input matches
+     *
+     * @param input Input
+     * @return Matches
+     */
+    @Override
+    public boolean matches(CharSequence input) {
+        matchStart = -1;
+        matchEnd = -1;
+        currentSet.clear();
+        addClosure(currentSet, startStatus, 0);
+
+        int length = input.length();
+        for (int i = 0; i < length && currentSet.size > 0; i++) {
+            step(input.charAt(i));
+        }
+        if (currentSet.acceptingStart >= 0) {
+            matchStart = 0;
+            matchEnd = length;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean find(CharSequence input) {
+        return find(input, 0);
+    }
+
+    /**
+     * Find the first match, which ends earliest
+     * If several matches end at the same position, the leftmost one is found
+     *
+     * @param input Input
+     * @param from  Search start position
+     * @return Found
+     */
+    public boolean find(CharSequence input, int from) {
+        matchStart = -1;
+        matchEnd = -1;
+        currentSet.clear();
+
+        int length = input.length();
+        for (int i = from; i <= length; i++) {
+            // New thread starts after old threads, so leftmost thread always arrives first
+            addClosure(currentSet, startStatus, i);
+            if (currentSet.acceptingStart >= 0) {
+                matchStart = currentSet.acceptingStart;
+                matchEnd = i;
+                return true;
+            }
+            if (i < length) {
+                step(input.charAt(i));
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int search(CharSequence input, int from) {
+        return find(input, from) ? matchEnd : -1;
+    }
+
+    /**
+     * @return Start position of last match
+     */
+    public int start() {
+        if (matchEnd < 0) {
+            throw new IllegalStateException("No match available");
+        }
+        return matchStart;
+    }
+
+    /**
+     * @return End position (exclusive) of last match
+     */
+    public int end() {
+        if (matchEnd < 0) {
+            throw new IllegalStateException("No match available");
+        }
+        return matchEnd;
+    }
+
+    private void step(char c) {
+        StatusSet current = currentSet;
+        StatusSet next = nextSet;
+        next.clear();
+        for (int i = 0; i < current.size; i++) {
+            int status = current.statuses[i];
+            int start = current.starts[i];
+            for (int j = transitionOffsets[status]; j < transitionOffsets[status + 1]; j++) {
+                int symbol = transitionSymbols[j];
+                // Char sets are only checked if the symbol is not a char
+                if (symbol == c || (symbol >= NFAMap.CHAR_SET_SYMBOL_BASE && nfaMap.isSymbolMatched(symbol, c))) {
+                    addClosure(next, transitionTargets[j], start);
+                }
+            }
+        }
+        currentSet = next;
+        nextSet = current;
+    }
+
+    private void addClosure(StatusSet set, int status, int start) {
+        if (epsilonClosure != null) {
+            int[] closureStatuses = epsilonClosure.statuses;
+            for (int i = epsilonClosure.offsets[status]; i < epsilonClosure.offsets[status + 1]; i++) {
+                set.add(closureStatuses[i], start);
+            }
+        } else {
+            int stackSize = 0;
+            closureStack[stackSize++] = status;
+            while (stackSize > 0) {
+                int current = closureStack[--stackSize];
+                if (set.add(current, start)) {
+                    for (int i = transitionOffsets[current]; i < transitionOffsets[current + 1]; i++) {
+                        if (transitionSymbols[i] == NFAMap.EPSILON_SYMBOL && !set.contains(transitionTargets[i])) {
+                            closureStack[stackSize++] = transitionTargets[i];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sparse set of status, each status remembers where its thread starts
+     */
+    private static final class StatusSet {
+        private final boolean[] isEndStatus;
+        private final int[] sparse;
+        private final int[] statuses;
+        private final int[] starts;
+        private int size = 0;
+        // Start of the first thread which arrives at an end status, -1 if none
+        private int acceptingStart = -1;
+
+        private StatusSet(int capacity, boolean[] isEndStatus) {
+            this.isEndStatus = isEndStatus;
+            this.sparse = new int[capacity];
+            this.statuses = new int[capacity];
+            this.starts = new int[capacity];
+        }
+
+        private boolean contains(int status) {
+            int index = sparse[status];
+            return index < size && statuses[index] == status;
+        }
+
+        private boolean add(int status, int start) {
+            if (contains(status)) {
+                return false;
+            }
+            sparse[status] = size;
+            statuses[size] = status;
+            starts[size] = start;
+            size++;
+            if (acceptingStart < 0 && isEndStatus[status]) {
+                acceptingStart = start;
+            }
+            return true;
+        }
+
+        private void clear() {
+            size = 0;
+            acceptingStart = -1;
+        }
+    }
+}
@@ -2,4 +2,12 @@ public class NormalFormException extends Exception {
     public NormalFormException(String message) {
         super(message);
     }
+
+    static NormalFormException symbolUsedIncorrectly(char symbol, int position) {
+        return new NormalFormException("Symbol " + symbol + " use incorrectly at position " + position);
+    }
+
+    static NormalFormException expandedTooLarge(long limit, int position) {
+        return new NormalFormException("Repeat expands content to more than " + limit + " words at position " + position);
+    }
 }
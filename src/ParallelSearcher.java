@@ -0,0 +1,355 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel search of a single large input with compiled DFA
+ * Input is split into chunks, each chunk is scanned on the fork join pool from all DFA status at the same time,
+ * status which reach the same DFA status are merged, and usually all of them are merged after a few chars
+ * Real start status of each chunk is found by composing the chunk mappings in order,
+ * then only the chunk prefixes before merging are scanned again to collect their matches
+ * Matches and their order are the same as {@link StreamSearcher}
+ * Thread safe
+ *
+ * @author xfy9326
+ */
+public final class ParallelSearcher {
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+    // DFA with more status than this are scanned sequentially, since scanning from every status is too slow
+    public static final int MAX_SPECULATIVE_STATUS = 1024;
+    // Max size of each mapped region of a file
+    private static final long MAX_MAPPED_REGION_SIZE = 1L << 30;
+    private static final int BYTE_MASK = 0xFF;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final CompiledDFA dfa;
+    private final int[] transitions;
+    private final int acceptingStart;
+    private final int unanchoredStart;
+    private final int classCount;
+    private final int statusCount;
+    // Status which can be reached while searching, chunks are speculatively scanned from them
+    private final int[] searchStatuses;
+    private final int[] byteClasses;
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    public ParallelSearcher(CompiledDFA dfa) {
+        this(dfa, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param dfa       Compiled DFA
+     * @param pool      Pool for scanning chunks
+     * @param chunkSize Bytes of each chunk
+     */
+    public ParallelSearcher(CompiledDFA dfa, ForkJoinPool pool, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive!");
+        }
+        this.dfa = dfa;
+        this.transitions = dfa.getTransitions();
+        this.acceptingStart = dfa.getAcceptingStart();
+        this.unanchoredStart = dfa.getUnanchoredStart();
+        this.classCount = dfa.getClassCount();
+        this.statusCount = dfa.getStatusCount();
+        this.searchStatuses = getSearchStatuses();
+        this.byteClasses = StreamSearcher.getByteClasses(dfa);
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Search a file by mapping it into memory region by region
+     *
+     * @param file     File path
+     * @param listener Match listener, called in order on the calling thread
+     * @return Match count
+     * @throws IOException Read failed
+     */
+    public long search(Path file, StreamSearcher.MatchListener listener) throws IOException {
+        SearchState state = new SearchState(unanchoredStart);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAX_MAPPED_REGION_SIZE) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_MAPPED_REGION_SIZE, size - position));
+                searchRegion(region, position, state, listener);
+            }
+        }
+        return finish(state, listener);
+    }
+
+    /**
+     * Search the remaining bytes of buffer as a whole input, buffer position is not changed
+     *
+     * @param byteBuffer Byte buffer, such as a {@link MappedByteBuffer}
+     * @param listener   Match listener, called in order on the calling thread
+     * @return Match count
+     */
+    public long search(ByteBuffer byteBuffer, StreamSearcher.MatchListener listener) {
+        SearchState state = new SearchState(unanchoredStart);
+        searchRegion(byteBuffer, 0, state, listener);
+        return finish(state, listener);
+    }
+
+    private long finish(SearchState state, StreamSearcher.MatchListener listener) {
+        if (state.status >= acceptingStart) {
+            state.matchCount++;
+            listener.onMatch(state.offset);
+        }
+        return state.matchCount;
+    }
+
+    private void searchRegion(ByteBuffer region, long regionOffset, SearchState state, StreamSearcher.MatchListener listener) {
+        int from = region.position();
+        int length = region.limit() - from;
+        int chunkCount = (int) Math.min((length + (long) chunkSize - 1) / chunkSize, Integer.MAX_VALUE);
+        if (chunkCount <= 1 || searchStatuses.length > MAX_SPECULATIVE_STATUS) {
+            ChunkScan scan = new ChunkScan(region, from, from + length);
+            scan.scanFrom(state.status);
+            emit(scan.matches, scan.matchCount, regionOffset - from, state, listener);
+            state.status = scan.endStatus;
+            state.offset = regionOffset + length;
+            return;
+        }
+
+        // First chunk starts from known status, others start from every status
+        List<ChunkScan> chunks = new ArrayList<>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            int chunkFrom = from + (int) ((long) length * i / chunkCount);
+            int chunkTo = from + (int) ((long) length * (i + 1) / chunkCount);
+            chunks.add(new ChunkScan(region, chunkFrom, chunkTo));
+        }
+        int firstStatus = state.status;
+        invokeAll(chunks, chunk -> {
+            if (chunk == chunks.get(0)) {
+                chunk.scanFrom(firstStatus);
+            } else {
+                chunk.scanSpeculative();
+            }
+        });
+
+        // Compose chunk mappings in order
+        int status = firstStatus;
+        for (ChunkScan chunk : chunks) {
+            chunk.startStatus = status;
+            status = chunk.getEndStatus(status);
+        }
+
+        // Scan prefixes before all status are merged
+        invokeAll(chunks, ChunkScan::scanPrefix);
+
+        for (ChunkScan chunk : chunks) {
+            emit(chunk.prefixMatches, chunk.prefixMatchCount, regionOffset - from, state, listener);
+            emit(chunk.matches, chunk.matchCount, regionOffset - from, state, listener);
+        }
+        state.status = status;
+        state.offset = regionOffset + length;
+    }
+
+    /**
+     * Anchored status of compiled DFA are never reached while searching, and are skipped
+     *
+     * @return Premultiplied status reachable from unanchored start status
+     */
+    private int[] getSearchStatuses() {
+        boolean[] isReached = new boolean[statusCount];
+        int[] result = new int[statusCount];
+        int size = 0;
+        isReached[unanchoredStart / classCount] = true;
+        result[size++] = unanchoredStart;
+        for (int i = 0; i < size; i++) {
+            // Search restarts from unanchored start status after a match
+            int status = result[i] >= acceptingStart ? unanchoredStart : result[i];
+            for (int c = 0; c < classCount; c++) {
+                int next = transitions[status + c];
+                if (!isReached[next / classCount]) {
+                    isReached[next / classCount] = true;
+                    result[size++] = next;
+                }
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private void emit(int[] matches, int count, long base, SearchState state, StreamSearcher.MatchListener listener) {
+        for (int i = 0; i < count; i++) {
+            listener.onMatch(base + matches[i]);
+        }
+        state.matchCount += count;
+    }
+
+    private void invokeAll(List<ChunkScan> chunks, ChunkAction action) {
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<RecursiveAction> tasks = new ArrayList<>(chunks.size());
+                for (ChunkScan chunk : chunks) {
+                    tasks.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            action.run(chunk);
+                        }
+                    });
+                }
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    public CompiledDFA getDFA() {
+        return dfa;
+    }
+
+    private interface ChunkAction {
+        void run(ChunkScan chunk);
+    }
+
+    private static final class SearchState {
+        private int status;
+        private long offset = 0;
+        private long matchCount = 0;
+
+        private SearchState(int status) {
+            this.status = status;
+        }
+    }
+
+    /**
+     * Scan result of a chunk
+     * Matches before index mergedAt depend on the start status, others are shared by all start status
+     */
+    private final class ChunkScan {
+        private final ByteBuffer buffer;
+        private final int from;
+        private final int to;
+
+        private int mergedAt;
+        // End status if all status are merged, otherwise endStatuses is used
+        private int endStatus;
+        // End status of each start status (status / classCount)
+        private int[] endStatuses;
+        private int[] matches = new int[INITIAL_CAPACITY];
+        private int matchCount = 0;
+
+        private int startStatus;
+        private int[] prefixMatches = new int[INITIAL_CAPACITY];
+        private int prefixMatchCount = 0;
+
+        private ChunkScan(ByteBuffer buffer, int from, int to) {
+            // Each chunk has its own view of the buffer
+            this.buffer = buffer.duplicate();
+            this.from = from;
+            this.to = to;
+        }
+
+        private void scanFrom(int status) {
+            mergedAt = from;
+            endStatus = scan(status, from, to, false);
+        }
+
+        /**
+         * Scan from all search status, until they are merged into one
+         */
+        private void scanSpeculative() {
+            int[] transitions = ParallelSearcher.this.transitions;
+            int[] byteClasses = ParallelSearcher.this.byteClasses;
+            int acceptingStart = ParallelSearcher.this.acceptingStart;
+            int unanchoredStart = ParallelSearcher.this.unanchoredStart;
+
+            // Search status k is in group groupOf[k], current status of group j is current[j]
+            int[] searchStatuses = ParallelSearcher.this.searchStatuses;
+            int[] groupOf = new int[searchStatuses.length];
+            int[] current = searchStatuses.clone();
+            for (int k = 0; k < searchStatuses.length; k++) {
+                groupOf[k] = k;
+            }
+            int groupCount = searchStatuses.length;
+            int[] mergedGroup = new int[statusCount];
+            int[] seenStamp = new int[statusCount];
+            int[] groupIndex = new int[groupCount];
+
+            int i = from;
+            for (int stamp = 1; groupCount > 1 && i < to; i++, stamp++) {
+                int byteClass = byteClasses[buffer.get(i) & BYTE_MASK];
+                int newGroupCount = 0;
+                for (int j = 0; j < groupCount; j++) {
+                    int status = current[j];
+                    if (status >= acceptingStart) {
+                        status = unanchoredStart;
+                    }
+                    status = transitions[status + byteClass];
+                    int index = status / classCount;
+                    if (seenStamp[index] != stamp) {
+                        seenStamp[index] = stamp;
+                        mergedGroup[index] = newGroupCount;
+                        current[newGroupCount++] = status;
+                    }
+                    groupIndex[j] = mergedGroup[index];
+                }
+                if (newGroupCount < groupCount) {
+                    for (int k = 0; k < groupOf.length; k++) {
+                        groupOf[k] = groupIndex[groupOf[k]];
+                    }
+                }
+                groupCount = newGroupCount;
+            }
+
+            mergedAt = i;
+            if (groupCount == 1) {
+                endStatus = scan(current[0], i, to, false);
+            } else {
+                endStatuses = new int[statusCount];
+                for (int k = 0; k < groupOf.length; k++) {
+                    endStatuses[searchStatuses[k] / classCount] = current[groupOf[k]];
+                }
+            }
+        }
+
+        private void scanPrefix() {
+            if (mergedAt > from) {
+                scan(startStatus, from, mergedAt, true);
+            }
+        }
+
+        private int getEndStatus(int startStatus) {
+            return endStatuses == null ? endStatus : endStatuses[startStatus / classCount];
+        }
+
+        private int scan(int status, int scanFrom, int scanTo, boolean isPrefix) {
+            int[] transitions = ParallelSearcher.this.transitions;
+            int[] byteClasses = ParallelSearcher.this.byteClasses;
+            int acceptingStart = ParallelSearcher.this.acceptingStart;
+            for (int i = scanFrom; i < scanTo; i++) {
+                if (status >= acceptingStart) {
+                    addMatch(i, isPrefix);
+                    status = unanchoredStart;
+                }
+                status = transitions[status + byteClasses[buffer.get(i) & BYTE_MASK]];
+            }
+            return status;
+        }
+
+        private void addMatch(int end, boolean isPrefix) {
+            if (isPrefix) {
+                if (prefixMatchCount == prefixMatches.length) {
+                    prefixMatches = Arrays.copyOf(prefixMatches, prefixMatchCount * 2);
+                }
+                prefixMatches[prefixMatchCount++] = end;
+            } else {
+                if (matchCount == matches.length) {
+                    matches = Arrays.copyOf(matches, matchCount * 2);
+                }
+                matches[matchCount++] = end;
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Cache of built NFA, keyed by normalized form of expression
+ * Expressions which only differ in blank chars and redundant parenthesises share one entry
+ * Least recently used entries are evicted when estimated memory of cached NFA exceeds the budget
+ * Concurrent requests of the same expression only build it once
+ * Thread safe
+ *
+ * @author xfy9326
+ */
+public final class PatternCache {
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    private final long maxBytes;
+    private final NFAMap.Construction construction;
+    // Access ordered, the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Object lock = new Object();
+
+    // Guarded by lock
+    private long usedBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public PatternCache() {
+        this(DEFAULT_MAX_BYTES, NFAMap.Construction.THOMPSON);
+    }
+
+    /**
+     * @param maxBytes     Memory budget of cached NFA
+     * @param construction NFA construction algorithm
+     */
+    public PatternCache(long maxBytes, NFAMap.Construction construction) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Max bytes must be positive!");
+        }
+        this.maxBytes = maxBytes;
+        this.construction = construction;
+    }
+
+    /**
+     * @param expression Regular expression
+     * @return Cached NFA, or NFA built now
+     * @throws NormalFormException Expression is illegal
+     */
+    public NFAMap get(String expression) throws NormalFormException {
+        GrammarNode node = new GrammarNode(expression, true);
+        String key = node.getNormalizedForm();
+
+        Entry entry;
+        boolean isBuilder = false;
+        synchronized (lock) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(node);
+                entries.put(key, entry);
+                isBuilder = true;
+                misses++;
+            } else {
+                hits++;
+            }
+        }
+
+        if (isBuilder) {
+            entry.task.run();
+            synchronized (lock) {
+                if (entries.get(key) == entry) {
+                    if (entry.result == null) {
+                        // Failed entry is not cached
+                        entries.remove(key);
+                    } else {
+                        entry.bytes = entry.result.getEstimatedBytes();
+                        usedBytes += entry.bytes;
+                        evict();
+                    }
+                }
+            }
+        }
+        return entry.await(node);
+    }
+
+    /**
+     * Cache NFA which is built before, e.g. loaded from snapshot, it is keyed by its normalized expression
+     *
+     * @param nfaMap NFA of a single pattern, built by the construction of this cache
+     * @return Cached, false if the NFA can't be keyed or the expression is already cached
+     */
+    public boolean put(NFAMap nfaMap) {
+        String key = nfaMap.getNormalizedExpression();
+        if (key == null || nfaMap.getConstruction() != construction || nfaMap.getPatternCount() != 1) {
+            return false;
+        }
+        synchronized (lock) {
+            if (entries.containsKey(key)) {
+                return false;
+            }
+            Entry entry = new Entry(nfaMap);
+            entries.put(key, entry);
+            usedBytes += entry.bytes;
+            evict();
+        }
+        return true;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (usedBytes > maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            // Entries being built are not counted yet
+            if (entry.task.isDone()) {
+                iterator.remove();
+                usedBytes -= entry.bytes;
+                evictions++;
+            }
+        }
+    }
+
+    private NFAMap build(GrammarNode node) throws NormalFormException {
+        return new NFAMap.Builder().setNode(node).setConstruction(construction).build();
+    }
+
+    public void clear() {
+        synchronized (lock) {
+            entries.clear();
+            usedBytes = 0;
+        }
+    }
+
+    public int getSize() {
+        synchronized (lock) {
+            return entries.size();
+        }
+    }
+
+    public long getUsedBytes() {
+        synchronized (lock) {
+            return usedBytes;
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getHits() {
+        synchronized (lock) {
+            return hits;
+        }
+    }
+
+    public long getMisses() {
+        synchronized (lock) {
+            return misses;
+        }
+    }
+
+    public long getEvictions() {
+        synchronized (lock) {
+            return evictions;
+        }
+    }
+
+    public NFAMap.Construction getConstruction() {
+        return construction;
+    }
+
+    private final class Entry {
+        private final FutureTask<NFAMap> task;
+        // Null until built successfully
+        private volatile NFAMap result;
+        // Guarded by lock
+        private long bytes = 0;
+
+        /**
+         * Entry which is already built
+         */
+        private Entry(NFAMap nfaMap) {
+            this.task = new FutureTask<>(() -> nfaMap);
+            task.run();
+            this.result = nfaMap;
+            this.bytes = nfaMap.getEstimatedBytes();
+        }
+
+        private Entry(GrammarNode node) {
+            this.task = new FutureTask<>(() -> {
+                NFAMap nfaMap = build(node);
+                result = nfaMap;
+                return nfaMap;
+            });
+        }
+
+        /**
+         * @param node Grammar Node of this request, used if waiting is interrupted
+         * @return NFA
+         * @throws NormalFormException Build failed
+         */
+        private NFAMap await(GrammarNode node) throws NormalFormException {
+            NFAMap nfaMap = result;
+            if (nfaMap != null) {
+                return nfaMap;
+            }
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return build(node);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof NormalFormException) {
+                    throw (NormalFormException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+}
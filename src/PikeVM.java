@@ -0,0 +1,334 @@
+import java.util.Arrays;
+
+/**
+ * Pike VM, Thompson NFA simulation which also finds spans of capture groups
+ * Threads are kept in priority order and the first edge of a status has the highest priority, so the leftmost match is found,
+ * and greedy repeats and earlier alternatives are preferred in the same way as backtracking engines
+ * Unlike backtracking engines, a loop doesn't stop at an empty repeat after other repeats, so (a?|b)* finds "ab" in "ab" instead of "a"
+ * Every thread carries its own capture slots, so matching takes O(n·m·g) time for n chars, m status and g groups
+ * Thread lists and slots are allocated once and reused, nothing is allocated while matching
+ * Matcher is not thread safe, use one matcher for each thread
+ *
+ * @author xfy9326
+ * @see NFAMap.Builder#setCaptureGroups(boolean)
+ */
+public final class PikeVM implements MatchEngine {
+    // Closure stack entries, other entries are status to visit
+    private static final int ENTRY_EDGE = -1;
+    private static final int ENTRY_MATCH = -2;
+    // Slot to restore is ENTRY_RESTORE - slot
+    private static final int ENTRY_RESTORE = -3;
+    // Thread which is a match instead of an edge
+    private static final int MATCH_THREAD = -1;
+
+    private final NFAMap nfaMap;
+    private final int startStatus;
+    private final boolean[] isEndStatus;
+    private final int[] transitionOffsets;
+    private final int[] transitionSymbols;
+    private final int[] transitionTargets;
+    // Null if there is no capture group
+    private final int[] captureSlots;
+    // Status which has symbol edges or is an end status, only slots of these status are kept
+    private final boolean[] isStepStatus;
+    // From status of each edge
+    private final int[] edgeSources;
+    // Start and end of every group, group 0 is the whole match
+    private final int slotCount;
+
+    private ThreadList currentList;
+    private ThreadList nextList;
+    // Closure stack, values are edge of ENTRY_EDGE, status of ENTRY_MATCH, or old value of restored slot
+    private final int[] stackEntries;
+    private final int[] stackValues;
+    // Slots of the thread which is followed in closure
+    private final int[] slots;
+    // Slots of last match, end of group 0 is -1 if there is no match
+    private final int[] matchSlots;
+
+    public PikeVM(NFAMap nfaMap) {
+        int statusCount = nfaMap.getStatusCount();
+        this.nfaMap = nfaMap;
+        this.startStatus = nfaMap.getStartStatus();
+        this.isEndStatus = nfaMap.getEndStatusFlags();
+        this.transitionOffsets = nfaMap.getTransitionOffsets();
+        this.transitionSymbols = nfaMap.getTransitionSymbols();
+        this.transitionTargets = nfaMap.getTransitionTargets();
+        this.captureSlots = nfaMap.getCaptureSlots();
+        this.slotCount = (nfaMap.getCaptureGroupCount() + 1) * 2;
+
+        int edgeCount = transitionSymbols.length;
+        this.isStepStatus = isEndStatus.clone();
+        this.edgeSources = new int[edgeCount];
+        for (int status = 0; status < statusCount; status++) {
+            for (int i = transitionOffsets[status]; i < transitionOffsets[status + 1]; i++) {
+                edgeSources[i] = status;
+                if (transitionSymbols[i] != NFAMap.EPSILON_SYMBOL) {
+                    isStepStatus[status] = true;
+                }
+            }
+        }
+
+        this.currentList = new ThreadList(statusCount, edgeCount, slotCount);
+        this.nextList = new ThreadList(statusCount, edgeCount, slotCount);
+        // A status is visited once for a list, it pushes its edges, a match and a slot to restore
+        int stackCapacity = edgeCount + statusCount * 2 + 1;
+        this.stackEntries = new int[stackCapacity];
+        this.stackValues = new int[stackCapacity];
+        this.slots = new int[slotCount];
+        this.matchSlots = new int[slotCount];
+        Arrays.fill(matchSlots, -1);
+    }
+
+    /**
+     * Whole input matches, the match with the highest priority sets capture groups
+     *
+     * @param input Input
+     * @return Matches
+     */
+    @Override
+    public boolean matches(CharSequence input) {
+        return run(input, 0, true, false);
+    }
+
+    public boolean find(CharSequence input) {
+        return find(input, 0);
+    }
+
+    /**
+     * Find the leftmost match, and the match with the highest priority starting there, like backtracking engines
+     *
+     * @param input Input
+     * @param from  Search start position
+     * @return Found
+     */
+    public boolean find(CharSequence input, int from) {
+        return run(input, from, false, false);
+    }
+
+    /**
+     * Search the match which ends earliest, capture groups are set by it
+     */
+    @Override
+    public int search(CharSequence input, int from) {
+        return run(input, from, false, true) ? matchSlots[1] : -1;
+    }
+
+    /**
+     * @return Count of capture groups, group 0 is not counted
+     */
+    public int groupCount() {
+        return slotCount / 2 - 1;
+    }
+
+    /**
+     * @return Start position of last match
+     */
+    public int start() {
+        return start(0);
+    }
+
+    /**
+     * @return End position (exclusive) of last match
+     */
+    public int end() {
+        return end(0);
+    }
+
+    /**
+     * @param group Capture group, 0 is the whole match
+     * @return Start position of the group in last match, -1 if the group doesn't take part in the match
+     */
+    public int start(int group) {
+        checkGroup(group);
+        return matchSlots[group * 2];
+    }
+
+    /**
+     * @param group Capture group, 0 is the whole match
+     * @return End position (exclusive) of the group in last match, -1 if the group doesn't take part in the match
+     */
+    public int end(int group) {
+        checkGroup(group);
+        return matchSlots[group * 2 + 1];
+    }
+
+    private void checkGroup(int group) {
+        if (matchSlots[1] < 0) {
+            throw new IllegalStateException("No match available");
+        }
+        if (group < 0 || group * 2 >= slotCount) {
+            throw new IndexOutOfBoundsException("No group " + group);
+        }
+    }
+
+    /**
+     * @param isAnchored Match must start at from position and end at input end
+     * @param isEarliest Stop at the first position where a thread matches
+     * @return Matched
+     */
+    private boolean run(CharSequence input, int from, boolean isAnchored, boolean isEarliest) {
+        Arrays.fill(matchSlots, -1);
+        currentList.clear();
+        int length = input.length();
+        if (from > length) {
+            return false;
+        }
+        boolean isMatched = false;
+        for (int position = from; ; position++) {
+            // New thread has the lowest priority, and no thread is started after a match is found
+            if (!isMatched && (!isAnchored || position == from)) {
+                Arrays.fill(slots, -1);
+                slots[0] = position;
+                addThread(currentList, startStatus, position);
+            }
+            ThreadList current = currentList;
+            ThreadList next = nextList;
+            next.clear();
+            boolean hasNext = position < length;
+            char c = hasNext ? input.charAt(position) : '\0';
+            for (int i = 0; i < current.size; i++) {
+                int edge = current.threadEdges[i];
+                if (edge == MATCH_THREAD) {
+                    // Threads with lower priority than a match are cut
+                    if (!isAnchored || !hasNext) {
+                        current.loadSlots(current.threadStatuses[i], matchSlots);
+                        matchSlots[1] = position;
+                        isMatched = true;
+                        if (isEarliest) {
+                            return true;
+                        }
+                        break;
+                    }
+                } else if (hasNext) {
+                    int symbol = transitionSymbols[edge];
+                    // Char sets are only checked if the symbol is not a char
+                    if (symbol == c || (symbol >= NFAMap.CHAR_SET_SYMBOL_BASE && nfaMap.isSymbolMatched(symbol, c))) {
+                        current.loadSlots(current.threadStatuses[i], slots);
+                        addThread(next, transitionTargets[edge], position + 1);
+                    }
+                }
+            }
+            currentList = next;
+            nextList = current;
+            if (!hasNext || (next.size == 0 && (isMatched || isAnchored))) {
+                return isMatched;
+            }
+        }
+    }
+
+    /**
+     * Add threads of ε closure in priority order, status which is already visited for this list is not visited again
+     * Edges of a status are handled in order, every symbol edge is a thread, and ε edge adds the closure of its target
+     * End status is a match thread after its edges, so edges leaving it are preferred
+     * Slots are saved while entering status, and restored after its closure
+     */
+    private void addThread(ThreadList list, int status, int position) {
+        int stackSize = 0;
+        stackEntries[stackSize++] = status;
+        while (stackSize > 0) {
+            stackSize--;
+            int entry = stackEntries[stackSize];
+            if (entry == ENTRY_EDGE) {
+                int edge = stackValues[stackSize];
+                list.addThread(edge, edgeSources[edge]);
+                continue;
+            } else if (entry == ENTRY_MATCH) {
+                list.addThread(MATCH_THREAD, stackValues[stackSize]);
+                continue;
+            } else if (entry < 0) {
+                slots[ENTRY_RESTORE - entry] = stackValues[stackSize];
+                continue;
+            }
+            if (!list.visit(entry)) {
+                continue;
+            }
+            if (captureSlots != null && captureSlots[entry] >= 0) {
+                int slot = captureSlots[entry];
+                stackEntries[stackSize] = ENTRY_RESTORE - slot;
+                stackValues[stackSize] = slots[slot];
+                stackSize++;
+                slots[slot] = position;
+            }
+            if (isStepStatus[entry]) {
+                list.saveSlots(entry, slots);
+            }
+            // Pushed in reverse order, so the first edge is handled first
+            if (isEndStatus[entry]) {
+                stackEntries[stackSize] = ENTRY_MATCH;
+                stackValues[stackSize] = entry;
+                stackSize++;
+            }
+            for (int i = transitionOffsets[entry + 1] - 1; i >= transitionOffsets[entry]; i--) {
+                if (transitionSymbols[i] != NFAMap.EPSILON_SYMBOL) {
+                    stackEntries[stackSize] = ENTRY_EDGE;
+                    stackValues[stackSize] = i;
+                    stackSize++;
+                } else if (!list.isVisited(transitionTargets[i])) {
+                    stackEntries[stackSize++] = transitionTargets[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Threads in priority order, a thread is a symbol edge or a match, and it has the slots of its status
+     * Visited status are marked by generation, so clear doesn't touch the marks
+     */
+    private static final class ThreadList {
+        private final int slotCount;
+        private final int[] visitedGenerations;
+        private int generation = 1;
+        private final int[] threadEdges;
+        private final int[] threadStatuses;
+        private int size = 0;
+        // Slots of status i are [i * slotCount, (i + 1) * slotCount)
+        private final int[] statusSlots;
+
+        private ThreadList(int statusCount, int edgeCount, int slotCount) {
+            this.slotCount = slotCount;
+            this.visitedGenerations = new int[statusCount];
+            this.threadEdges = new int[edgeCount + statusCount];
+            this.threadStatuses = new int[edgeCount + statusCount];
+            this.statusSlots = new int[statusCount * slotCount];
+        }
+
+        private boolean isVisited(int status) {
+            return visitedGenerations[status] == generation;
+        }
+
+        /**
+         * @return Status is not visited before
+         */
+        private boolean visit(int status) {
+            if (visitedGenerations[status] == generation) {
+                return false;
+            }
+            visitedGenerations[status] = generation;
+            return true;
+        }
+
+        private void addThread(int edge, int status) {
+            threadEdges[size] = edge;
+            threadStatuses[size] = status;
+            size++;
+        }
+
+        private void saveSlots(int status, int[] slots) {
+            System.arraycopy(slots, 0, statusSlots, status * slotCount, slotCount);
+        }
+
+        private void loadSlots(int status, int[] slots) {
+            System.arraycopy(statusSlots, status * slotCount, slots, 0, slotCount);
+        }
+
+        private void clear() {
+            size = 0;
+            if (generation == Integer.MAX_VALUE) {
+                Arrays.fill(visitedGenerations, 0);
+                generation = 0;
+            }
+            generation++;
+        }
+    }
+}
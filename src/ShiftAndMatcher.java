@@ -0,0 +1,166 @@
+import java.util.Arrays;
+
+/**
+ * Bit parallel Shift-And matcher
+ * Status of a Glushkov NFA with at most 64 positions are encoded as bits of a long, so each input char is a few bitwise operations
+ * Follow sets are looked up by 8 bits at a time, one table for each byte of the status mask
+ * Immutable and thread safe
+ *
+ * @author xfy9326
+ */
+public final class ShiftAndMatcher implements MatchEngine {
+    public static final int MAX_POSITIONS = Long.SIZE;
+    private static final int CHUNK_BITS = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final AlphabetClasses alphabetClasses;
+    // Positions which can be entered by each alphabet class
+    private final long[] classMasks;
+    // Follow mask of status mask d is OR of followTables[(k << 8) | (byte k of d)]
+    private final long[] followTables;
+    private final long firstMask;
+    private final long lastMask;
+    private final boolean isNullable;
+
+    /**
+     * @param nfaMap Glushkov NFA
+     * @throws IllegalArgumentException NFA is not applicable, check it with {@link #isApplicable(NFAMap)}
+     */
+    public ShiftAndMatcher(NFAMap nfaMap) {
+        if (!isApplicable(nfaMap)) {
+            throw new IllegalArgumentException("NFA is not a Glushkov NFA with at most " + MAX_POSITIONS + " positions!");
+        }
+        int statusCount = nfaMap.getStatusCount();
+        int startStatus = nfaMap.getStartStatus();
+        int[] transitionOffsets = nfaMap.getTransitionOffsets();
+        int[] transitionSymbols = nfaMap.getTransitionSymbols();
+        int[] transitionTargets = nfaMap.getTransitionTargets();
+        this.alphabetClasses = nfaMap.getAlphabetClasses();
+
+        // Status except start status are bits in order
+        int[] statusBits = new int[statusCount];
+        int positionCount = 0;
+        for (int status = 0; status < statusCount; status++) {
+            statusBits[status] = status == startStatus ? -1 : positionCount++;
+        }
+
+        long[] followMasks = new long[positionCount];
+        long first = 0;
+        long last = 0;
+        this.classMasks = new long[alphabetClasses.getClassCount()];
+        for (int status = 0; status < statusCount; status++) {
+            long mask = 0;
+            for (int i = transitionOffsets[status]; i < transitionOffsets[status + 1]; i++) {
+                long targetBit = 1L << statusBits[transitionTargets[i]];
+                mask |= targetBit;
+                int symbol = transitionSymbols[i];
+                if (symbol < NFAMap.CHAR_SET_SYMBOL_BASE) {
+                    classMasks[alphabetClasses.getClass((char) symbol)] |= targetBit;
+                } else {
+                    // Char set is a union of alphabet classes
+                    for (int alphabetClass = 0; alphabetClass < classMasks.length; alphabetClass++) {
+                        if (nfaMap.isSymbolMatched(symbol, alphabetClasses.getRepresentative(alphabetClass))) {
+                            classMasks[alphabetClass] |= targetBit;
+                        }
+                    }
+                }
+            }
+            if (status == startStatus) {
+                first = mask;
+            } else {
+                followMasks[statusBits[status]] = mask;
+                if (nfaMap.isEndStatus(status)) {
+                    last |= 1L << statusBits[status];
+                }
+            }
+        }
+        this.firstMask = first;
+        this.lastMask = last;
+        this.isNullable = nfaMap.isEndStatus(startStatus);
+
+        int chunkCount = (positionCount + CHUNK_BITS - 1) / CHUNK_BITS;
+        this.followTables = new long[Math.max(chunkCount, 1) * CHUNK_SIZE];
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            int base = chunk * CHUNK_SIZE;
+            for (int bits = 1; bits < CHUNK_SIZE; bits++) {
+                int lowestBit = Integer.numberOfTrailingZeros(bits);
+                int position = chunk * CHUNK_BITS + lowestBit;
+                long follow = position < positionCount ? followMasks[position] : 0;
+                followTables[base + bits] = followTables[base + (bits & (bits - 1))] | follow;
+            }
+        }
+    }
+
+    /**
+     * NFA is applicable if it has no ε edge, all edges into the same status have the same symbol,
+     * no edge goes into start status, and it has at most 64 status except start status
+     *
+     * @param nfaMap NFA Map
+     * @return Applicable
+     */
+    public static boolean isApplicable(NFAMap nfaMap) {
+        int statusCount = nfaMap.getStatusCount();
+        if (statusCount - 1 > MAX_POSITIONS) {
+            return false;
+        }
+        int startStatus = nfaMap.getStartStatus();
+        int[] transitionSymbols = nfaMap.getTransitionSymbols();
+        int[] transitionTargets = nfaMap.getTransitionTargets();
+        int[] targetSymbols = new int[statusCount];
+        Arrays.fill(targetSymbols, NFAMap.EPSILON_SYMBOL);
+        for (int i = 0; i < transitionSymbols.length; i++) {
+            int symbol = transitionSymbols[i];
+            int target = transitionTargets[i];
+            if (symbol == NFAMap.EPSILON_SYMBOL || target == startStatus) {
+                return false;
+            }
+            if (targetSymbols[target] == NFAMap.EPSILON_SYMBOL) {
+                targetSymbols[target] = symbol;
+            } else if (targetSymbols[target] != symbol) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long follow(long statusMask) {
+        long result = 0;
+        for (int base = 0; statusMask != 0; base += CHUNK_SIZE, statusMask >>>= CHUNK_BITS) {
+            result |= followTables[base | (int) (statusMask & CHUNK_MASK)];
+        }
+        return result;
+    }
+
+    @Override
+    public boolean matches(CharSequence input) {
+        int length = input.length();
+        if (length == 0) {
+            return isNullable;
+        }
+        long statusMask = firstMask & classMasks[alphabetClasses.getClass(input.charAt(0))];
+        for (int i = 1; i < length && statusMask != 0; i++) {
+            statusMask = follow(statusMask) & classMasks[alphabetClasses.getClass(input.charAt(i))];
+        }
+        return (statusMask & lastMask) != 0;
+    }
+
+    @Override
+    public int search(CharSequence input, int from) {
+        int length = input.length();
+        if (from > length) {
+            return -1;
+        }
+        if (isNullable) {
+            return from;
+        }
+        long statusMask = 0;
+        for (int i = from; i < length; i++) {
+            statusMask = (follow(statusMask) | firstMask) & classMasks[alphabetClasses.getClass(input.charAt(i))];
+            if ((statusMask & lastMask) != 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streaming search with compiled DFA
+ * Input is consumed chunk by chunk, DFA status is carried across chunks, so input never needs to be loaded as a whole
+ * Each byte is matched as a char in 0-255 (ISO-8859-1), offsets are byte offsets from the start of the stream
+ * Matches are reported by their end offsets, and do not overlap: search restarts from the end of last match
+ * Not thread safe, use one instance for each thread
+ *
+ * @author xfy9326
+ */
+public final class StreamSearcher {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    // Max size of each mapped region of a file
+    private static final long MAX_MAPPED_REGION_SIZE = 1L << 30;
+    private static final int BYTE_COUNT = 256;
+    private static final int BYTE_MASK = 0xFF;
+
+    private final int[] transitions;
+    private final int acceptingStart;
+    private final int unanchoredStart;
+    // Class of each byte
+    private final int[] byteClasses;
+    private final byte[] buffer;
+    private final ByteBuffer channelBuffer;
+
+    private int status;
+    private long offset;
+    private long lastMatchEnd;
+    private long matchCount;
+
+    public StreamSearcher(NFAMap nfaMap) throws AutomatonTooLargeException {
+        this(CompiledDFA.compile(nfaMap));
+    }
+
+    public StreamSearcher(CompiledDFA dfa) {
+        this(dfa, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param dfa        Compiled DFA
+     * @param bufferSize Size of the reusable read buffer
+     */
+    public StreamSearcher(CompiledDFA dfa, int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive!");
+        }
+        this.transitions = dfa.getTransitions();
+        this.acceptingStart = dfa.getAcceptingStart();
+        this.unanchoredStart = dfa.getUnanchoredStart();
+        this.byteClasses = getByteClasses(dfa);
+        this.buffer = new byte[bufferSize];
+        this.channelBuffer = ByteBuffer.wrap(buffer);
+        reset();
+    }
+
+    /**
+     * Start a new stream
+     */
+    public void reset() {
+        status = unanchoredStart;
+        offset = 0;
+        lastMatchEnd = -1;
+        matchCount = 0;
+    }
+
+    /**
+     * Search the whole stream, the stream will not be closed
+     *
+     * @param inputStream Input stream
+     * @param listener    Match listener
+     * @return Match count
+     * @throws IOException Read failed
+     */
+    public long search(InputStream inputStream, MatchListener listener) throws IOException {
+        reset();
+        int read;
+        while ((read = inputStream.read(buffer, 0, buffer.length)) >= 0) {
+            feed(buffer, 0, read, listener);
+        }
+        return finish(listener);
+    }
+
+    /**
+     * Search the whole channel, the channel will not be closed
+     *
+     * @param channel  Readable channel
+     * @param listener Match listener
+     * @return Match count
+     * @throws IOException Read failed
+     */
+    public long search(ReadableByteChannel channel, MatchListener listener) throws IOException {
+        reset();
+        channelBuffer.clear();
+        while (channel.read(channelBuffer) >= 0) {
+            feed(buffer, 0, channelBuffer.position(), listener);
+            channelBuffer.clear();
+        }
+        return finish(listener);
+    }
+
+    /**
+     * Search the remaining bytes of buffer as a whole stream, buffer position is not changed
+     *
+     * @param byteBuffer Byte buffer, such as a {@link MappedByteBuffer}
+     * @param listener   Match listener
+     * @return Match count
+     */
+    public long search(ByteBuffer byteBuffer, MatchListener listener) {
+        reset();
+        feed(byteBuffer, listener);
+        return finish(listener);
+    }
+
+    /**
+     * Search a file by mapping it into memory region by region
+     *
+     * @param file     File path
+     * @param listener Match listener
+     * @return Match count
+     * @throws IOException Read failed
+     */
+    public long search(Path file, MatchListener listener) throws IOException {
+        reset();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAX_MAPPED_REGION_SIZE) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_MAPPED_REGION_SIZE, size - position));
+                feed(region, listener);
+            }
+        }
+        return finish(listener);
+    }
+
+    /**
+     * Feed next chunk of the stream
+     *
+     * @param bytes    Bytes
+     * @param from     Start index
+     * @param to       End index (exclusive)
+     * @param listener Match listener
+     */
+    public void feed(byte[] bytes, int from, int to, MatchListener listener) {
+        int[] transitions = this.transitions;
+        int[] byteClasses = this.byteClasses;
+        int acceptingStart = this.acceptingStart;
+        int status = this.status;
+        long base = offset - from;
+        for (int i = from; i < to; i++) {
+            if (status >= acceptingStart && base + i != lastMatchEnd) {
+                onMatch(base + i, listener);
+                status = unanchoredStart;
+            }
+            status = transitions[status + byteClasses[bytes[i] & BYTE_MASK]];
+        }
+        this.status = status;
+        offset = base + to;
+    }
+
+    /**
+     * Feed remaining bytes of buffer as next chunk of the stream, buffer position is not changed
+     *
+     * @param byteBuffer Byte buffer
+     * @param listener   Match listener
+     */
+    public void feed(ByteBuffer byteBuffer, MatchListener listener) {
+        if (byteBuffer.hasArray()) {
+            int arrayOffset = byteBuffer.arrayOffset();
+            feed(byteBuffer.array(), arrayOffset + byteBuffer.position(), arrayOffset + byteBuffer.limit(), listener);
+            return;
+        }
+        int[] transitions = this.transitions;
+        int[] byteClasses = this.byteClasses;
+        int acceptingStart = this.acceptingStart;
+        int status = this.status;
+        int from = byteBuffer.position();
+        int to = byteBuffer.limit();
+        long base = offset - from;
+        for (int i = from; i < to; i++) {
+            if (status >= acceptingStart && base + i != lastMatchEnd) {
+                onMatch(base + i, listener);
+                status = unanchoredStart;
+            }
+            status = transitions[status + byteClasses[byteBuffer.get(i) & BYTE_MASK]];
+        }
+        this.status = status;
+        offset = base + to;
+    }
+
+    /**
+     * End the stream
+     *
+     * @param listener Match listener
+     * @return Match count of the stream
+     */
+    public long finish(MatchListener listener) {
+        if (status >= acceptingStart && offset != lastMatchEnd) {
+            onMatch(offset, listener);
+            status = unanchoredStart;
+        }
+        return matchCount;
+    }
+
+    /**
+     * @return Bytes fed since last reset
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getMatchCount() {
+        return matchCount;
+    }
+
+    /**
+     * @param dfa Compiled DFA
+     * @return Class of each byte
+     */
+    static int[] getByteClasses(CompiledDFA dfa) {
+        AlphabetClasses alphabetClasses = dfa.getAlphabetClasses();
+        int[] byteClasses = new int[BYTE_COUNT];
+        for (int b = 0; b < BYTE_COUNT; b++) {
+            byteClasses[b] = alphabetClasses.getClass((char) b);
+        }
+        return byteClasses;
+    }
+
+    private void onMatch(long end, MatchListener listener) {
+        lastMatchEnd = end;
+        matchCount++;
+        listener.onMatch(end);
+    }
+
+    public interface MatchListener {
+        /**
+         * @param end End offset of match
+         */
+        void onMatch(long end);
+    }
+}
@@ -0,0 +1,196 @@
+import java.util.Arrays;
+
+/**
+ * Subset construction steps shared by DFA engines
+ * A DFA status is a sorted set of important NFA status (status which have symbol edges, or end status)
+ * An unanchored DFA status also contains the closure of NFA start status, so a match can start at any position
+ * Not thread safe
+ *
+ * @author xfy9326
+ */
+final class SubsetConstruction {
+    private final NFAMap nfaMap;
+    private final int startStatus;
+    private final boolean[] isEndStatus;
+    private final int[] transitionOffsets;
+    private final int[] transitionSymbols;
+    private final int[] transitionTargets;
+    private final EpsilonClosure epsilonClosure;
+    private final boolean[] isImportantStatus;
+    private final int[] acceptPatternOffsets;
+    private final int[] acceptPatterns;
+
+    // Working set for building new status set
+    private final int[] workSparse;
+    private final int[] workStatuses;
+    private int workSize = 0;
+    private final int[] closureStack;
+
+    SubsetConstruction(NFAMap nfaMap) {
+        int statusCount = nfaMap.getStatusCount();
+        this.nfaMap = nfaMap;
+        this.startStatus = nfaMap.getStartStatus();
+        this.isEndStatus = nfaMap.getEndStatusFlags();
+        this.transitionOffsets = nfaMap.getTransitionOffsets();
+        this.transitionSymbols = nfaMap.getTransitionSymbols();
+        this.transitionTargets = nfaMap.getTransitionTargets();
+        this.epsilonClosure = nfaMap.getEpsilonClosure();
+        this.acceptPatternOffsets = nfaMap.getAcceptPatternOffsets();
+        this.acceptPatterns = nfaMap.getAcceptPatternArray();
+
+        this.isImportantStatus = isEndStatus.clone();
+        for (int status = 0; status < statusCount; status++) {
+            for (int i = transitionOffsets[status]; i < transitionOffsets[status + 1]; i++) {
+                if (transitionSymbols[i] != NFAMap.EPSILON_SYMBOL) {
+                    isImportantStatus[status] = true;
+                    break;
+                }
+            }
+        }
+        this.workSparse = new int[statusCount];
+        this.workStatuses = new int[statusCount];
+        this.closureStack = new int[transitionSymbols.length + 1];
+    }
+
+    /**
+     * @return Status set of start status
+     */
+    int[] getStartSet() {
+        workSize = 0;
+        addClosure(startStatus);
+        return getWorkSet();
+    }
+
+    /**
+     * @param statusSet    From status set
+     * @param c            Input char
+     * @param isUnanchored Status set is unanchored
+     * @return Next status set
+     */
+    int[] move(int[] statusSet, char c, boolean isUnanchored) {
+        workSize = 0;
+        for (int nfaStatus : statusSet) {
+            for (int i = transitionOffsets[nfaStatus]; i < transitionOffsets[nfaStatus + 1]; i++) {
+                if (transitionSymbols[i] != NFAMap.EPSILON_SYMBOL && nfaMap.isSymbolMatched(transitionSymbols[i], c)) {
+                    addClosure(transitionTargets[i]);
+                }
+            }
+        }
+        if (isUnanchored) {
+            addClosure(startStatus);
+        }
+        return getWorkSet();
+    }
+
+    boolean isAccepting(int[] statusSet) {
+        for (int status : statusSet) {
+            if (isEndStatus[status]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param statusSet Status set
+     * @return Patterns accepted by any status in set, sorted and distinct
+     */
+    int[] getAcceptPatterns(int[] statusSet) {
+        int size = 0;
+        for (int status : statusSet) {
+            size += acceptPatternOffsets[status + 1] - acceptPatternOffsets[status];
+        }
+        int[] result = new int[size];
+        size = 0;
+        for (int status : statusSet) {
+            for (int i = acceptPatternOffsets[status]; i < acceptPatternOffsets[status + 1]; i++) {
+                result[size++] = acceptPatterns[i];
+            }
+        }
+        Arrays.sort(result);
+        int distinctSize = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || result[i] != result[i - 1]) {
+                result[distinctSize++] = result[i];
+            }
+        }
+        return distinctSize < size ? Arrays.copyOf(result, distinctSize) : result;
+    }
+
+    private int[] getWorkSet() {
+        int[] result = new int[workSize];
+        int size = 0;
+        for (int i = 0; i < workSize; i++) {
+            if (isImportantStatus[workStatuses[i]]) {
+                result[size++] = workStatuses[i];
+            }
+        }
+        if (size < workSize) {
+            result = Arrays.copyOf(result, size);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private boolean addWorkStatus(int status) {
+        int index = workSparse[status];
+        if (index < workSize && workStatuses[index] == status) {
+            return false;
+        }
+        workSparse[status] = workSize;
+        workStatuses[workSize++] = status;
+        return true;
+    }
+
+    /**
+     * Add important status in ε closure into working set
+     * Unimportant status are also added while computing, and removed by {@link #getWorkSet()}
+     *
+     * @param status NFA status
+     */
+    private void addClosure(int status) {
+        if (epsilonClosure != null) {
+            for (int i = epsilonClosure.offsets[status]; i < epsilonClosure.offsets[status + 1]; i++) {
+                addWorkStatus(epsilonClosure.statuses[i]);
+            }
+        } else {
+            int stackSize = 0;
+            closureStack[stackSize++] = status;
+            while (stackSize > 0) {
+                int current = closureStack[--stackSize];
+                if (addWorkStatus(current)) {
+                    for (int i = transitionOffsets[current]; i < transitionOffsets[current + 1]; i++) {
+                        if (transitionSymbols[i] == NFAMap.EPSILON_SYMBOL) {
+                            closureStack[stackSize++] = transitionTargets[i];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    static final class StatusSetKey {
+        private final int[] statusSet;
+        private final boolean isUnanchored;
+        private final int hashCode;
+
+        StatusSetKey(int[] statusSet, boolean isUnanchored) {
+            this.statusSet = statusSet;
+            this.isUnanchored = isUnanchored;
+            this.hashCode = Arrays.hashCode(statusSet) * 2 + (isUnanchored ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            StatusSetKey that = (StatusSetKey) o;
+            return isUnanchored == that.isUnanchored && Arrays.equals(statusSet, that.statusSet);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
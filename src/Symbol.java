@@ -9,4 +9,22 @@ public class Symbol {
     public static final char PARENTHESIS_LEFT = 40;
     // 41 )
     public static final char PARENTHESIS_RIGHT = 41;
+    // 43 +
+    public static final char PLUS = 43;
+    // 63 ?
+    public static final char OPTIONAL = 63;
+    // 123 {
+    public static final char REPEAT_LEFT = 123;
+    // 125 }
+    public static final char REPEAT_RIGHT = 125;
+    // 44 , (Between min and max repeat count)
+    public static final char REPEAT_SEPARATOR = 44;
+    // 91 [
+    public static final char CHAR_SET_LEFT = 91;
+    // 93 ]
+    public static final char CHAR_SET_RIGHT = 93;
+    // 94 ^ (First char in char set)
+    public static final char CHAR_SET_NEGATE = 94;
+    // 45 - (Between two chars in char set)
+    public static final char CHAR_SET_RANGE = 45;
 }
\ No newline at end of file